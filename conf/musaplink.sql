@@ -18,7 +18,8 @@ CREATE TABLE musap_accounts (
     musapid TEXT PRIMARY KEY,
     fcmtoken TEXT,
     apnstoken TEXT,
-    created_dt TIMESTAMP
+    created_dt TIMESTAMP,
+    token_invalid_dt TIMESTAMP -- set when FCM or APNs rejects the push token
 );
 
 CREATE TABLE link_ids (
@@ -32,6 +33,7 @@ CREATE TABLE transport_keys (
     musapid TEXT,
     mackey TEXT,
     enckey TEXT,
+    mode TEXT, -- NULL or 'cbc-hmac' for AES-CBC with HMAC, 'aes-gcm' for AES-GCM
     PRIMARY KEY (musapid),
     FOREIGN KEY (musapid) REFERENCES musap_accounts(musapid)
 );
@@ -46,3 +48,15 @@ CREATE TABLE key_details (
     modified_dt TIMESTAMP,
     PRIMARY KEY (musapid, keyid)
 );
+
+-- Used Coupling API nonces shared by all nodes (optional, see musaplink.nonce.shared.enabled).
+-- Hourly UNLOGGED partitions (used_nonces_yyyyMMddHH) are created and dropped by MUSAP Link.
+CREATE TABLE used_nonces (
+    nonce TEXT NOT NULL,
+    msg_ts BIGINT NOT NULL,
+    PRIMARY KEY (nonce, msg_ts)
+) PARTITION BY RANGE (msg_ts);
+
+-- Upgrading an existing database:
+-- ALTER TABLE transport_keys ADD COLUMN mode TEXT;
+-- ALTER TABLE musap_accounts ADD COLUMN token_invalid_dt TIMESTAMP;
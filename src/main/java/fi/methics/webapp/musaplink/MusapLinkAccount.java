@@ -1,6 +1,7 @@
 package fi.methics.webapp.musaplink;
 
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
@@ -22,8 +23,12 @@ public class MusapLinkAccount {
     public String fcmToken;
     public String apnsToken;
     
+    // Time FCM or APNs rejected the push token. Cleared when the app sends a new token.
+    public Date tokenInvalidated;
+    
     public byte[] aesKey;
     public byte[] macKey;
+    public String transportMode;
     
     public MusapLinkAccount() {
         
@@ -36,7 +41,15 @@ public class MusapLinkAccount {
     public TransportKeys getTransportKeys() {
         if (this.aesKey == null) return null;
         if (this.macKey == null) return null;
-        return new TransportKeys(this.musapid, this.aesKey, this.macKey);
+        return new TransportKeys(this.musapid, this.aesKey, this.macKey, this.transportMode);
+    }
+    
+    /**
+     * Has FCM or APNs rejected the push token of this account?
+     * @return true if the push token is known to be invalid
+     */
+    public boolean isPushTokenInvalid() {
+        return this.tokenInvalidated != null;
     }
     
     @Override
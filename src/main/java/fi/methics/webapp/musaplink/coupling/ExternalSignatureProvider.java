@@ -0,0 +1,30 @@
+package fi.methics.webapp.musaplink.coupling;
+
+import java.util.concurrent.CompletableFuture;
+
+import fi.methics.webapp.musaplink.coupling.json.ExternalSignatureReq;
+import fi.methics.webapp.musaplink.coupling.json.ExternalSignatureResp;
+
+/**
+ * External signature service used by {@link fi.methics.webapp.musaplink.coupling.cmd.CmdExternalSignature}.
+ * <p>Implementations must not block the calling thread while waiting for the signature service.
+ * They should use their own bounded threads, asynchronous I/O or scheduled status polling instead.
+ */
+public interface ExternalSignatureProvider {
+
+    /**
+     * Get the ClientID that external signature requests use to select this provider
+     * @return ClientID
+     */
+    public String getClientId();
+
+    /**
+     * Request a signature
+     * @param req     External signature request
+     * @param transid Transaction ID
+     * @return future completed with a successful signature response, or completed exceptionally
+     *         if the signature failed
+     */
+    public CompletableFuture<ExternalSignatureResp> sign(ExternalSignatureReq req, String transid);
+
+}
@@ -20,6 +20,7 @@ import fi.methics.webapp.musaplink.link.json.MusapResp;
 import fi.methics.webapp.musaplink.util.MusapException;
 import fi.methics.webapp.musaplink.util.MusapLinkConf;
 import fi.methics.webapp.musaplink.util.MusapTransportEncryption;
+import fi.methics.webapp.musaplink.util.MusapTransportEncryption.TransportKeys;
 import fi.methics.webapp.musaplink.util.db.AccountStorage;
 
 /**
@@ -61,7 +62,7 @@ public class MusapCouplingServlet {
             return MusapResp.createErrorResponse(MusapResp.ERROR_WRONG_PARAM, "Missing request body");
         }
         
-        MusapLinkAccount account = null;
+        TransportKeys keys = null;
         
         boolean isEncrypted     = jReq.isEncrypted();
         boolean shouldDecrypt   = MusapTransportEncryption.shouldDecrypt(jReq);
@@ -74,19 +75,15 @@ public class MusapCouplingServlet {
 
         try {
             if (isEncrypted) {
-                // Fetch transport encryption keys and decrypt if needed
-                account = AccountStorage.findAccountByMusapId(jReq.musapid);
+                // Fetch transport encryption keys (cached) and decrypt if needed
+                keys = enc.resolveKeys(jReq.musapid);
                 
-                if (account == null) {
-                    log.debug("Could not find account with MUSAP ID " + jReq.musapid);
-                    return MusapResp.createErrorResponse(MusapResp.ERROR_WRONG_PARAM, "Failed to decrypt the request: Could not find account with MUSAP ID " + jReq.musapid);
-                }
-                if (account.getTransportKeys() == null) {
-                    log.debug("Could not find transport encryption key");
-                    return MusapResp.createErrorResponse(MusapResp.ERROR_WRONG_PARAM, "Failed to decrypt the request: Missing transport key");
+                if (keys == null) {
+                    log.debug("Could not find transport encryption key for MUSAP ID " + jReq.musapid);
+                    return MusapResp.createErrorResponse(MusapResp.ERROR_WRONG_PARAM, "Failed to decrypt the request: Missing transport key for MUSAP ID " + jReq.musapid);
                 }
                 try {
-                    enc.decrypt(jReq, account.getTransportKeys());
+                    enc.decrypt(jReq, keys);
                 } catch (Exception e) {
                     log.error("Failed to decrypt message", e);
                     return MusapResp.createErrorResponse(MusapResp.ERROR_WRONG_PARAM, "Failed to decrypt the request: " + e.getMessage());
@@ -160,11 +157,12 @@ public class MusapCouplingServlet {
             
             try {
                 if (MusapTransportEncryption.shouldEncrypt(jResp)) {
-                    if (account == null) {
-                        account = AccountStorage.findAccountByLinkId(body);
+                    if (keys == null) {
+                        MusapLinkAccount account = AccountStorage.findAccountByLinkId(body);
+                        if (account != null) keys = account.getTransportKeys();
                     }
-                    if (account != null) {
-                        enc.encrypt(jResp, account.getTransportKeys());
+                    if (keys != null) {
+                        enc.encrypt(jResp, keys);
                     }
                 }
             } catch (Exception e) {
@@ -15,6 +15,7 @@ import fi.methics.webapp.musaplink.coupling.json.EnrollDataReq;
 import fi.methics.webapp.musaplink.coupling.json.EnrollDataResp;
 import fi.methics.webapp.musaplink.link.json.MusapResp;
 import fi.methics.webapp.musaplink.util.MusapException;
+import fi.methics.webapp.musaplink.util.TransportCrypto;
 import fi.methics.webapp.musaplink.util.MusapTransportEncryption.TransportKeys;
 import fi.methics.webapp.musaplink.util.db.AccountStorage;
 
@@ -48,6 +49,7 @@ public class CmdEnrollData extends CouplingCommand {
             byte[][] keypair_mac_aes = this.deriveKeys(ss);
             account.macKey = keypair_mac_aes[0];
             account.aesKey = keypair_mac_aes[1];
+            account.transportMode = this.selectTransportMode(payload.transportmode);
         } else {
             if (this.getConfig().isTransportEncryptionRequired()) {
                 log.error("Transport encryption is required, but client did not provide a secret");
@@ -62,12 +64,18 @@ public class CmdEnrollData extends CouplingCommand {
         
         EnrollDataResp respPayload = new EnrollDataResp();
         respPayload.musapid = account.musapid;
+        if (account.getTransportKeys() != null) {
+            respPayload.transportmode = account.transportMode;
+        }
         
         CouplingApiMessage resp = req.createResponse(respPayload);
         TransportKeys      keys = account.getTransportKeys();
         
         resp.musapid = account.musapid;
         if (keys != null) {
+            // The payload is encrypted in the selected mode, so the app needs the mode outside of it
+            resp.transportmode = account.transportMode;
+            this.getTransportEncryption().cacheKeys(keys);
             try {
                 this.getTransportEncryption().encrypt(resp, keys);
             } catch (Exception e) {
@@ -77,6 +85,20 @@ public class CmdEnrollData extends CouplingCommand {
         return resp;
     }
     
+    /**
+     * Select the transport mode for a new account.
+     * AES-GCM is used if the app asks for it and it is enabled. Otherwise the app gets AES-CBC with HMAC.
+     * @param requested Transport mode requested by the app (may be null)
+     * @return selected transport mode
+     */
+    private String selectTransportMode(final String requested) {
+        if (TransportCrypto.isGcm(requested) && this.getConfig().isTransportGcmEnabled()) {
+            log.debug("Using AES-GCM transport encryption");
+            return TransportCrypto.MODE_GCM;
+        }
+        return TransportCrypto.MODE_CBC_HMAC;
+    }
+
     /**
      * Calculates MAC and AES keys and returns them in a small array in that order (indexes 0, 1) 
      * @param secret Shared secret
@@ -1,12 +1,13 @@
 package fi.methics.webapp.musaplink.coupling.cmd;
 
-import java.util.HashMap;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import fi.methics.webapp.musaplink.MusapLinkAccount;
 import fi.methics.webapp.musaplink.MusapLinkAccount.MusapKey;
 import fi.methics.webapp.musaplink.coupling.CouplingCommand;
+import fi.methics.webapp.musaplink.coupling.ExternalSignatureProvider;
 import fi.methics.webapp.musaplink.coupling.json.CouplingApiMessage;
 import fi.methics.webapp.musaplink.coupling.json.CouplingApiPayload;
 import fi.methics.webapp.musaplink.coupling.json.ExternalSignatureReq;
@@ -16,19 +17,16 @@ import fi.methics.webapp.musaplink.link.json.MusapResp;
 import fi.methics.webapp.musaplink.util.IdGenerator;
 import fi.methics.webapp.musaplink.util.MusapException;
 import fi.methics.webapp.musaplink.util.db.AccountStorage;
-import fi.methics.webapp.musaplink.util.etsi204.Etsi204Client;
-import fi.methics.webapp.musaplink.util.etsi204.Etsi204Exception;
-import fi.methics.webapp.musaplink.util.etsi204.Etsi204Response;
 
 /**
  * Coupling API command for requesting a signature from an external service.
  * 
- * <p>Currently only supports ETSI TS 102 204 via SOAP.
- * <br>TODO: Implement an interface to allow new services.
+ * <p>The signature is requested from the {@link ExternalSignatureProvider} with the requested ClientID.
+ * Currently the providers are ETSI TS 102 204 SOAP and REST clients.
  */
 public class CmdExternalSignature extends CouplingCommand {
 
-    private static final Map<String, CouplingApiPayload> RESPONSES = new HashMap<>();
+    private static final Map<String, CouplingApiPayload> RESPONSES = new ConcurrentHashMap<>();
     
     public CmdExternalSignature(CouplingApiMessage req) {
         super(req, ExternalSignatureReq.class);
@@ -54,15 +52,15 @@ public class CmdExternalSignature extends CouplingCommand {
         String transid = IdGenerator.generateTxnId();
         log.info("Got external signature request from MUSAP ID " + musapid);
         log.debug("Created a new transaction with transid " + transid);
-        Etsi204Client client = this.getConfig().getClient(sigReq.clientid);
+        ExternalSignatureProvider provider = this.getConfig().getClient(sigReq.clientid);
         
-        if (client == null) {
+        if (provider == null) {
             log.debug("No client found with ClientID " + sigReq.clientid);
-            log.debug("Found clients: " + this.getConfig().getClients().stream().map(c -> c.getClientId()).collect(Collectors.toList()));
+            log.debug("Found clients: " + this.getConfig().getClientIds());
             throw new MusapException(MusapResp.ERROR_INTERNAL);
         }
         
-        this.sendRequest(account, client, req, sigReq, transid);
+        this.sendRequest(account, provider, sigReq, transid);
         ExternalSignatureResp statusResp = new ExternalSignatureResp();
         statusResp.transid = transid;
         statusResp.status  = "pending";
@@ -94,18 +92,15 @@ public class CmdExternalSignature extends CouplingCommand {
     
     /**
      * Send a signature request to the external service asynchronously
-     * @param client Client to send request with
-     * @param req     Raw MUSAP Coupling API request
-     * @param sigReq  Raw External Signature request
-     * @param transid Transaction ID
-     * @throws Etsi204Exception
+     * @param account  MUSAP Link account
+     * @param provider External signature provider
+     * @param sigReq   Raw External Signature request
+     * @param transid  Transaction ID
      */
     private void sendRequest(MusapLinkAccount account,
-                             Etsi204Client client, 
-                             CouplingApiMessage req, 
+                             ExternalSignatureProvider provider, 
                              ExternalSignatureReq sigReq, 
                              String transid) 
-        throws Etsi204Exception 
     {
         
         if (transid == null) {
@@ -113,36 +108,22 @@ public class CmdExternalSignature extends CouplingCommand {
             return;
         }
         
-        EXECUTOR.execute(() -> {
-            String msisdn  = sigReq.attributes.get("msisdn");
-            String dtbd    = sigReq.display;
-            
-            log.debug("Sending signature request to clientid=" + sigReq.clientid + ", msisdn=" + msisdn);
-            try {
-                Etsi204Response resp = client.sign(msisdn, dtbd, sigReq.getDtbs(), transid, sigReq.attributes);
-                
-                ExternalSignatureResp sigResp = new ExternalSignatureResp();
-                sigResp.signature   = resp.getSignatureB64();
-                try {
-                    sigResp.publickey   = resp.getPublicKeyB64();
-                    sigResp.certificate = resp.getCertificateB64();
-                    sigResp.certChain   = resp.getCertificateChain();
-                } catch (Exception e) {
-                    log.warn("Failed to parse certificate from response", e);
-                }
-                sigResp.status  = "success";
-                sigResp.transid = transid;
-                sigResp.keyid   = sigReq.keyid;
-                AccountStorage.upsertKeyDetails(account, new MusapKey(sigResp));
-                
-                log.debug("Got signature response for " + sigResp.transid);
-                RESPONSES.put(transid, sigResp);
-            } catch (Etsi204Exception e) {
-                MusapErrorMsg err = new MusapErrorMsg(e);
-                log.error("Signature request failed", e);
+        provider.sign(sigReq, transid).whenComplete((sigResp, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                MusapErrorMsg err = cause instanceof Exception ? new MusapErrorMsg((Exception)cause) : new MusapErrorMsg(MusapErrorMsg.ERROR_INTERNAL);
+                log.error("Signature request failed", cause);
                 log.error("Storing error payload " + err);
                 RESPONSES.put(transid, err);
+                return;
+            }
+            try {
+                AccountStorage.upsertKeyDetails(account, new MusapKey(sigResp));
+            } catch (Exception ex) {
+                log.warn("Failed to store key details", ex);
             }
+            log.debug("Got signature response for " + sigResp.transid);
+            RESPONSES.put(transid, sigResp);
         });
 
     }
@@ -8,6 +8,7 @@ import fi.methics.webapp.musaplink.link.json.MusapResp;
 import fi.methics.webapp.musaplink.util.MusapException;
 import fi.methics.webapp.musaplink.util.db.AccountStorage;
 import fi.methics.webapp.musaplink.util.db.TxnStorage;
+import fi.methics.webapp.musaplink.util.push.PresenceTracker;
 
 /**
  * Coupling API command for checking for pending signature or key generation requests.
@@ -29,6 +30,7 @@ public class CmdGetData extends CouplingCommand {
         
         MusapLinkAccount account = AccountStorage.findAccountByMusapId(musapid);
         if (account == null) throw new MusapException(MusapResp.ERROR_UNKNOWN_USER);
+        PresenceTracker.markActive(musapid);
         
         for (String linkid : account.linkids) {
             log.debug("Checking for requests from linkid " + linkid);
@@ -1,6 +1,8 @@
 package fi.methics.webapp.musaplink.coupling.json;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Type;
@@ -14,10 +16,6 @@ import java.util.List;
 import java.util.Map;
 
 import javax.crypto.Cipher;
-import javax.crypto.Mac;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -30,6 +28,7 @@ import fi.methics.webapp.musaplink.util.GsonMessage;
 import fi.methics.webapp.musaplink.util.HexUtil;
 import fi.methics.webapp.musaplink.util.MusapRandom;
 import fi.methics.webapp.musaplink.util.MusapTransportEncryption;
+import fi.methics.webapp.musaplink.util.TransportCrypto;
 
 /**
  * MUSAP Coupling API message.
@@ -38,6 +37,7 @@ import fi.methics.webapp.musaplink.util.MusapTransportEncryption;
  * <li>type    - Message type (e.g. "enrolldata")
  * <li>payload - Message payload (base64 encoded)
  * <li>transid - Transaction ID unique to this transaction
+ * <li>transportmode - Transport mode used to encrypt the payload (enrolldata responses only)
  * </ul>
  */
 public class CouplingApiMessage extends GsonMessage {
@@ -60,8 +60,6 @@ public class CouplingApiMessage extends GsonMessage {
         MESSAGE_TYPES = getKnownTypes();
     }
     
-    private static final String MAC_ALGORITHM = "HmacSHA256";
-    
     // Req
     @SerializedName("payload")
     public String payload;
@@ -76,9 +74,18 @@ public class CouplingApiMessage extends GsonMessage {
     @SerializedName("iv")
     public String iv;
 
+    // Transport mode of the payload encryption. Set only in enrolldata responses,
+    // as the app cannot know which mode to decrypt the response with before it reads it.
+    @SerializedName("transportmode")
+    public String transportmode;
+
     private transient boolean isError;
     private transient boolean isMt;
     private transient boolean isEncrypted;
+
+    // Decoded payload, cached for the payload String it was decoded from
+    private transient String decodedFrom;
+    private transient byte[] decoded;
     
     
     /**
@@ -200,6 +207,18 @@ public class CouplingApiMessage extends GsonMessage {
      */
     public String calculateMac(final byte[] macKey) throws GeneralSecurityException, IOException {
         if (macKey == null) return null;
+        return this.calculateMac(new TransportCrypto(null, macKey));
+    }
+
+    /**
+     * Calculates the mac value with a reusable crypto context
+     * @param crypto Crypto context of the transport keys
+     * @return Mac as hex bytes
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public String calculateMac(final TransportCrypto crypto) throws GeneralSecurityException, IOException {
+        if (crypto == null) return null;
         if (this.iv == null) {
             if (this.isMT()) {
                 this.generateIV();
@@ -210,15 +229,12 @@ public class CouplingApiMessage extends GsonMessage {
         if (this.transid == null && this.musapid == null) {
             throw new IOException("Message is missing transid and uuid");
         }
-        String msgid   = this.transid != null ? this.transid : this.musapid;
-        byte[] message = (msgid + this.type + this.iv + this.payload).getBytes(StandardCharsets.UTF_8);
+        String msgid = this.transid != null ? this.transid : this.musapid;
         if (log.isTraceEnabled()) {
             log.trace("Calculating mac from " + msgid+this.type+this.iv+this.payload);
         }
-        SecretKey key = new SecretKeySpec(macKey, 0, macKey.length, MAC_ALGORITHM);
-        Mac m = Mac.getInstance(MAC_ALGORITHM);
-        m.init(key);
-        return HexUtil.hexLine(m.doFinal(message));
+        // Same input as (msgid + type + iv + payload), fed to the Mac part by part
+        return HexUtil.hexLine(crypto.mac(String.valueOf(msgid), String.valueOf(this.type), String.valueOf(this.iv), String.valueOf(this.payload)));
     }
     
     /**
@@ -293,12 +309,18 @@ public class CouplingApiMessage extends GsonMessage {
     
     /**
      * Get payload as raw byte[]
+     * <p>The payload is decoded once and cached until {@link #payload} changes.
+     * The returned array must not be modified.
      * @return Decoded payload
      */
     public byte[] getPayload() {
-        if (this.payload == null) return null;
+        final String p = this.payload;
+        if (p == null) return null;
+        if (p == this.decodedFrom) return this.decoded;
         try {
-            return Base64.getDecoder().decode(this.payload);
+            byte[] bytes = Base64.getDecoder().decode(p);
+            this.setDecoded(p, bytes);
+            return bytes;
         } catch (Exception e) {
             log.error("Failed to decode payload:", e);
             return null;
@@ -315,7 +337,7 @@ public class CouplingApiMessage extends GsonMessage {
     public <T extends CouplingApiPayload> T getPayload(Class<T> clazz) {
         if (this.payload == null) return null;
         try {
-            T payload = GSON.fromJson(this.getPayloadJson(), clazz);
+            T payload = this.parsePayload(clazz);
             if (payload != null) {
                 payload.validate();
             }
@@ -342,12 +364,35 @@ public class CouplingApiMessage extends GsonMessage {
      * @return payload as key/value (String/String) map
      */
     public Map<String, String> getPayloadMap() {
-        String json = this.getPayloadJson();
-        if (json == null) {
+        Type t = new TypeToken<Map<String, String>>(){}.getType();
+        Map<String, String> map = this.parsePayload(t);
+        if (map == null) {
             return Collections.emptyMap();
         }
-        Type t = new TypeToken<Map<String, String>>(){}.getType();
-        return GSON.fromJson(json, t);
+        return map;
+    }
+
+    /**
+     * Parse the payload JSON straight from the decoded bytes
+     * @param <T> Result type
+     * @param t   Result type
+     * @return parsed payload or null if there is no (unencrypted) payload
+     */
+    private <T> T parsePayload(Type t) {
+        byte[] p = this.getPayload();
+        if (p == null) return null;
+        if (this.isEncrypted) return null;
+        return GSON.fromJson(new InputStreamReader(new ByteArrayInputStream(p), StandardCharsets.UTF_8), t);
+    }
+
+    /**
+     * Cache the decoded form of a payload
+     * @param payload Payload String
+     * @param bytes   Decoded payload
+     */
+    private void setDecoded(final String payload, final byte[] bytes) {
+        this.decodedFrom = payload;
+        this.decoded     = bytes;
     }
     
     /**
@@ -473,7 +518,9 @@ public class CouplingApiMessage extends GsonMessage {
      */
     public void setPayload(final CouplingApiPayload payload) {
         if (payload == null) return;
-        this.payload = Base64.getEncoder().encodeToString(payload.getBytes());
+        byte[] bytes = payload.getBytes();
+        this.payload = Base64.getEncoder().encodeToString(bytes);
+        this.setDecoded(this.payload, bytes);
     }
     
     /**
@@ -513,33 +560,38 @@ public class CouplingApiMessage extends GsonMessage {
      * @throws Base64.InvalidInputDataException 
      */
     private byte[] generateIV() throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        return this.generateIV(16);
+    }
+
+    /**
+     * Generate a random IV of given length
+     * <p>Also sets the value to {@link #iv} as base64 string
+     * @param length IV length in bytes
+     * @return IV
+     * @throws NoSuchAlgorithmException 
+     * @throws UnsupportedEncodingException 
+     */
+    private byte[] generateIV(final int length) throws NoSuchAlgorithmException, UnsupportedEncodingException {
         if (this.iv != null) {
             return Base64.getDecoder().decode(this.iv);
         }
-        byte[] _iv = MusapRandom.getRandomBytes(16);
+        byte[] _iv = MusapRandom.getRandomBytes(length);
         this.iv = Base64.getEncoder().encodeToString(_iv);
         return _iv;
     }
 
     /**
-     * Initialize Cipher
-     * @param mode    Mode (encrypt or decrypt)
-     * @param aesKey  AES key (byte[])
-     * @return Cipher
-     * @throws GeneralSecurityException
-     * @throws IOException
+     * Get the additional authenticated data of AES-GCM mode.
+     * <p>This binds the message ID and type to the ciphertext, like the MAC does in CBC mode.
+     * @return AAD
+     * @throws IOException if the message has no transid or musapid
      */
-    private Cipher initCipher(int mode, byte[] aesKey) throws GeneralSecurityException, IOException {
-        try {
-            byte[]     _iv = this.generateIV();
-            SecretKey key = new SecretKeySpec(aesKey, 0, aesKey.length, "AES");
-            
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS7Padding");
-            cipher.init(mode, key, new IvParameterSpec(_iv));
-            return cipher;
-        } catch (Exception e) {
-            throw new IOException(e);
+    private byte[] getAad() throws IOException {
+        if (this.transid == null && this.musapid == null) {
+            throw new IOException("Message is missing transid and uuid");
         }
+        String msgid = this.transid != null ? this.transid : this.musapid;
+        return (msgid + this.type).getBytes(StandardCharsets.UTF_8);
     }
 
     private CouplingApiMessage newCouplingResponse(CouplingApiPayload msg) {
@@ -571,9 +623,28 @@ public class CouplingApiMessage extends GsonMessage {
             log.debug("No key to decrypt with.");
             throw new IOException("Decryption failed. Missing decryption key.");
         }
+        this.decrypt(new TransportCrypto(aesKey, null));
+    }
+
+    /**
+     * Decrypt this message with a reusable crypto context
+     * @param crypto Crypto context of the transport keys
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public void decrypt(final TransportCrypto crypto) throws GeneralSecurityException, IOException {
+        
+        if (this.iv == null) {
+            log.debug("Cannot decrypt a message without iv");
+            throw new IOException("Unable to decrypt message. Message is not encrypted.");
+        }
         log.debug("Decrypting payload: " + this.payload);
-        Cipher cipher    = this.initCipher(Cipher.DECRYPT_MODE, aesKey);
-        byte[] decrypted = cipher.doFinal(this.getPayload());
+        final byte[] decrypted;
+        if (crypto.isAead()) {
+            decrypted = crypto.gcm(Cipher.DECRYPT_MODE, this.generateIV(TransportCrypto.GCM_IV_LENGTH), this.getAad(), this.getPayload());
+        } else {
+            decrypted = crypto.cbc(Cipher.DECRYPT_MODE, this.generateIV(), this.getPayload());
+        }
         this.payload = new String(decrypted, StandardCharsets.UTF_8);
         log.debug("Decrypted payload: " + this.payload);
         this.isEncrypted = false;
@@ -595,12 +666,31 @@ public class CouplingApiMessage extends GsonMessage {
             log.debug("No key to encrypt with.");
             throw new IOException("Encryption failed. Missing encryption key.");
         }
+        this.encrypt(new TransportCrypto(aesKey, null));
+    }
+
+    /**
+     * Encrypt this message with a reusable crypto context
+     * @param crypto Crypto context of the transport keys
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public void encrypt(final TransportCrypto crypto) throws GeneralSecurityException, IOException {
+        
+        if (!MusapTransportEncryption.shouldEncrypt(this)) {
+            return;
+        }
         if (log.isTraceEnabled()) {
             log.trace("Encrypting payload: " + this.payload);
         }
-        Cipher cipher    = this.initCipher(Cipher.ENCRYPT_MODE, aesKey);
-        byte[] encrypted = cipher.doFinal(this.getPayload());
+        final byte[] encrypted;
+        if (crypto.isAead()) {
+            encrypted = crypto.gcm(Cipher.ENCRYPT_MODE, this.generateIV(TransportCrypto.GCM_IV_LENGTH), this.getAad(), this.getPayload());
+        } else {
+            encrypted = crypto.cbc(Cipher.ENCRYPT_MODE, this.generateIV(), this.getPayload());
+        }
         this.payload = Base64.getEncoder().encodeToString(encrypted);
+        this.setDecoded(this.payload, encrypted);
         this.isEncrypted = true;
         
         if (log.isTraceEnabled()) {
@@ -17,6 +17,10 @@ public class EnrollDataReq extends CouplingApiPayload {
     
     @SerializedName("tokendata")
     public String tokendata;
+
+    // Requested transport mode ("cbc-hmac" or "aes-gcm"). Old apps do not send this.
+    @SerializedName("transportmode")
+    public String transportmode;
    
     public static EnrollDataReq fromJson(final String str) {
         return GSON.fromJson(str, EnrollDataReq.class);
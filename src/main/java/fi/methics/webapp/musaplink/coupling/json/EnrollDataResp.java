@@ -10,6 +10,10 @@ public class EnrollDataResp extends CouplingApiPayload {
 
     @SerializedName("musapid")
     public String musapid;
+
+    // Transport mode selected for this MUSAP ID. Not set if transport encryption is not used.
+    @SerializedName("transportmode")
+    public String transportmode;
     
     public EnrollDataResp() { 
         this.status = "success";
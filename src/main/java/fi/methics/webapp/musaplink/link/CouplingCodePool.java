@@ -0,0 +1,171 @@
+package fi.methics.webapp.musaplink.link;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import fi.methics.webapp.musaplink.link.cmd.CmdLink;
+import fi.methics.webapp.musaplink.util.CouplingCode;
+import fi.methics.webapp.musaplink.util.MusapLinkConf;
+import fi.methics.webapp.musaplink.util.db.CouplingStorage;
+
+/**
+ * Pool of pre-generated Link IDs and Coupling Codes with pre-rendered QR codes.
+ * <p>The pool is refilled in the background to the high watermark whenever it drops below the low watermark.
+ * This keeps the database insert and QR rendering off the {@link CmdLink} request thread.
+ * <p>Reserved codes are stored in the database when generated, so they age while pooled.
+ * Codes older than half of the coupling lifetime are dropped instead of handed out.
+ */
+public class CouplingCodePool {
+
+    private static final Log log = LogFactory.getLog(CouplingCodePool.class);
+
+    private static volatile CouplingCodePool instance;
+
+    private final BlockingQueue<ReservedCode> pool;
+    private final int  lowWatermark;
+    private final int  highWatermark;
+    private final long maxAge;
+
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "coupling-code-pool");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private CouplingCodePool(int lowWatermark, int highWatermark, long maxAge) {
+        this.lowWatermark  = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.maxAge        = maxAge;
+        this.pool          = new ArrayBlockingQueue<>(highWatermark);
+    }
+
+    /**
+     * Start the pool if enabled in configuration
+     * @param conf MUSAP Link configuration
+     */
+    public static synchronized void init(MusapLinkConf conf) {
+        if (instance != null) return;
+        if (!conf.isCouplingPoolEnabled()) return;
+
+        int  low    = conf.getCouplingPoolLowWatermark();
+        int  high   = Math.max(Math.max(1, low), conf.getCouplingPoolHighWatermark());
+        long maxAge = conf.getCouplingLifetime() * 1000L / 2;
+        log.info("Starting coupling code pool (low=" + low + ", high=" + high + ")");
+
+        CouplingCodePool pool = new CouplingCodePool(low, high, maxAge);
+        pool.executor.scheduleWithFixedDelay(pool::refill, 0, Math.max(1, maxAge / 4), TimeUnit.MILLISECONDS);
+        instance = pool;
+    }
+
+    /**
+     * Take a reserved Link ID and Coupling Code.
+     * Generates one on the calling thread if the pool is not enabled or is empty.
+     * @return reserved code
+     */
+    public static ReservedCode take() {
+        CouplingCodePool pool = instance;
+        if (pool != null) {
+            ReservedCode code = pool.poll();
+            if (code != null) return code;
+            log.debug("Coupling code pool is empty");
+        }
+        return ReservedCode.generate();
+    }
+
+    /**
+     * Take a code from the pool and trigger a refill if needed
+     * @return reserved code or null if pool is empty
+     */
+    private ReservedCode poll() {
+        ReservedCode code;
+        while ((code = this.pool.poll()) != null) {
+            if (!code.isOlderThan(this.maxAge)) break;
+        }
+        if (this.pool.size() < this.lowWatermark && this.refilling.compareAndSet(false, true)) {
+            try {
+                this.executor.execute(this::refill);
+            } catch (RuntimeException e) {
+                this.refilling.set(false);
+                log.warn("Failed to schedule coupling code pool refill", e);
+            }
+        }
+        return code;
+    }
+
+    /**
+     * Drop aged codes and fill the pool up to the high watermark
+     */
+    private void refill() {
+        try {
+            this.pool.removeIf(code -> code.isOlderThan(this.maxAge));
+            int added = 0;
+            while (this.pool.size() < this.highWatermark) {
+                if (!this.pool.offer(ReservedCode.generate())) break;
+                added++;
+            }
+            if (added > 0) {
+                log.debug("Added " + added + " codes to coupling code pool");
+            }
+        } catch (Exception e) {
+            log.error("Failed to refill coupling code pool", e);
+        } finally {
+            this.refilling.set(false);
+        }
+    }
+
+    /**
+     * A Link ID with a stored Coupling Code and its QR code URL
+     */
+    public static class ReservedCode {
+
+        public final String       linkid;
+        public final CouplingCode code;
+        public final String       qrcode;
+        public final String       qrformat;
+
+        private final long created;
+
+        private ReservedCode(String linkid, CouplingCode code, String qrformat) {
+            this.linkid   = linkid;
+            this.code     = code;
+            this.qrformat = qrformat;
+            this.qrcode   = code.toURL(qrformat);
+            this.created  = System.currentTimeMillis();
+        }
+
+        /**
+         * Generate a new Link ID, store a Coupling Code for it and render the QR code
+         * in the configured default format
+         * @return reserved code
+         */
+        public static ReservedCode generate() {
+            String     linkid = CmdLink.newLinkId();
+            CouplingCode code = CouplingStorage.newCouplingCode(linkid);
+            return new ReservedCode(linkid, code, MusapLinkConf.getInstance().getQRFormat());
+        }
+
+        /**
+         * Get the QR code URL in the given format.
+         * The pre-rendered QR code is used if it has the given format.
+         * @param format QR format
+         * @return QR code URL
+         */
+        public String getQRCode(String format) {
+            if (this.qrformat.equalsIgnoreCase(format)) return this.qrcode;
+            return this.code.toURL(format);
+        }
+
+        private boolean isOlderThan(long age) {
+            return System.currentTimeMillis() - this.created > age;
+        }
+    }
+
+}
@@ -8,9 +8,11 @@ import org.apache.commons.logging.LogFactory;
 
 import com.google.gson.Gson;
 
+import fi.methics.webapp.musaplink.MusapLinkAccount;
 import fi.methics.webapp.musaplink.link.json.MusapReq;
 import fi.methics.webapp.musaplink.link.json.MusapResp;
 import fi.methics.webapp.musaplink.util.GsonMessage;
+import fi.methics.webapp.musaplink.util.MusapException;
 import fi.methics.webapp.musaplink.util.MusapLinkConf;
 
 /**
@@ -53,4 +55,17 @@ public abstract class LinkCommand <REQ extends MusapReq, RESP extends MusapResp>
         return MusapLinkConf.getInstance();
     }
     
+    /**
+     * Fail if FCM or APNs has rejected the push token of the account.
+     * The device cannot be notified until the app sends a new token with updatedata.
+     * @param account MUSAP account
+     * @throws MusapException with {@link MusapResp#ERROR_SSCD_UNREACHABLE} if the token is invalid
+     */
+    protected void checkPushToken(MusapLinkAccount account) {
+        if (account.isPushTokenInvalid()) {
+            log.warn("Push token of " + account.musapid + " is invalid since " + account.tokenInvalidated);
+            throw new MusapException(MusapResp.ERROR_SSCD_UNREACHABLE, "Push token is invalid");
+        }
+    }
+    
 }
@@ -1,16 +1,27 @@
 package fi.methics.webapp.musaplink.link;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.google.gson.JsonObject;
+
 import fi.methics.webapp.musaplink.link.cmd.CmdDocSign;
 import fi.methics.webapp.musaplink.link.cmd.CmdGenerateKey;
 import fi.methics.webapp.musaplink.link.cmd.CmdLink;
@@ -24,13 +35,21 @@ import fi.methics.webapp.musaplink.link.json.MusapLinkReq;
 import fi.methics.webapp.musaplink.link.json.MusapLinkResp;
 import fi.methics.webapp.musaplink.link.json.MusapListKeysReq;
 import fi.methics.webapp.musaplink.link.json.MusapListKeysResp;
+import fi.methics.webapp.musaplink.link.json.MusapResp;
 import fi.methics.webapp.musaplink.link.json.MusapSignReq;
 import fi.methics.webapp.musaplink.link.json.MusapSignResp;
 import fi.methics.webapp.musaplink.link.json.MusapUpdateKeyReq;
 import fi.methics.webapp.musaplink.link.json.MusapUpdateKeyResp;
 import fi.methics.webapp.musaplink.util.MusapLinkConf;
+import fi.methics.webapp.musaplink.util.MusapTransportEncryption;
+import fi.methics.webapp.musaplink.util.db.AccountStorage;
 import fi.methics.webapp.musaplink.util.db.CouplingStorage;
+import fi.methics.webapp.musaplink.util.db.ImportResult;
+import fi.methics.webapp.musaplink.util.db.NonceStorage;
 import fi.methics.webapp.musaplink.util.db.TxnStorage;
+import fi.methics.webapp.musaplink.util.push.PushDispatcher;
+import fi.methics.webapp.musaplink.util.push.PresenceTracker;
+import fi.methics.webapp.musaplink.util.push.PushMetrics;
 
 /**
  * Servlet for communication between AP and MUSAP Link.
@@ -57,6 +76,11 @@ public class MusapLinkServlet {
         log.info("MUSAP Link Servlet initialized");
         TxnStorage.scheduleCleaner(Duration.ofMinutes(1).toMillis());
         CouplingStorage.scheduleCleaner(Duration.ofMinutes(1).toMillis());
+        CouplingCodePool.init(conf);
+        PushDispatcher.init(conf);
+        if (NonceStorage.isEnabled()) {
+            NonceStorage.scheduleMaintenance(Duration.ofMinutes(10).toMillis(), MusapTransportEncryption.NONCE_WINDOW, MusapTransportEncryption.NONCE_SKEW);
+        }
     }
     
     
@@ -127,5 +151,75 @@ public class MusapLinkServlet {
         
         return Response.ok(jResp.toJson()).build();
     }
-    
+
+    /**
+     * Export all accounts as NDJSON.
+     * This operation must be explicitly enabled in configuration.
+     * @return streamed NDJSON response
+     */
+    @GET
+    @Path("/export")
+    @Produces("application/x-ndjson")
+    public Response export() {
+
+        if (!conf.isExportEnabled()) {
+            return MusapResp.createErrorResponse(MusapResp.ERROR_CONFIGURATION);
+        }
+
+        StreamingOutput stream = os -> {
+            Writer out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+            AccountStorage.exportAccounts(out);
+        };
+        return Response.ok(stream).build();
+    }
+
+    /**
+     * Get push notification, nonce store and in-memory map metrics.
+     * This operation must be explicitly enabled in configuration.
+     * @return metrics JSON
+     */
+    @GET
+    @Path("/metrics")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response metrics() {
+
+        if (!conf.isMetricsEnabled()) {
+            return MusapResp.createErrorResponse(MusapResp.ERROR_CONFIGURATION);
+        }
+
+        JsonObject metrics = new JsonObject();
+        metrics.add("push", PushMetrics.toJson());
+        metrics.add("nonces", MusapTransportEncryption.getNonceStore().toJson());
+
+        JsonObject maps = new JsonObject();
+        maps.add("presence",     PresenceTracker.toJson());
+        maps.add("recentwrites", AccountStorage.getRecentWritesJson());
+        metrics.add("maps", maps);
+        return Response.ok(metrics.toString()).build();
+    }
+
+    /**
+     * Bulk import accounts from NDJSON.
+     * This operation must be explicitly enabled in configuration.
+     * @param body NDJSON input
+     * @return import result
+     */
+    @POST
+    @Path("/import")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response importAccounts(InputStream body) {
+
+        if (!conf.isImportEnabled()) {
+            return MusapResp.createErrorResponse(MusapResp.ERROR_CONFIGURATION);
+        }
+
+        try {
+            ImportResult result = AccountStorage.importAccounts(new InputStreamReader(body, StandardCharsets.UTF_8));
+            return Response.ok(result.toJson()).build();
+        } catch (IOException e) {
+            log.error("Failed to read import input", e);
+            return MusapResp.createErrorResponse(MusapResp.ERROR_WRONG_PARAM, e.getMessage());
+        }
+    }
+
 }
@@ -7,6 +7,7 @@ import java.util.concurrent.TimeoutException;
 
 import fi.methics.webapp.musaplink.MusapLinkAccount;
 import fi.methics.webapp.musaplink.MusapLinkAccount.MusapKey;
+import fi.methics.webapp.musaplink.coupling.json.SignatureReq;
 import fi.methics.webapp.musaplink.link.LinkCommand;
 import fi.methics.webapp.musaplink.link.json.MusapDocSignReq;
 import fi.methics.webapp.musaplink.link.json.MusapDocSignReq.DTBS;
@@ -40,6 +41,7 @@ public class CmdDocSign extends LinkCommand<MusapDocSignReq, MusapSignResp> {
         }
 
         log.info("Got /sign request for MUSAP with linkid " + linkid);
+        this.checkPushToken(account);
 
         // Resolve KeyID from keyname
         if (jReq.datachoice == null) {
@@ -56,11 +58,12 @@ public class CmdDocSign extends LinkCommand<MusapDocSignReq, MusapSignResp> {
             }
         }
         
-        SignatureCallback callback = TxnStorage.storeRequest(jReq.linkid, jReq.toCouplingRequest());
+        SignatureReq      signReq  = jReq.toCouplingRequest();
+        SignatureCallback callback = TxnStorage.storeRequest(jReq.linkid, signReq);
         String transid = callback.getTransId();
         String message = jReq.display;
 
-        PushClient.sendPushNotification(account, message);
+        PushClient.sendPushNotification(account, message, transid, signReq);
 
         Callable<MusapSignResp> c = () -> {
             callback.tryAcquire();
@@ -76,15 +79,17 @@ public class CmdDocSign extends LinkCommand<MusapDocSignReq, MusapSignResp> {
         Future<MusapSignResp> future = EXECUTOR.submit(c);
         try {
             MusapSignResp resp = future.get(120, TimeUnit.SECONDS);
-            AccountStorage.upsertKeyDetails(account, new MusapKey(resp));
             TxnStorage.deleteTransaction(transid);
 
             if (resp == null) {
                 throw new MusapException(callback.getError());
             } else {
+                AccountStorage.upsertKeyDetails(account, new MusapKey(resp));
                 log.info("Returning /sign response " + resp.toJson());
                 return resp;
             }
+        } catch (MusapException e) {
+            throw e;
         } catch (TimeoutException e) {
             log.warn("Failed to get signature. Timed out.", e);
             throw new MusapException(MusapResp.ERROR_TIMED_OUT);
@@ -7,6 +7,7 @@ import java.util.concurrent.TimeoutException;
 
 import fi.methics.webapp.musaplink.MusapLinkAccount;
 import fi.methics.webapp.musaplink.MusapLinkAccount.MusapKey;
+import fi.methics.webapp.musaplink.coupling.json.SignatureReq;
 import fi.methics.webapp.musaplink.link.LinkCommand;
 import fi.methics.webapp.musaplink.link.json.MusapGenerateKeyReq;
 import fi.methics.webapp.musaplink.link.json.MusapGenerateKeyResp;
@@ -40,6 +41,7 @@ public class CmdGenerateKey extends LinkCommand<MusapGenerateKeyReq, MusapGenera
         }
 
         log.info("Got /generatekey request for MUSAP with linkid " + linkid);
+        this.checkPushToken(account);
 
         String keyname = jReq.key != null ? jReq.key.keyname : null;
 
@@ -49,12 +51,13 @@ public class CmdGenerateKey extends LinkCommand<MusapGenerateKeyReq, MusapGenera
             }
         }
         
-        SignatureCallback callback = TxnStorage.storeRequest(jReq.linkid, jReq.toSignReq());
+        SignatureReq      signReq  = jReq.toSignReq();
+        SignatureCallback callback = TxnStorage.storeRequest(jReq.linkid, signReq);
 
         String transid = callback.getTransId();
         String message = jReq.display;
 
-        PushClient.sendPushNotification(account, message);
+        PushClient.sendPushNotification(account, message, transid, signReq);
 
         Callable<MusapSignResp> c = () -> {
             callback.tryAcquire();
@@ -88,6 +91,8 @@ public class CmdGenerateKey extends LinkCommand<MusapGenerateKeyReq, MusapGenera
                 log.info("Returning /generatekey response " + resp.toJson());
                 return resp;
             }
+        } catch (MusapException e) {
+            throw e;
         } catch (TimeoutException e) {
             log.warn("Failed to generate key. Timed out.", e);
             throw new MusapException(MusapResp.ERROR_TIMED_OUT);
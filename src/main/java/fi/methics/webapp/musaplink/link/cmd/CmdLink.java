@@ -2,16 +2,19 @@ package fi.methics.webapp.musaplink.link.cmd;
 
 import java.util.UUID;
 
+import fi.methics.webapp.musaplink.link.CouplingCodePool;
+import fi.methics.webapp.musaplink.link.CouplingCodePool.ReservedCode;
 import fi.methics.webapp.musaplink.link.LinkCommand;
 import fi.methics.webapp.musaplink.link.json.MusapLinkReq;
 import fi.methics.webapp.musaplink.link.json.MusapLinkResp;
+import fi.methics.webapp.musaplink.link.json.MusapResp;
 import fi.methics.webapp.musaplink.util.CouplingCode;
 import fi.methics.webapp.musaplink.util.MusapException;
-import fi.methics.webapp.musaplink.util.db.CouplingStorage;
 
 
 /**
- * Link API command for requesting new coupling code and linkid
+ * Link API command for requesting new coupling code and linkid.
+ * Codes are taken from the {@link CouplingCodePool} when it is enabled.
  */
 public class CmdLink extends LinkCommand<MusapLinkReq, MusapLinkResp> {
 
@@ -21,14 +24,24 @@ public class CmdLink extends LinkCommand<MusapLinkReq, MusapLinkResp> {
     
     @Override
     public MusapLinkResp execute() throws MusapException {
+        MusapLinkReq  jReq  = this.getRequest();
         MusapLinkResp jResp = new MusapLinkResp();
         
-        String     linkid = newLinkId();
-        CouplingCode code = CouplingStorage.newCouplingCode(linkid);
+        String format = this.getConfig().getQRFormat();
+        if (jReq != null && jReq.qrformat != null) {
+            format = jReq.qrformat.toLowerCase();
+        }
+        if (!CouplingCode.isSupportedFormat(format)) {
+            log.error("Unsupported QR format " + format);
+            throw new MusapException(MusapResp.ERROR_WRONG_PARAM);
+        }
         
-        jResp.linkid       = linkid;
-        jResp.couplingcode = code.getCode();
-        jResp.qrcode       = code.toURL();
+        ReservedCode reserved = CouplingCodePool.take();
+        
+        jResp.linkid       = reserved.linkid;
+        jResp.couplingcode = reserved.code.getCode();
+        jResp.qrcode       = reserved.getQRCode(format);
+        jResp.qrformat     = format;
         return jResp;
     }
 
@@ -1,5 +1,13 @@
 package fi.methics.webapp.musaplink.link.json;
 
+import com.google.gson.annotations.SerializedName;
+
 public class MusapLinkReq extends MusapReq {
 
+    /**
+     * Requested QR code format: "png" or "svg". Optional.
+     */
+    @SerializedName("qrformat")
+    public String qrformat;
+
 }
@@ -12,5 +12,8 @@ public class MusapLinkResp extends MusapResp  {
 
     @SerializedName("qrcode")
     public String qrcode;    
+
+    @SerializedName("qrformat")
+    public String qrformat;
     
 }
@@ -0,0 +1,379 @@
+package fi.methics.webapp.musaplink.util;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Thread-safe map whose entries expire after a lifetime.
+ *
+ * <p>The map needs no external synchronization.
+ * Expiry is tracked with a hashed timing wheel: each entry is put into the wheel slot of its
+ * expiry tick, and a background task sweeps one slot per tick. Inserts and expiry are O(1)
+ * amortized, and reads never scan. Reads also check the expiry time of the entry, so an entry
+ * is never returned after its lifetime even if the sweep has not reached it yet.
+ *
+ * <p>Features:
+ * <ul>
+ * <li>Default lifetime, and per-entry lifetime with {@link #put(Object, Object, long)}
+ * <li>Optional max size. When full, entries closest to expiry are evicted first.
+ * <li>Hit, miss, expiry and eviction counters
+ * </ul>
+ * <p>{@link #size()} may include entries that expired less than one tick ago.
+ * {@link #entrySet()} returns a snapshot.
+ * <p>Call {@link #close()} to stop the background sweep of a map that is no longer used.
+ */
+public class ConcurrentExpirableMap<K,V> extends AbstractMap<K,V> {
+
+    private static final Log log = LogFactory.getLog(ConcurrentExpirableMap.class);
+
+    private static final int  WHEEL_SIZE = 512;
+    private static final long MIN_TICK   = 10;
+    private static final long MAX_TICK   = 1000;
+
+    // Shared by all maps. Sweeping is cheap, so one thread is enough.
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "expirable-map-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ConcurrentHashMap<K, Node<K,V>> objects = new ConcurrentHashMap<>();
+    private final Queue<Node<K,V>>[] wheel;
+    private final long tick;
+    private final int  maxSize;
+    private volatile long defaultLifetime;
+
+    // Last swept tick. Only modified by the sweep, which is never run concurrently.
+    private long sweptTick;
+    private final ScheduledFuture<?> sweep;
+
+    private final LongAdder hits      = new LongAdder();
+    private final LongAdder misses    = new LongAdder();
+    private final LongAdder expired   = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Create a new map without a size bound
+     * @param lifetime Default lifetime of entries (milliseconds)
+     */
+    public ConcurrentExpirableMap(final long lifetime) {
+        this(lifetime, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Create a new map without a size bound
+     * @param lifetime Default lifetime of entries
+     */
+    public ConcurrentExpirableMap(final Interval lifetime) {
+        this(lifetime.toMillis(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Create a new map
+     * @param lifetime Default lifetime of entries (milliseconds)
+     * @param maxSize  Max number of entries
+     */
+    public ConcurrentExpirableMap(final long lifetime, final int maxSize) {
+        this(lifetime, maxSize, Math.max(MIN_TICK, Math.min(MAX_TICK, lifetime / 64)));
+    }
+
+    /**
+     * Create a new map
+     * @param lifetime Default lifetime of entries (milliseconds)
+     * @param maxSize  Max number of entries
+     * @param tick     Sweep interval (milliseconds). Expired entries are removed within one tick.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentExpirableMap(final long lifetime, final int maxSize, final long tick) {
+        this.defaultLifetime = lifetime;
+        this.maxSize = maxSize;
+        this.tick    = Math.max(1, tick);
+        this.wheel   = new Queue[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            this.wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.sweptTick = System.currentTimeMillis() / this.tick - 1;
+        this.sweep = SWEEPER.scheduleAtFixedRate(this::sweep, this.tick, this.tick, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public V get(final Object key) {
+        Node<K,V> node = this.getLive(key);
+        if (node == null) {
+            this.misses.increment();
+            return null;
+        }
+        this.hits.increment();
+        return node.value;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        if (this.getLive(key) == null) {
+            this.misses.increment();
+            return false;
+        }
+        this.hits.increment();
+        return true;
+    }
+
+    @Override
+    public V put(final K key, final V value) {
+        return this.put(key, value, this.defaultLifetime);
+    }
+
+    /**
+     * Put an entry with its own lifetime
+     * @param key      Key
+     * @param value    Value (may be null)
+     * @param lifetime Lifetime (milliseconds)
+     * @return previous live value or null
+     */
+    public V put(final K key, final V value, final long lifetime) {
+        final Node<K,V> node = new Node<>(key, value, System.currentTimeMillis() + lifetime);
+        final Node<K,V> old  = this.objects.put(key, node);
+        this.schedule(node);
+        if (old != null) old.dead = true;
+        if (this.objects.size() > this.maxSize) {
+            this.evict();
+        }
+        return old != null && !old.isExpired(System.currentTimeMillis()) ? old.value : null;
+    }
+
+    @Override
+    public V remove(final Object key) {
+        final Node<K,V> old = this.objects.remove(key);
+        if (old == null) return null;
+        old.dead = true;
+        return old.isExpired(System.currentTimeMillis()) ? null : old.value;
+    }
+
+    @Override
+    public void clear() {
+        for (Node<K,V> node : this.objects.values()) {
+            node.dead = true;
+        }
+        this.objects.clear();
+        for (Queue<Node<K,V>> slot : this.wheel) {
+            slot.clear();
+        }
+    }
+
+    @Override
+    public int size() {
+        return this.objects.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.objects.isEmpty();
+    }
+
+    @Override
+    public Set<Entry<K,V>> entrySet() {
+        final long now = System.currentTimeMillis();
+        final Map<K,V> snapshot = new HashMap<>();
+        for (Node<K,V> node : this.objects.values()) {
+            if (!node.isExpired(now)) snapshot.put(node.key, node.value);
+        }
+        return Collections.unmodifiableMap(snapshot).entrySet();
+    }
+
+    /**
+     * Set default lifetime. This overrides the value given in constructor.
+     * Does not change the lifetime of existing entries.
+     * @param lifetime Lifetime in milliseconds
+     */
+    public void setDefaultTime(final long lifetime) {
+        this.defaultLifetime = lifetime;
+    }
+
+    /**
+     * Stop the background sweep and clear this map
+     */
+    public void close() {
+        this.sweep.cancel(false);
+        this.clear();
+    }
+
+    /**
+     * @return number of successful {@link #get(Object)} and {@link #containsKey(Object)} calls
+     */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return number of {@link #get(Object)} and {@link #containsKey(Object)} calls that found no live entry
+     */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return number of entries removed because their lifetime ended
+     */
+    public long getExpiredCount() {
+        return this.expired.sum();
+    }
+
+    /**
+     * @return number of entries removed because the map was full
+     */
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * Get size and counters as JSON
+     * @return metrics JSON
+     */
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("size",      this.size());
+        json.addProperty("hits",      this.getHitCount());
+        json.addProperty("misses",    this.getMissCount());
+        json.addProperty("expired",   this.getExpiredCount());
+        json.addProperty("evictions", this.getEvictionCount());
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrentExpirableMap{size=" + this.size()
+            + ", hits="      + this.getHitCount()
+            + ", misses="    + this.getMissCount()
+            + ", expired="   + this.getExpiredCount()
+            + ", evictions=" + this.getEvictionCount() + "}";
+    }
+
+    /**
+     * Get the node of a key if it has not expired. Removes the node if it has expired.
+     * @param key Key
+     * @return live node or null
+     */
+    private Node<K,V> getLive(final Object key) {
+        if (key == null) return null;
+        final Node<K,V> node = this.objects.get(key);
+        if (node == null) return null;
+        if (node.isExpired(System.currentTimeMillis())) {
+            this.expire(node);
+            return null;
+        }
+        return node;
+    }
+
+    /**
+     * Put a node into the wheel slot of its expiry tick
+     * @param node Node
+     */
+    private void schedule(final Node<K,V> node) {
+        this.wheel[(int) ((node.expires / this.tick) & (WHEEL_SIZE - 1))].offer(node);
+    }
+
+    /**
+     * Remove an expired node, unless it has already been replaced
+     * @param node Node
+     */
+    private void expire(final Node<K,V> node) {
+        if (this.objects.remove(node.key, node)) {
+            node.dead = true;
+            this.expired.increment();
+        }
+    }
+
+    /**
+     * Sweep the wheel slots of all ticks that have fully passed since the last sweep.
+     * Nodes that expire on a later rotation of the wheel are put back into their slot.
+     */
+    private void sweep() {
+        try {
+            final long now     = System.currentTimeMillis();
+            final long current = now / this.tick;
+            final long first   = Math.max(this.sweptTick + 1, current - WHEEL_SIZE);
+            for (long t = first; t < current; t++) {
+                this.sweepSlot(this.wheel[(int) (t & (WHEEL_SIZE - 1))], now);
+            }
+            this.sweptTick = current - 1;
+        } catch (RuntimeException e) {
+            log.warn("Expirable map sweep failed", e);
+        }
+    }
+
+    private void sweepSlot(final Queue<Node<K,V>> slot, final long now) {
+        final List<Node<K,V>> pending = new ArrayList<>();
+        Node<K,V> node;
+        while ((node = slot.poll()) != null) {
+            pending.add(node);
+        }
+        for (Node<K,V> n : pending) {
+            if (n.dead) continue;
+            if (n.isExpired(now)) {
+                this.expire(n);
+            } else {
+                slot.offer(n);
+            }
+        }
+    }
+
+    /**
+     * Evict entries until this map is within its size bound.
+     * Starts from the slots that are swept next, so the entries closest to expiry go first.
+     */
+    private void evict() {
+        final long current = System.currentTimeMillis() / this.tick;
+        for (int i = 0; i < WHEEL_SIZE && this.objects.size() > this.maxSize; i++) {
+            final Queue<Node<K,V>> slot = this.wheel[(int) ((current + i) & (WHEEL_SIZE - 1))];
+            Node<K,V> node;
+            while (this.objects.size() > this.maxSize && (node = slot.poll()) != null) {
+                if (node.dead) continue;
+                if (this.objects.remove(node.key, node)) {
+                    node.dead = true;
+                    this.evictions.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Map entry with its expiry time
+     */
+    private static class Node<K,V> {
+
+        private final K    key;
+        private final V    value;
+        private final long expires;
+
+        // Set when the node has been removed or replaced, so that the wheel can skip it
+        private volatile boolean dead;
+
+        Node(final K key, final V value, final long expires) {
+            this.key     = key;
+            this.value   = value;
+            this.expires = expires;
+        }
+
+        boolean isExpired(final long now) {
+            return this.expires <= now;
+        }
+    }
+
+}
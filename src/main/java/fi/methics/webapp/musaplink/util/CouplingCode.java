@@ -1,37 +1,49 @@
 package fi.methics.webapp.musaplink.util;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.EnumMap;
 import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
 
-import javax.imageio.ImageIO;
-
-import com.google.zxing.BarcodeFormat;
 import com.google.zxing.EncodeHintType;
 import com.google.zxing.WriterException;
-import com.google.zxing.common.BitMatrix;
-import com.google.zxing.qrcode.QRCodeWriter;
 import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.encoder.ByteMatrix;
+import com.google.zxing.qrcode.encoder.Encoder;
 
 /**
  * Class representing a Coupling Code.
  * 
  * A Coupling Code is generated in {@link CmdLink} and held in a database for a short period of time.
  * User must input the coupling code in their MUSAP app in order to bind their MUSAP app to this MUSAP Link.
+ * 
+ * <p>QR codes are rendered straight from the ZXing module matrix, either as a 1-bit grayscale PNG
+ * or as SVG. No AWT or ImageIO is needed.
  */
 public class CouplingCode {
 
-    public static final String BASE64_URL_MARKER = "data:image/png;base64,";
+    public static final String FORMAT_PNG = "png";
+    public static final String FORMAT_SVG = "svg";
+
+    public static final String BASE64_URL_MARKER     = "data:image/png;base64,";
+    public static final String BASE64_SVG_URL_MARKER = "data:image/svg+xml;base64,";
     public static final String CHARS = "23456789ABCDEFGHJKLMNPQRSTUVWXYZ";
 
     private static final SecureRandom RANDOM = new SecureRandom();
     
+    // QR image size in pixels and quiet zone in modules
+    private static final int QR_SIZE   = 250;
+    private static final int QR_MARGIN = 1;
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    
     public String code;
     
     /**
@@ -58,57 +70,164 @@ public class CouplingCode {
     }
     
     /**
-     * Create a QR code out of this CouplingCode
+     * Check if the given QR output format is supported
+     * @param format Format name
+     * @return true for {@link #FORMAT_PNG} and {@link #FORMAT_SVG}
+     */
+    public static boolean isSupportedFormat(String format) {
+        return FORMAT_PNG.equalsIgnoreCase(format) || FORMAT_SVG.equalsIgnoreCase(format);
+    }
+    
+    /**
+     * Create a QR code PNG image out of this CouplingCode.
+     * <p>The image is at most 250x250 pixels, scaled by a whole number of pixels per module.
      * @return QR image bytes
-     * @throws IOException     if QR writing fails for any ImageIO reason
+     * @throws IOException     if PNG writing fails
      * @throws WriterException if QR writing fails for any ZXing related reason
      */
     public byte[] toQRImage() throws IOException, WriterException 
     {
-        Map<EncodeHintType, Object> hintMap = new EnumMap<>(EncodeHintType.class);
-        hintMap.put(EncodeHintType.CHARACTER_SET, "UTF-8");
-        hintMap.put(EncodeHintType.MARGIN, Integer.valueOf(1));
-        hintMap.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.H);
+        ByteMatrix matrix  = this.encode();
+        int        modules = matrix.getWidth() + 2 * QR_MARGIN;
+        int        scale   = Math.max(1, QR_SIZE / modules);
+        int        size    = modules * scale;
+        int        stride  = 1 + (size + 7) / 8; // filter byte + packed pixels
 
-        QRCodeWriter writer = new QRCodeWriter();
-        BitMatrix    matrix = writer.encode(this.getCode(), BarcodeFormat.QR_CODE, 250, 250, hintMap);
-        int          width  = matrix.getWidth();
-        int          height = matrix.getHeight();
+        // Raw PNG scanlines. Bit 1 is white, bit 0 is black.
+        byte[] raw = new byte[stride * size];
+        Arrays.fill(raw, (byte) 0xFF);
+        int pos = 0;
+        for (int my = 0; my < modules; my++) {
+            int row = pos;
+            raw[row] = 0; // filter type None
+            int y = my - QR_MARGIN;
+            if (y >= 0 && y < matrix.getHeight()) {
+                for (int x = 0; x < matrix.getWidth(); x++) {
+                    if (matrix.get(x, y) != 1) continue;
+                    int px = (x + QR_MARGIN) * scale;
+                    for (int i = px; i < px + scale; i++) {
+                        raw[row + 1 + (i >> 3)] &= ~(0x80 >>> (i & 7));
+                    }
+                }
+            }
+            pos += stride;
+            for (int i = 1; i < scale; i++) {
+                System.arraycopy(raw, row, raw, pos, stride);
+                pos += stride;
+            }
+        }
 
-        BufferedImage image = new BufferedImage(width, width, BufferedImage.TYPE_BYTE_BINARY);
-        image.createGraphics();
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(idat)) {
+            deflater.write(raw);
+        }
+
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream(13);
+        DataOutputStream header = new DataOutputStream(ihdr);
+        header.writeInt(size);
+        header.writeInt(size);
+        header.writeByte(1); // bit depth
+        header.writeByte(0); // color type grayscale
+        header.writeByte(0); // compression
+        header.writeByte(0); // filter
+        header.writeByte(0); // no interlace
 
-        Graphics2D graphics = (Graphics2D) image.getGraphics();
-        graphics.setColor(Color.WHITE);
-        graphics.fillRect(0, 0, width, height);
-        graphics.setColor(Color.BLACK);
+        ByteArrayOutputStream os = new ByteArrayOutputStream(idat.size() + 64);
+        DataOutputStream png = new DataOutputStream(os);
+        png.write(PNG_SIGNATURE);
+        writeChunk(png, "IHDR", ihdr.toByteArray());
+        writeChunk(png, "IDAT", idat.toByteArray());
+        writeChunk(png, "IEND", new byte[0]);
+        png.flush();
+        return os.toByteArray();
+    }
+    
+    /**
+     * Create a QR code SVG image out of this CouplingCode.
+     * <p>Dark modules are drawn as one path with a rectangle per horizontal run.
+     * @return SVG document
+     * @throws WriterException if QR writing fails for any ZXing related reason
+     */
+    public String toQRSvg() throws WriterException {
+        ByteMatrix matrix  = this.encode();
+        int        modules = matrix.getWidth() + 2 * QR_MARGIN;
 
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < width; j++) {
-                if (matrix.get(i, j)) {
-                    graphics.fillRect(i, j, 1, 1);
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"0 0 ").append(modules).append(' ').append(modules)
+          .append("\" width=\"").append(QR_SIZE).append("\" height=\"").append(QR_SIZE)
+          .append("\" shape-rendering=\"crispEdges\">");
+        sb.append("<rect width=\"100%\" height=\"100%\" fill=\"#fff\"/><path fill=\"#000\" d=\"");
+        for (int y = 0; y < matrix.getHeight(); y++) {
+            int x = 0;
+            while (x < matrix.getWidth()) {
+                if (matrix.get(x, y) != 1) {
+                    x++;
+                    continue;
                 }
+                int start = x;
+                while (x < matrix.getWidth() && matrix.get(x, y) == 1) x++;
+                int run = x - start;
+                sb.append('M').append(start + QR_MARGIN).append(' ').append(y + QR_MARGIN)
+                  .append('h').append(run).append("v1h-").append(run).append('z');
             }
         }
-        try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
-            ImageIO.write(image, "png", os);
-            os.flush();
-            return os.toByteArray();
-        }
+        sb.append("\"/></svg>");
+        return sb.toString();
     }
     
     /**
-     * Convert this to a QR URL (data:image/png;base64,...)
+     * Convert this to a PNG QR URL (data:image/png;base64,...)
      * @return QR URL or null if QR cannot be created
      */
     public String toURL() {
+        return this.toURL(FORMAT_PNG);
+    }
+    
+    /**
+     * Convert this to a QR URL in the given format
+     * (data:image/png;base64,... or data:image/svg+xml;base64,...)
+     * @param format {@link #FORMAT_PNG} or {@link #FORMAT_SVG}
+     * @return QR URL or null if QR cannot be created
+     */
+    public String toURL(String format) {
         try {
+            if (FORMAT_SVG.equalsIgnoreCase(format)) {
+                return BASE64_SVG_URL_MARKER + Base64.getEncoder().encodeToString(this.toQRSvg().getBytes(StandardCharsets.UTF_8));
+            }
             return BASE64_URL_MARKER + Base64.getEncoder().encodeToString(this.toQRImage());
         } catch (Exception e) {
             return null;
         }
     }
     
+    /**
+     * Encode this coupling code to a QR module matrix (without quiet zone)
+     * @return module matrix where 1 is a dark module
+     * @throws WriterException if QR writing fails
+     */
+    private ByteMatrix encode() throws WriterException {
+        Map<EncodeHintType, Object> hintMap = new EnumMap<>(EncodeHintType.class);
+        hintMap.put(EncodeHintType.CHARACTER_SET, "UTF-8");
+        return Encoder.encode(this.getCode(), ErrorCorrectionLevel.H, hintMap).getMatrix();
+    }
+    
+    /**
+     * Write a PNG chunk
+     * @param out  Output
+     * @param type Chunk type
+     * @param data Chunk data
+     * @throws IOException
+     */
+    private static void writeChunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
 
     private static String getRandomString(int len){
        StringBuilder sb = new StringBuilder(len);
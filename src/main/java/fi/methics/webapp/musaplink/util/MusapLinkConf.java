@@ -15,6 +15,7 @@ import org.apache.commons.logging.LogFactory;
 import fi.methics.webapp.musaplink.util.etsi204.Etsi204Client;
 import fi.methics.webapp.musaplink.util.etsi204.Etsi204Client.ClientType;
 import fi.methics.webapp.musaplink.util.etsi204.Etsi204ClientBuilder;
+import fi.methics.webapp.musaplink.util.etsi204.Etsi204ClientRegistry;
 import fi.methics.webapp.musaplink.util.push.ApnsConfig;
 import fi.methics.webapp.musaplink.util.push.FcmConfig;
 
@@ -34,6 +35,8 @@ public class MusapLinkConf {
     private FcmConfig  fcmConfig;
     private ApnsConfig apnsConfig;
     
+    private Etsi204ClientRegistry clients;
+    
     private MusapLinkConf(String filename) {
         this.home = System.getProperty("CATALINA_HOME");
         if (this.home == null) this.home = "";
@@ -43,6 +46,7 @@ public class MusapLinkConf {
         this.properties  = readProperties(this.filename);
         this.fcmConfig   = new FcmConfig(this.properties, PREFIX);
         this.apnsConfig  = new ApnsConfig(this.properties, PREFIX);
+        this.clients     = new Etsi204ClientRegistry(this.buildClients());
     }
     
     public static MusapLinkConf getInstance() {
@@ -84,6 +88,63 @@ public class MusapLinkConf {
         return this.properties.getProperty(PREFIX + "db.driver.class", "org.sqlite.JDBC");
     }
 
+    /**
+     * Get the read-only replica JDBC URL
+     * @return JDBC URL or null if no replica is configured
+     */
+    public String getDbReplicaUrl() {
+        return this.properties.getProperty(PREFIX + "db.replica.url");
+    }
+
+    /**
+     * Get the read-only replica DB username
+     * @return DB username. Defaults to {@link #getDbUsername()}.
+     */
+    public String getDbReplicaUsername() {
+        return this.properties.getProperty(PREFIX + "db.replica.username", this.getDbUsername());
+    }
+
+    /**
+     * Get the read-only replica DB password
+     * @return DB password. Defaults to {@link #getDbPassword()}.
+     */
+    public String getDbReplicaPassword() {
+        return this.properties.getProperty(PREFIX + "db.replica.password", this.getDbPassword());
+    }
+
+    /**
+     * Get the time in seconds after a write during which reads of the written data go to the primary DB
+     * instead of the replica. This should exceed the expected replication lag.
+     * @return write window in seconds (default 10)
+     */
+    public int getDbReplicaWriteWindow() {
+        try {
+            return Integer.parseInt(this.properties.getProperty(PREFIX + "db.replica.writewindow", "10"));
+        } catch (NumberFormatException e) {
+            return 10;
+        }
+    }
+
+    /**
+     * Get the storage type. Supported values are:
+     * <ul>
+     * <li>jdbc   - Store everything in the configured database (default)
+     * <li>memory - Store everything in memory. Data is lost on restart and is not shared between nodes.
+     * </ul>
+     * @return storage type
+     */
+    public String getStorageType() {
+        return this.properties.getProperty(PREFIX + "storage.type", "jdbc").trim();
+    }
+
+    /**
+     * Is in-memory storage enabled instead of JDBC storage?
+     * @return true if {@link #getStorageType()} is "memory"
+     */
+    public boolean isMemoryStorageEnabled() {
+        return "memory".equalsIgnoreCase(this.getStorageType());
+    }
+
     /**
      * Get the FCM push notification configuration
      * @return FCM config
@@ -130,6 +191,31 @@ public class MusapLinkConf {
      * @return Signature clients
      */
     public List<Etsi204Client> getClients() {
+        return this.clients.getClients();
+    }
+    
+    /**
+     * Get a client for an external SSCD with given SSCD ID
+     * @param clientid Client ID
+     * @return Client if found, null otherwise
+     */
+    public Etsi204Client getClient(String clientid) {
+        return this.clients.get(clientid);
+    }
+    
+    /**
+     * Get the ClientIDs of the configured signature clients
+     * @return ClientIDs
+     */
+    public List<String> getClientIds() {
+        return this.clients.getClientIds();
+    }
+    
+    /**
+     * Build the configured signature clients
+     * @return Signature clients
+     */
+    private List<Etsi204Client> buildClients() {
         List<Etsi204Client> clients = new ArrayList<>();
         
         // Find SSCDs with suffix 1-10
@@ -159,6 +245,14 @@ public class MusapLinkConf {
                 boolean enableNospam   = Boolean.valueOf(this.properties.getProperty(PREFIX + "client.nospam.enabled" + i));
                 boolean enableEventid  = Boolean.valueOf(this.properties.getProperty(PREFIX + "client.eventid.enabled." + i));
                 boolean enableUserLang = Boolean.valueOf(this.properties.getProperty(PREFIX + "client.userlang.enabled." + i));
+                boolean enableAsynch   = "asynch".equalsIgnoreCase(this.properties.getProperty(PREFIX + "client.messagingmode." + i));
+                
+                int maxThreads = Etsi204Client.DEFAULT_THREADS;
+                try {
+                    maxThreads = Integer.parseInt(this.properties.getProperty(PREFIX + "client.threads." + i, String.valueOf(maxThreads)));
+                } catch (NumberFormatException e) {
+                    log.warn("Invalid client.threads." + i + ". Using " + maxThreads);
+                }
 
                 ClientType clientType = ClientType.fromString(this.properties.getProperty(PREFIX + "client.type." + i));
                 
@@ -181,6 +275,8 @@ public class MusapLinkConf {
                         .withEventIdEnabled(enableEventid)
                         .withNospamEnabled(enableNospam)
                         .withUserLangEnabled(enableUserLang)
+                        .withAsynchEnabled(enableAsynch)
+                        .withMaxThreads(maxThreads)
                         .withClientType(clientType)
                         .build());
             } catch (Exception e) {
@@ -191,22 +287,6 @@ public class MusapLinkConf {
         return clients;
     }
     
-    /**
-     * Get a client for an external SSCD with given SSCD ID
-     * @param clientid Client ID
-     * @return Client if found, null otherwise
-     */
-    public Etsi204Client getClient(String clientid) {
-        if (clientid == null) return null;
-        for (Etsi204Client client : this.getClients()) {
-            if (client == null) continue;
-            if (clientid.equals(client.getClientId())) {
-                return client;
-            }
-        }
-        return null;
-    }
-    
     /**
      * Read Java properties from given file
      * @param filename Name of the file
@@ -259,6 +339,87 @@ public class MusapLinkConf {
         }
     }
     
+    /**
+     * Get the max number of accounts whose transport keys are cached in memory
+     * @return transport key cache size (default 10000)
+     */
+    public int getTransportKeyCacheSize() {
+        try {
+            return Integer.parseInt(this.properties.getProperty(PREFIX + "transport.keycache.size", "10000"));
+        } catch (NumberFormatException e) {
+            return 10000;
+        }
+    }
+
+    /**
+     * Get the max number of used nonces kept in memory for replay protection
+     * @return nonce store size (default 1000000)
+     */
+    public int getNonceStoreSize() {
+        try {
+            return Integer.parseInt(this.properties.getProperty(PREFIX + "nonce.store.size", "1000000"));
+        } catch (NumberFormatException e) {
+            return 1000000;
+        }
+    }
+
+    /**
+     * Should used nonces also be stored in the database, so that replay protection covers all nodes?
+     * @return true if the shared nonce store is enabled (default false)
+     */
+    public boolean isSharedNonceStoreEnabled() {
+        return Boolean.valueOf(this.properties.getProperty(PREFIX + "nonce.shared.enabled", "false"));
+    }
+
+    /**
+     * Should AES-GCM transport encryption be offered to apps that request it at enrollment?
+     * @return true if AES-GCM is enabled (default true)
+     */
+    public boolean isTransportGcmEnabled() {
+        return Boolean.valueOf(this.properties.getProperty(PREFIX + "transport.gcm.enabled", "true"));
+    }
+
+    /**
+     * Get the default QR code format returned by /link when the request does not specify one
+     * @return "png" (default) or "svg"
+     */
+    public String getQRFormat() {
+        String format = this.properties.getProperty(PREFIX + "coupling.qr.format", CouplingCode.FORMAT_PNG).trim().toLowerCase();
+        return CouplingCode.isSupportedFormat(format) ? format : CouplingCode.FORMAT_PNG;
+    }
+
+    /**
+     * Is the pre-generated coupling code pool enabled? Default is false.
+     * @return true if the pool is enabled
+     */
+    public boolean isCouplingPoolEnabled() {
+        return Boolean.valueOf(this.properties.getProperty(PREFIX + "coupling.pool.enabled", "false"));
+    }
+
+    /**
+     * Get the coupling code pool low watermark. The pool is refilled when it has fewer codes than this.
+     * @return low watermark (default 50)
+     */
+    public int getCouplingPoolLowWatermark() {
+        try {
+            return Integer.parseInt(this.properties.getProperty(PREFIX + "coupling.pool.low", "50"));
+        } catch (NumberFormatException e) {
+            return 50;
+        }
+    }
+
+    /**
+     * Get the coupling code pool high watermark. The pool is refilled up to this many codes.
+     * @return high watermark (default 200)
+     */
+    public int getCouplingPoolHighWatermark() {
+        try {
+            return Integer.parseInt(this.properties.getProperty(PREFIX + "coupling.pool.high", "200"));
+        } catch (NumberFormatException e) {
+            return 200;
+        }
+    }
+
     /**
      * Get the transaction lifetime in seconds
      * @return transaction lifetime (default 600)
@@ -278,5 +439,174 @@ public class MusapLinkConf {
     public boolean isListKeysEnabled() {
         return Boolean.valueOf(this.properties.getProperty(PREFIX + "listkeys.enabled", "false"));
     }
-    
+
+    /**
+     * Is the account export Link API operation enabled? Default is false.
+     * @return true if export is enabled.
+     */
+    public boolean isExportEnabled() {
+        return Boolean.valueOf(this.properties.getProperty(PREFIX + "export.enabled", "false"));
+    }
+
+    /**
+     * Get the number of accounts read from storage at a time during export
+     * @return export page size (default 1000)
+     */
+    public int getExportPageSize() {
+        try {
+            int pageSize = Integer.parseInt(this.properties.getProperty(PREFIX + "export.pagesize", "1000"));
+            return pageSize > 0 ? pageSize : 1000;
+        } catch (NumberFormatException e) {
+            return 1000;
+        }
+    }
+
+    /**
+     * Is the bulk account import Link API operation enabled? Default is false.
+     * @return true if import is enabled.
+     */
+    public boolean isImportEnabled() {
+        return Boolean.valueOf(this.properties.getProperty(PREFIX + "import.enabled", "false"));
+    }
+
+    /**
+     * Get the number of accounts stored at a time during bulk import
+     * @return import batch size (default 1000)
+     */
+    public int getImportBatchSize() {
+        try {
+            int batchSize = Integer.parseInt(this.properties.getProperty(PREFIX + "import.batchsize", "1000"));
+            return batchSize > 0 ? batchSize : 1000;
+        } catch (NumberFormatException e) {
+            return 1000;
+        }
+    }
+
+    /**
+     * Should bulk import use PostgreSQL COPY when available? Default is true.
+     * If false, or if the database is not PostgreSQL, JDBC batch inserts are used.
+     * @return true if COPY is enabled.
+     */
+    public boolean isImportCopyEnabled() {
+        return Boolean.valueOf(this.properties.getProperty(PREFIX + "import.copy.enabled", "true"));
+    }
+
+    /**
+     * Get the max number of push notification jobs waiting to be sent
+     * @return push queue size (default 1000)
+     */
+    public int getPushQueueSize() {
+        try {
+            return Integer.parseInt(this.properties.getProperty(PREFIX + "push.queue.size", "1000"));
+        } catch (NumberFormatException e) {
+            return 1000;
+        }
+    }
+
+    /**
+     * Get the number of push notification worker threads
+     * @return push worker threads (default 4)
+     */
+    public int getPushThreads() {
+        try {
+            return Integer.parseInt(this.properties.getProperty(PREFIX + "push.threads", "4"));
+        } catch (NumberFormatException e) {
+            return 4;
+        }
+    }
+
+    /**
+     * Get the max number of times a push notification is retried after a temporary failure
+     * @return push retries (default 3)
+     */
+    public int getPushRetries() {
+        try {
+            return Integer.parseInt(this.properties.getProperty(PREFIX + "push.retries", "3"));
+        } catch (NumberFormatException e) {
+            return 3;
+        }
+    }
+
+    /**
+     * Get the delay before the first push notification retry in milliseconds.
+     * The delay doubles on each retry.
+     * @return push retry backoff (default 1000)
+     */
+    public int getPushBackoff() {
+        try {
+            return Integer.parseInt(this.properties.getProperty(PREFIX + "push.backoff", "1000"));
+        } catch (NumberFormatException e) {
+            return 1000;
+        }
+    }
+
+    /**
+     * Get the push coalescing window in milliseconds. Pushes to the same device within the window
+     * are merged into one. 0 disables coalescing.
+     * @return push coalescing window (default 2000)
+     */
+    public int getPushCoalesceWindow() {
+        try {
+            return Integer.parseInt(this.properties.getProperty(PREFIX + "push.coalesce.window", "2000"));
+        } catch (NumberFormatException e) {
+            return 2000;
+        }
+    }
+
+    /**
+     * Get the push presence window in milliseconds. A device that has polled for requests within
+     * the window is considered active. 0 disables presence tracking.
+     * @return push presence window (default 10000)
+     */
+    public int getPushPresenceWindow() {
+        try {
+            return Integer.parseInt(this.properties.getProperty(PREFIX + "push.presence.window", "10000"));
+        } catch (NumberFormatException e) {
+            return 10000;
+        }
+    }
+
+    /**
+     * Get the push presence grace period in milliseconds. A push to an active device is sent only
+     * if the device has not picked up the request within the grace period.
+     * @return push presence grace period (default 3000)
+     */
+    public int getPushPresenceGrace() {
+        try {
+            return Integer.parseInt(this.properties.getProperty(PREFIX + "push.presence.grace", "3000"));
+        } catch (NumberFormatException e) {
+            return 3000;
+        }
+    }
+
+    /**
+     * Should small sign requests be sent inside the push notification?
+     * The request is transport encrypted with the keys of the account.
+     * @return true if data push is enabled (default false)
+     */
+    public boolean isPushDataEnabled() {
+        return Boolean.valueOf(this.properties.getProperty(PREFIX + "push.data.enabled", "false"));
+    }
+
+    /**
+     * Get the max size in bytes of an encrypted sign request sent inside a push notification.
+     * Larger requests are fetched with getdata. FCM and APNs allow 4096 bytes in total.
+     * @return max data size (default 3072)
+     */
+    public int getPushDataMaxSize() {
+        try {
+            return Integer.parseInt(this.properties.getProperty(PREFIX + "push.data.maxsize", "3072"));
+        } catch (NumberFormatException e) {
+            return 3072;
+        }
+    }
+
+    /**
+     * Is the metrics Link API operation enabled? Default is false.
+     * @return true if metrics are enabled.
+     */
+    public boolean isMetricsEnabled() {
+        return Boolean.valueOf(this.properties.getProperty(PREFIX + "metrics.enabled", "false"));
+    }
+
 }
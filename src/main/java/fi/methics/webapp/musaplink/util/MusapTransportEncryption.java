@@ -5,18 +5,23 @@ import java.security.GeneralSecurityException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.AEADBadTagException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import fi.methics.webapp.musaplink.MusapLinkAccount;
 import fi.methics.webapp.musaplink.coupling.json.CouplingApiMessage;
 import fi.methics.webapp.musaplink.coupling.json.CouplingApiPayload;
 import fi.methics.webapp.musaplink.util.db.AccountStorage;
+import fi.methics.webapp.musaplink.util.db.NonceStorage;
 
 public class MusapTransportEncryption {
 
@@ -26,12 +31,29 @@ public class MusapTransportEncryption {
     private static final List<String> NO_ENCRYPT_TYPES = Arrays.asList(new String[]{ });
     private static final List<String> NO_DECRYPT_TYPES = Arrays.asList(new String[]{ "enrolldata" });
 
-    private static final ExpirableMap<String, TransportKeys> EXP_MAP = new ExpirableMap<>(Interval.ofMinutes(10).toMillis());
-    private static final Map<String, TransportKeys>          CACHE   = Collections.synchronizedMap(EXP_MAP);
+    // Transport keys by MUSAP ID. Filled on enrollment and on first lookup.
+    private static final Cache<String, TransportKeys> CACHE = CacheBuilder.newBuilder()
+                                                                          .maximumSize(MusapLinkConf.getInstance().getTransportKeyCacheSize())
+                                                                          .expireAfterAccess(10, TimeUnit.MINUTES)
+                                                                          .build();
+
+    // Accepted message timestamp window, and clock skew allowed for timestamps in the future
+    public static final long NONCE_WINDOW = Duration.ofHours(1).toMillis();
+    public static final long NONCE_SKEW   = Duration.ofHours(1).toMillis();
 
-    private static final ExpirableSet<String> NONCE_SET = new ExpirableSet<>(Interval.ofMinutes(60).toMillis());
+    // Used nonces, bucketed by message timestamp.
+    // With a shared nonce store this is a local cache that rejects replays to this node without a DB lookup.
+    private static final NonceStore NONCES = new NonceStore(NONCE_WINDOW, NONCE_SKEW, 12, MusapLinkConf.getInstance().getNonceStoreSize());
 
     private MusapLinkConf config;
+
+    /**
+     * Get the local nonce store
+     * @return nonce store
+     */
+    public static NonceStore getNonceStore() {
+        return NONCES;
+    }
     
     /**
      * Check if the given message is one that should be encrypted
@@ -59,7 +81,6 @@ public class MusapTransportEncryption {
 
     public MusapTransportEncryption(final MusapLinkConf config) {
         this.config = config;
-        EXP_MAP.setDefaultTime(Interval.ofMinutes(10).toMillis());
     }
 
     /**
@@ -89,8 +110,10 @@ public class MusapTransportEncryption {
         }
         
         try {
-            msg.encrypt(tkeys.enc);
-            msg.setMac(this.calculateMac(tkeys, msg));
+            msg.encrypt(tkeys.getCrypto());
+            if (!tkeys.getCrypto().isAead()) {
+                msg.setMac(this.calculateMac(tkeys, msg));
+            }
             return msg;
         } catch (Exception e) {
             log.debug("Message encryption failed for " + tkeys, e);
@@ -100,7 +123,7 @@ public class MusapTransportEncryption {
 
     /**
      * Decrypt a message
-     * <p>Also calculates and verifies MAC
+     * <p>Also calculates and verifies MAC. In AES-GCM mode the GCM tag is verified instead.
      * @param msg Message to encrypt
      * @param tkeys Transport Keys
      * @return Decrypted message
@@ -123,6 +146,18 @@ public class MusapTransportEncryption {
             throw new IOException("Transport security error");
         }
         
+        if (tkeys.getCrypto().isAead()) {
+            try {
+                msg.decrypt(tkeys.getCrypto());
+            } catch (AEADBadTagException e) {
+                log.debug("Message GCM tag verification failed");
+                throw new IOException("Transport security error");
+            }
+            msg.iv  = null;
+            msg.mac = null;
+            return msg;
+        }
+
         // Verify mac
         final String respMac = this.calculateMac(tkeys, msg);
         log.trace("Message    MAC: " + msg.mac);
@@ -133,24 +168,27 @@ public class MusapTransportEncryption {
             throw new IOException("Transport security error");
         }
         
-        msg.decrypt(tkeys.enc);
+        msg.decrypt(tkeys.getCrypto());
         msg.iv  = null;
         msg.mac = null;
         return msg;
     }
 
     /**
-     * Clear transport encryption key cache for the given MUSAP ID
-     * @param musapid MUSAP ID
+     * Cache transport keys, replacing any keys previously cached for the same MUSAP ID.
+     * <p>Transport keys are only created at enrollment, for a new MUSAP ID, and are never changed or removed.
+     * Missing keys are not cached, so there is nothing to invalidate.
+     * @param keys Transport keys
      */
-    public void clearCache(final String musapid) {
-        CACHE.remove(musapid);
+    public void cacheKeys(final TransportKeys keys) {
+        if (keys == null || keys.musapid == null) return;
+        CACHE.put(keys.musapid, keys);
     }
 
     /**
      * Resolve encryption key for given MUSAP ID
      * @param musapid MUSAP ID
-     * @return Encryption keys (contains null keys if not found)
+     * @return Encryption keys, or null if not found
      */
     public TransportKeys resolveKeys(final String musapid) {
         if (musapid == null) {
@@ -158,14 +196,19 @@ public class MusapTransportEncryption {
         }
         log.trace("Resolving transport keys for MUSAP ID " + musapid);
 
-        final TransportKeys cached = CACHE.get(musapid);
+        final TransportKeys cached = CACHE.getIfPresent(musapid);
         if (cached != null) {
             log.trace("Resolved transport keys from cache");
             return cached;
         }
         try {
             MusapLinkAccount account = AccountStorage.findAccountByMusapId(musapid);
-            return account.getTransportKeys();
+            if (account == null) return null;
+            TransportKeys keys = account.getTransportKeys();
+            if (keys != null) {
+                CACHE.put(musapid, keys);
+            }
+            return keys;
         } catch (Exception e) {
             log.debug("Failed to fetch transport keys", e);
             return null;
@@ -174,8 +217,10 @@ public class MusapTransportEncryption {
     
     /**
      * Check if the nonce in the given message is acceptable.
-     * This compares the nonce to a used nonce list, and verifies that the message
-     * timestamp is not too old.
+     * This verifies that the message timestamp is within an hour, and atomically
+     * adds the nonce to the used nonce list, failing if it was already there.
+     * <p>If the shared nonce store is enabled, new nonces are also stored in the database
+     * to catch replays sent to other nodes.
      * @param msg Message to check
      * @return true if nonce is acceptable
      */
@@ -188,24 +233,50 @@ public class MusapTransportEncryption {
         String nonce = payload.nonce;
         
         if (nonce == null) return true;
-        if (NONCE_SET.containsKey(nonce)) {
-            log.warn("Potential replay attack: NONCE already used");
-            return false;
-        }
-        NONCE_SET.add(nonce);
         
-        if (payload.getTimestamp() == null) {
+        Instant timestamp = payload.getTimestamp();
+        if (timestamp == null) {
             log.warn("Potential replay attack: No timestamp");
             return false;
         }
         
         // Check if the timestamp is within an hour
-        if (Instant.now().minus(Duration.ofHours(1)).isBefore(payload.getTimestamp())) {
-            return true;
-        } else {
-            log.warn("Potential replay attack: Timestamp too old (" + payload.getTimestamp() + ")");
+        long now = System.currentTimeMillis();
+        if (timestamp.toEpochMilli() < now - NONCE_WINDOW) {
+            log.warn("Potential replay attack: Timestamp too old (" + timestamp + ")");
             return false;
         }
+        if (timestamp.toEpochMilli() > now + NONCE_SKEW) {
+            log.warn("Potential replay attack: Timestamp in the future (" + timestamp + ")");
+            return false;
+        }
+        
+        switch (NONCES.add(nonce, timestamp.toEpochMilli())) {
+            case ADDED:
+                break;
+            case USED:
+                log.warn("Potential replay attack: NONCE already used");
+                return false;
+            case EXPIRED:
+                log.warn("Potential replay attack: Timestamp too old (" + timestamp + ")");
+                return false;
+            case FULL:
+            default:
+                // Capacity problem, not a replay. NonceStore logs it and counts it in the metrics.
+                return false;
+        }
+        if (NonceStorage.isEnabled()) {
+            try {
+                if (!NonceStorage.addNonce(nonce, timestamp.toEpochMilli())) {
+                    log.warn("Potential replay attack: NONCE already used on another node");
+                    return false;
+                }
+            } catch (MusapException e) {
+                log.error("Cannot verify NONCE from shared nonce store");
+                return false;
+            }
+        }
+        return true;
     }
     
     /**
@@ -219,7 +290,7 @@ public class MusapTransportEncryption {
     public String calculateMac(final TransportKeys keys, final CouplingApiMessage msg)
         throws GeneralSecurityException, IOException
     {
-        return msg.calculateMac(keys.mac);
+        return msg.calculateMac(keys.getCrypto());
     }
     
     /**
@@ -229,10 +300,28 @@ public class MusapTransportEncryption {
         public String musapid;
         public byte[] enc;
         public byte[] mac;
+        public String mode;
+        private volatile TransportCrypto crypto;
         public TransportKeys(final String musapid, final byte[] enc, final byte[] mac) {
+            this(musapid, enc, mac, TransportCrypto.MODE_CBC_HMAC);
+        }
+        public TransportKeys(final String musapid, final byte[] enc, final byte[] mac, final String mode) {
             this.musapid = musapid;
-            this.enc = enc;
-            this.mac = mac;
+            this.enc  = enc;
+            this.mac  = mac;
+            this.mode = mode;
+        }
+        /**
+         * Get the reusable crypto context of these keys. Created on first call.
+         * @return crypto context
+         */
+        public TransportCrypto getCrypto() {
+            TransportCrypto result = this.crypto;
+            if (result == null) {
+                result = new TransportCrypto(this.enc, this.mac, this.mode);
+                this.crypto = result;
+            }
+            return result;
         }
         @Override
         public int hashCode() {
@@ -261,6 +350,10 @@ public class MusapTransportEncryption {
                 // MAC key mismatch
                 return false;
             }
+            if (TransportCrypto.isGcm(this.mode) != TransportCrypto.isGcm(other.mode)) {
+                // Mode mismatch
+                return false;
+            }
             return true;
         }
         
@@ -270,6 +363,8 @@ public class MusapTransportEncryption {
             sb.append(this.musapid);
             sb.append(", enc");
             sb.append(", mac");
+            sb.append(", mode=");
+            sb.append(this.mode);
             sb.append("}");
             return sb.toString();
         }
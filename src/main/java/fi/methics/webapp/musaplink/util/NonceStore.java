@@ -0,0 +1,342 @@
+package fi.methics.webapp.musaplink.util;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.JsonObject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Concurrent, bounded store of used nonces for replay protection.
+ *
+ * <p>Nonces are kept in time buckets selected by the message timestamp, so a replayed
+ * message always maps to the same bucket as the original. Each bucket is split into shards.
+ * Buckets older than the accepted timestamp window are dropped as a whole when a new bucket is opened.
+ * <p>{@link #add(String, long)} is an atomic check-and-insert. Operations are lock-free and independent of the number of stored nonces.
+ * <p>The {@link #getMaxSize() max size} is strict: capacity is reserved from a shared counter before a nonce is inserted,
+ * and the nonces of a bucket are released from it when the bucket is dropped.
+ * When the store is full, the oldest bucket is dropped early to make room. Timestamps that fall in a dropped
+ * bucket are rejected from then on, so dropping narrows the accepted window but never lets a replay through.
+ * Only when there is no bucket older than the new nonce's own is the nonce rejected as {@link Result#FULL}.
+ */
+public class NonceStore {
+
+    private static final Log log = LogFactory.getLog(NonceStore.class);
+
+    private static final int SHARDS = 16;
+
+    private final long window;
+    private final long skew;
+    private final long bucketWidth;
+    private final int  maxSize;
+
+    private final AtomicReferenceArray<Bucket> ring;
+    private final AtomicInteger                size  = new AtomicInteger();
+    private final AtomicLong                   floor = new AtomicLong(Long.MIN_VALUE);
+
+    private final LongAdder full    = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Result of {@link NonceStore#add(String, long)}
+     */
+    public enum Result {
+        /** Nonce was added */
+        ADDED,
+        /** Nonce was already used */
+        USED,
+        /** Timestamp is outside the accepted window */
+        EXPIRED,
+        /** Store is full of nonces that are newer than this one */
+        FULL
+    }
+
+    /**
+     * Create a new nonce store
+     * @param window  How old message timestamps are accepted (milliseconds)
+     * @param skew    How far in the future message timestamps are accepted (milliseconds)
+     * @param buckets Number of buckets the window is split into
+     * @param maxSize Max number of stored nonces
+     */
+    public NonceStore(final long window, final long skew, final int buckets, final int maxSize) {
+        this.window      = window;
+        this.skew        = skew;
+        this.bucketWidth = Math.max(1, window / Math.max(1, buckets));
+        this.maxSize     = maxSize;
+
+        // Room for every bucket between (now - window) and (now + skew), plus one being opened
+        int slots = (int) ((window + skew) / this.bucketWidth) + 3;
+        this.ring = new AtomicReferenceArray<>(slots);
+    }
+
+    /**
+     * Add a nonce if it has not been seen before
+     * @param nonce     Nonce
+     * @param timestamp Message timestamp (epoch milliseconds)
+     * @return {@link Result#ADDED} if the nonce was added, otherwise the reason it was rejected
+     */
+    public Result add(final String nonce, final long timestamp) {
+        return this.add(nonce, timestamp, System.currentTimeMillis());
+    }
+
+    /**
+     * Add a nonce if it has not been seen before
+     * @param nonce     Nonce
+     * @param timestamp Message timestamp (epoch milliseconds)
+     * @param now       Current time (epoch milliseconds)
+     * @return {@link Result#ADDED} if the nonce was added, otherwise the reason it was rejected
+     */
+    Result add(final String nonce, final long timestamp, final long now) {
+        if (nonce == null) return Result.USED;
+
+        if (timestamp < now - this.window) return Result.EXPIRED;
+        if (timestamp > now + this.skew)   return Result.EXPIRED;
+
+        final long index = timestamp / this.bucketWidth;
+        Bucket bucket = this.getBucket(index, now);
+        if (bucket == null) return Result.EXPIRED;
+        if (bucket.contains(nonce)) return Result.USED;
+
+        for (int attempt = 0; !this.reserve(); attempt++) {
+            if (attempt >= this.ring.length() || !this.dropOldest(index)) {
+                this.full.increment();
+                log.warn("Nonce store is full (" + this.maxSize + " nonces)");
+                return Result.FULL;
+            }
+        }
+        if (!bucket.reserve()) {
+            // Bucket was dropped after we got it
+            this.size.decrementAndGet();
+            return Result.EXPIRED;
+        }
+        if (!bucket.add(nonce)) {
+            if (bucket.release()) this.size.decrementAndGet();
+            return Result.USED;
+        }
+        // The floor is raised before a bucket is dropped. If it now covers this bucket, the bucket
+        // may have been dropped before the contains() check above, and the nonce may be a replay.
+        if (index <= this.floor.get()) return Result.EXPIRED;
+        return Result.ADDED;
+    }
+
+    /**
+     * Check if the nonce has been used
+     * @param nonce     Nonce
+     * @param timestamp Message timestamp (epoch milliseconds)
+     * @return true if the nonce is stored
+     */
+    public boolean contains(final String nonce, final long timestamp) {
+        if (nonce == null) return false;
+        final long index = timestamp / this.bucketWidth;
+        final Bucket bucket = this.ring.get(this.slot(index));
+        return bucket != null && bucket.index == index && bucket.contains(nonce);
+    }
+
+    /**
+     * Get the number of stored nonces
+     * @return number of nonces
+     */
+    public int size() {
+        return this.size.get();
+    }
+
+    /**
+     * Get the max number of stored nonces
+     * @return max size
+     */
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * Get the number of nonces rejected because the store was full
+     * @return number of rejected nonces
+     */
+    public long getFullCount() {
+        return this.full.sum();
+    }
+
+    /**
+     * Get the number of buckets dropped early to make room for new nonces
+     * @return number of dropped buckets
+     */
+    public long getDroppedCount() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * Get nonce store metrics as JSON
+     * @return metrics JSON
+     */
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("size",    this.size());
+        json.addProperty("max",     this.getMaxSize());
+        json.addProperty("full",    this.getFullCount());
+        json.addProperty("dropped", this.getDroppedCount());
+        return json;
+    }
+
+    /**
+     * Get the bucket with the given index, opening it if needed
+     * @param index Bucket index
+     * @param now   Current time
+     * @return bucket or null if the slot is already taken by a newer bucket, or the bucket was dropped early
+     */
+    private Bucket getBucket(final long index, final long now) {
+        if (index <= this.floor.get()) return null;
+        final int slot = this.slot(index);
+        while (true) {
+            Bucket current = this.ring.get(slot);
+            if (current != null && current.index == index) return current;
+            if (current != null && current.index >  index) return null;
+
+            Bucket created = new Bucket(index);
+            if (this.ring.compareAndSet(slot, current, created)) {
+                if (current != null) this.drop(current);
+                this.expire(now);
+                return created;
+            }
+        }
+    }
+
+    /**
+     * Drop all buckets that are older than the accepted window
+     * @param now Current time
+     */
+    private void expire(final long now) {
+        final long oldest = (now - this.window) / this.bucketWidth;
+        for (int i = 0; i < this.ring.length(); i++) {
+            Bucket bucket = this.ring.get(i);
+            if (bucket != null && bucket.index < oldest) {
+                if (this.ring.compareAndSet(i, bucket, null)) this.drop(bucket);
+            }
+        }
+    }
+
+    /**
+     * Drop the oldest bucket to make room for a nonce
+     * @param limit Index of the bucket the nonce goes to. Only older buckets are dropped.
+     * @return false if there is no older bucket
+     */
+    private boolean dropOldest(final long limit) {
+        int    oldest = -1;
+        Bucket bucket = null;
+        for (int i = 0; i < this.ring.length(); i++) {
+            Bucket current = this.ring.get(i);
+            if (current != null && current.index < limit && (bucket == null || current.index < bucket.index)) {
+                oldest = i;
+                bucket = current;
+            }
+        }
+        if (bucket == null) return false;
+
+        // Raise the floor first so that the dropped nonces cannot be added again
+        final long index = bucket.index;
+        this.floor.accumulateAndGet(index, Math::max);
+        if (this.ring.compareAndSet(oldest, bucket, null)) {
+            this.drop(bucket);
+            this.dropped.increment();
+            log.warn("Nonce store is full (" + this.maxSize + " nonces). Dropped nonces of bucket " + index);
+        }
+        return true;
+    }
+
+    /**
+     * Reserve capacity for one nonce
+     * @return false if the store is full
+     */
+    private boolean reserve() {
+        while (true) {
+            int current = this.size.get();
+            if (current >= this.maxSize) return false;
+            if (this.size.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * Release the capacity of a bucket that was removed from the ring
+     * @param bucket Removed bucket
+     */
+    private void drop(final Bucket bucket) {
+        this.size.addAndGet(-bucket.close());
+    }
+
+    private int slot(final long index) {
+        return (int) Math.floorMod(index, (long) this.ring.length());
+    }
+
+    /**
+     * Nonces of one time bucket
+     * <p>The size counts reserved nonces, and is negative once the bucket is closed.
+     */
+    private static class Bucket {
+
+        private static final int CLOSED = Integer.MIN_VALUE;
+
+        private final long index;
+        private final AtomicInteger size = new AtomicInteger();
+        private final Set<String>[] shards;
+
+        @SuppressWarnings("unchecked")
+        Bucket(final long index) {
+            this.index  = index;
+            this.shards = new Set[SHARDS];
+            for (int i = 0; i < SHARDS; i++) {
+                this.shards[i] = ConcurrentHashMap.newKeySet();
+            }
+        }
+
+        boolean contains(final String nonce) {
+            return this.shard(nonce).contains(nonce);
+        }
+
+        boolean add(final String nonce) {
+            return this.shard(nonce).add(nonce);
+        }
+
+        /**
+         * Reserve room for one nonce
+         * @return false if the bucket is closed
+         */
+        boolean reserve() {
+            while (true) {
+                int current = this.size.get();
+                if (current < 0) return false;
+                if (this.size.compareAndSet(current, current + 1)) return true;
+            }
+        }
+
+        /**
+         * Release a reservation that was not used
+         * @return true if the caller should release the capacity, false if {@link #close()} already did
+         */
+        boolean release() {
+            while (true) {
+                int current = this.size.get();
+                if (current < 0) return false;
+                if (this.size.compareAndSet(current, current - 1)) return true;
+            }
+        }
+
+        /**
+         * Close the bucket so that no more nonces are reserved in it
+         * @return number of reserved nonces
+         */
+        int close() {
+            int current = this.size.getAndSet(CLOSED);
+            return current < 0 ? 0 : current;
+        }
+
+        private Set<String> shard(final String nonce) {
+            return this.shards[(nonce.hashCode() & 0x7fffffff) % SHARDS];
+        }
+    }
+
+}
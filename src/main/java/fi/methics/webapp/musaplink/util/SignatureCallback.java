@@ -11,8 +11,8 @@ public class SignatureCallback {
     private String transid;
     private Semaphore semaphore;
     
-    private MusapSignResp sigResp;
-    private MusapResp     error;
+    private volatile MusapSignResp sigResp;
+    private volatile MusapResp     error;
     
     public SignatureCallback(String transid) {
         this.semaphore = new Semaphore(0);
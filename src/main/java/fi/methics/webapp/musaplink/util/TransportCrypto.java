@@ -0,0 +1,273 @@
+package fi.methics.webapp.musaplink.util;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import fi.methics.webapp.musaplink.util.MusapTransportEncryption.TransportKeys;
+
+/**
+ * Reusable crypto context of one set of {@link TransportKeys}.
+ * <p>Holds prepared key specs and a small pool of initialized {@link Mac} instances,
+ * so that per-message work is limited to the actual MAC and cipher operations.
+ * {@link Cipher} instances are thread-confined, as they must be initialized with a new IV for each message anyway.
+ * <p>Two transport modes are supported:
+ * <ul>
+ * <li>{@link #MODE_CBC_HMAC} - AES-CBC with a separate HMAC-SHA256 (the original mode)
+ * <li>{@link #MODE_GCM} - AES-GCM, where the GCM tag replaces the separate MAC
+ * </ul>
+ * <p>This class is thread-safe.
+ */
+public class TransportCrypto {
+
+    public static final String MAC_ALGORITHM    = "HmacSHA256";
+    public static final String CIPHER_ALGORITHM = "AES/CBC/PKCS7Padding";
+    public static final String GCM_ALGORITHM    = "AES/GCM/NoPadding";
+
+    public static final String MODE_CBC_HMAC = "cbc-hmac";
+    public static final String MODE_GCM      = "aes-gcm";
+
+    // GCM nonce and tag sizes
+    public static final int GCM_IV_LENGTH  = 12;
+    public static final int GCM_TAG_LENGTH = 128;
+
+    // Max number of idle Mac instances kept per key
+    private static final int MAX_POOLED_MACS = 4;
+
+    private static final ThreadLocal<Cipher> CBC_CIPHER = ThreadLocal.withInitial(TransportCrypto::newCbcCipher);
+    private static final ThreadLocal<Cipher> GCM_CIPHER = ThreadLocal.withInitial(TransportCrypto::newGcmCipher);
+
+    // Buffers for feeding String input to Mac without copying whole Strings to byte[]
+    private static final ThreadLocal<CharsetEncoder> UTF8   = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newEncoder()
+                                                                                                .onMalformedInput(CodingErrorAction.REPLACE)
+                                                                                                .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    private static final ThreadLocal<ByteBuffer>     BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096));
+
+    private final SecretKeySpec encKey;
+    private final SecretKeySpec macKey;
+    private final String        mode;
+
+    private final Queue<Mac>    macs   = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * Create a crypto context for {@link #MODE_CBC_HMAC}
+     * @param enc AES key (may be null)
+     * @param mac MAC key (may be null)
+     */
+    public TransportCrypto(final byte[] enc, final byte[] mac) {
+        this(enc, mac, MODE_CBC_HMAC);
+    }
+
+    /**
+     * Create a crypto context
+     * @param enc  AES key (may be null)
+     * @param mac  MAC key (may be null)
+     * @param mode Transport mode. {@link #MODE_CBC_HMAC} is used if null.
+     */
+    public TransportCrypto(final byte[] enc, final byte[] mac, final String mode) {
+        this.encKey = enc != null ? new SecretKeySpec(enc, "AES")         : null;
+        this.macKey = mac != null ? new SecretKeySpec(mac, MAC_ALGORITHM) : null;
+        this.mode   = isGcm(mode) ? MODE_GCM : MODE_CBC_HMAC;
+    }
+
+    /**
+     * Check if the given transport mode is {@link #MODE_GCM}
+     * @param mode Transport mode
+     * @return true for AES-GCM
+     */
+    public static boolean isGcm(final String mode) {
+        return MODE_GCM.equalsIgnoreCase(mode);
+    }
+
+    /**
+     * Get the transport mode of this context
+     * @return {@link #MODE_CBC_HMAC} or {@link #MODE_GCM}
+     */
+    public String getMode() {
+        return this.mode;
+    }
+
+    /**
+     * Is this an AEAD mode, where messages are authenticated by the cipher instead of a separate MAC?
+     * @return true for AES-GCM
+     */
+    public boolean isAead() {
+        return MODE_GCM.equals(this.mode);
+    }
+
+    /**
+     * Calculate a MAC over the given parts, in order
+     * @param parts Input parts (null parts are skipped)
+     * @return MAC
+     * @throws GeneralSecurityException if there is no MAC key or MAC calculation fails
+     */
+    public byte[] mac(final byte[]... parts) throws GeneralSecurityException {
+        Mac mac = this.borrowMac();
+        try {
+            for (byte[] part : parts) {
+                if (part != null) mac.update(part);
+            }
+            return mac.doFinal();
+        } finally {
+            this.releaseMac(mac);
+        }
+    }
+
+    /**
+     * Calculate a MAC over the UTF-8 encoding of the given parts, in order.
+     * <p>The result is the same as with {@code mac(String.join("", parts).getBytes(UTF_8))},
+     * but the parts are encoded in small chunks instead of being concatenated and copied.
+     * @param parts Input parts
+     * @return MAC
+     * @throws GeneralSecurityException if there is no MAC key or MAC calculation fails
+     */
+    public byte[] mac(final CharSequence... parts) throws GeneralSecurityException {
+        Mac mac = this.borrowMac();
+        try {
+            for (CharSequence part : parts) {
+                update(mac, part);
+            }
+            return mac.doFinal();
+        } catch (CharacterCodingException e) {
+            throw new GeneralSecurityException(e);
+        } finally {
+            this.releaseMac(mac);
+        }
+    }
+
+    /**
+     * Encrypt or decrypt with AES-CBC
+     * @param mode  {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param iv    IV
+     * @param input Input bytes
+     * @return output bytes
+     * @throws GeneralSecurityException if there is no AES key or the cipher operation fails
+     */
+    public byte[] cbc(final int mode, final byte[] iv, final byte[] input) throws GeneralSecurityException {
+        if (this.encKey == null) throw new GeneralSecurityException("Missing encryption key");
+        Cipher cipher = CBC_CIPHER.get();
+        cipher.init(mode, this.encKey, new IvParameterSpec(iv));
+        return cipher.doFinal(input);
+    }
+
+    /**
+     * Encrypt or decrypt with AES-GCM.
+     * <p>On encryption the output is the ciphertext followed by the tag.
+     * On decryption the tag is verified and an {@link javax.crypto.AEADBadTagException} is thrown if it does not match.
+     * @param mode  {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param iv    GCM nonce ({@link #GCM_IV_LENGTH} bytes)
+     * @param aad   Additional authenticated data (may be null)
+     * @param input Input bytes
+     * @return output bytes
+     * @throws GeneralSecurityException if there is no AES key or the cipher operation fails
+     */
+    public byte[] gcm(final int mode, final byte[] iv, final byte[] aad, final byte[] input) throws GeneralSecurityException {
+        if (this.encKey == null) throw new GeneralSecurityException("Missing encryption key");
+        Cipher cipher = GCM_CIPHER.get();
+        cipher.init(mode, this.encKey, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+        if (aad != null) cipher.updateAAD(aad);
+        return cipher.doFinal(input);
+    }
+
+    /**
+     * Update a Mac with the UTF-8 encoding of the given text
+     * @param mac  Mac
+     * @param text Text
+     * @throws CharacterCodingException
+     */
+    private static void update(final Mac mac, final CharSequence text) throws CharacterCodingException {
+        CharsetEncoder encoder = UTF8.get();
+        ByteBuffer     buffer  = BUFFER.get();
+        CharBuffer     input   = CharBuffer.wrap(text);
+        encoder.reset();
+        while (true) {
+            buffer.clear();
+            CoderResult result = encoder.encode(input, buffer, true);
+            buffer.flip();
+            mac.update(buffer);
+            if (result.isUnderflow()) break;
+            if (result.isError()) result.throwException();
+        }
+        buffer.clear();
+        encoder.flush(buffer);
+        buffer.flip();
+        mac.update(buffer);
+    }
+
+    /**
+     * Take an initialized Mac from the pool, or create one
+     * @return Mac initialized with the MAC key
+     * @throws GeneralSecurityException
+     */
+    private Mac borrowMac() throws GeneralSecurityException {
+        Mac mac = this.macs.poll();
+        if (mac != null) {
+            this.pooled.decrementAndGet();
+            return mac;
+        }
+        if (this.macKey == null) throw new GeneralSecurityException("Missing MAC key");
+        mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(this.macKey);
+        return mac;
+    }
+
+    /**
+     * Return a Mac to the pool. The Mac is reset and dropped if the pool is full.
+     * @param mac Mac to return
+     */
+    private void releaseMac(final Mac mac) {
+        mac.reset();
+        if (this.pooled.incrementAndGet() <= MAX_POOLED_MACS) {
+            this.macs.offer(mac);
+        } else {
+            this.pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * Create a new AES-CBC cipher.
+     * Falls back to PKCS5Padding (which is the same as PKCS7 for AES) if no provider supports the PKCS7 name.
+     * @return Cipher
+     */
+    private static Cipher newCbcCipher() {
+        try {
+            return Cipher.getInstance(CIPHER_ALGORITHM);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            try {
+                return Cipher.getInstance("AES/CBC/PKCS5Padding");
+            } catch (GeneralSecurityException e2) {
+                throw new IllegalStateException("AES/CBC not available", e2);
+            }
+        }
+    }
+
+    /**
+     * Create a new AES-GCM cipher
+     * @return Cipher
+     */
+    private static Cipher newGcmCipher() {
+        try {
+            return Cipher.getInstance(GCM_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/GCM not available", e);
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package fi.methics.webapp.musaplink.util.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.annotations.SerializedName;
+
+import fi.methics.webapp.musaplink.MusapLinkAccount;
+import fi.methics.webapp.musaplink.MusapLinkAccount.MusapKey;
+import fi.methics.webapp.musaplink.util.GsonMessage;
+
+/**
+ * A single exported MUSAP account with its Link IDs and key details.
+ * Written as one line of NDJSON by {@link AccountStorage#exportAccounts(java.io.Writer)}.
+ * <p>Transport keys are never exported.
+ */
+public class AccountExport extends GsonMessage {
+
+    @SerializedName("musapid")
+    public String musapid;
+
+    @SerializedName("fcmtoken")
+    public String fcmToken;
+
+    @SerializedName("apnstoken")
+    public String apnsToken;
+
+    @SerializedName("linkids")
+    public List<String> linkids = new ArrayList<>();
+
+    @SerializedName("keys")
+    public List<MusapKey> keys = new ArrayList<>();
+
+    public AccountExport() {
+
+    }
+
+    /**
+     * Create an export entry from an account
+     * @param account MUSAP account
+     */
+    public AccountExport(MusapLinkAccount account) {
+        this.musapid   = account.musapid;
+        this.fcmToken  = account.fcmToken;
+        this.apnsToken = account.apnsToken;
+        if (account.linkids != null) {
+            this.linkids.addAll(account.linkids);
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package fi.methics.webapp.musaplink.util.db;
+
+import java.util.HashSet;
+
+import com.google.gson.annotations.SerializedName;
+
+import fi.methics.webapp.musaplink.MusapLinkAccount;
+import fi.methics.webapp.musaplink.MusapLinkAccount.MusapKey;
+import fi.methics.webapp.musaplink.util.TransportCrypto;
+
+/**
+ * A single MUSAP account to bulk import.
+ * <p>Same format as {@link AccountExport}, with optional transport keys and transport mode added.
+ */
+public class AccountImport extends AccountExport {
+
+    @SerializedName("mackey")
+    public byte[] macKey;
+
+    @SerializedName("enckey")
+    public byte[] aesKey;
+
+    @SerializedName("transportmode")
+    public String transportMode;
+
+    public AccountImport() {
+
+    }
+
+    /**
+     * Validate this entry
+     * @return reason why this entry is not valid, or null if it is valid
+     */
+    public String validate() {
+        if (this.musapid == null || this.musapid.isEmpty()) return "Missing musapid";
+        if (this.linkids == null) return "Missing linkids";
+        if (this.keys    == null) return "Missing keys";
+        for (String linkid : this.linkids) {
+            if (linkid == null || linkid.isEmpty()) return "Empty linkid for " + this.musapid;
+        }
+        for (MusapKey key : this.keys) {
+            if (key == null || key.keyid == null) return "Missing keyid for " + this.musapid;
+        }
+        if ((this.macKey == null) != (this.aesKey == null)) {
+            return "Both mackey and enckey are needed for " + this.musapid;
+        }
+        if (this.transportMode != null && !TransportCrypto.MODE_CBC_HMAC.equals(this.transportMode) && !TransportCrypto.MODE_GCM.equals(this.transportMode)) {
+            return "Unknown transportmode for " + this.musapid;
+        }
+        return null;
+    }
+
+    /**
+     * Convert this entry to a MUSAP account
+     * @return MUSAP account with Link IDs and transport keys
+     */
+    public MusapLinkAccount toAccount() {
+        MusapLinkAccount account = new MusapLinkAccount();
+        account.musapid   = this.musapid;
+        account.fcmToken  = this.fcmToken;
+        account.apnsToken = this.apnsToken;
+        account.macKey    = this.macKey;
+        account.aesKey    = this.aesKey;
+        account.transportMode = this.transportMode;
+        account.linkids   = new HashSet<>(this.linkids);
+        return account;
+    }
+
+}
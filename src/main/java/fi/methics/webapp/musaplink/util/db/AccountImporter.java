@@ -0,0 +1,155 @@
+package fi.methics.webapp.musaplink.util.db;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.gson.JsonParseException;
+
+import fi.methics.webapp.musaplink.MusapLinkAccount.MusapKey;
+import fi.methics.webapp.musaplink.util.GsonMessage;
+
+/**
+ * Bulk importer for MUSAP accounts.
+ * <p>Reads NDJSON in the {@link AccountImport} format, validates and deduplicates each line,
+ * and hands the accounts to {@link AccountStore#importAccounts(List)} in batches.
+ * Accounts that already exist in storage are skipped. New accounts with a Link ID that already
+ * belongs to another account are not imported, and are reported as conflicts.
+ */
+public class AccountImporter {
+
+    private static final Log log = LogFactory.getLog(AccountImporter.class);
+
+    private final AccountStore store;
+    private final int batchSize;
+
+    private Consumer<ImportResult> progressListener;
+
+    /**
+     * Create a new importer
+     * @param store     Storage to import to
+     * @param batchSize Number of accounts to store at a time
+     */
+    public AccountImporter(AccountStore store, int batchSize) {
+        this.store     = store;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set a listener that is notified after each stored batch
+     * @param listener Progress listener
+     * @return this importer
+     */
+    public AccountImporter setProgressListener(Consumer<ImportResult> listener) {
+        this.progressListener = listener;
+        return this;
+    }
+
+    /**
+     * Import accounts from NDJSON input (one account per line)
+     * @param in Input
+     * @return import result
+     * @throws IOException if reading the input fails
+     */
+    public ImportResult importAccounts(Reader in) throws IOException {
+
+        ImportResult result = new ImportResult();
+        List<AccountImport> batch = new ArrayList<>(this.batchSize);
+
+        // Seen IDs are kept for the whole import to catch duplicates spread across batches
+        Set<String> musapids = new HashSet<>();
+        Set<String> linkids  = new HashSet<>();
+
+        BufferedReader reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            result.read++;
+            if (line.trim().isEmpty()) continue;
+
+            AccountImport account;
+            try {
+                account = GsonMessage.fromJson(line, AccountImport.class);
+            } catch (JsonParseException e) {
+                result.addInvalid(result.read, "Invalid JSON");
+                continue;
+            }
+            String error = account == null ? "Empty entry" : account.validate();
+            if (error != null) {
+                result.addInvalid(result.read, error);
+                continue;
+            }
+            if (!musapids.add(account.musapid)) {
+                result.duplicates++;
+                continue;
+            }
+            if (!dedupe(account, linkids)) {
+                result.addInvalid(result.read, "Duplicate linkid for " + account.musapid);
+                continue;
+            }
+
+            batch.add(account);
+            if (batch.size() >= this.batchSize) {
+                this.store(batch, result);
+            }
+        }
+        if (!batch.isEmpty()) {
+            this.store(batch, result);
+        }
+        log.info("Import done: " + result.toJson());
+        return result;
+    }
+
+    /**
+     * Store a batch and report progress
+     * @param batch  Accounts to store. Cleared after storing.
+     * @param result Import result to update
+     */
+    private void store(List<AccountImport> batch, ImportResult result) {
+        int[] conflicts = new int[1];
+        int imported = this.store.importAccounts(batch, account -> {
+            conflicts[0]++;
+            result.addConflict(account.musapid);
+        });
+        result.imported   += imported;
+        result.duplicates += batch.size() - imported - conflicts[0];
+        result.batches++;
+        batch.clear();
+
+        log.info("Imported " + result.imported + " accounts (read " + result.read + " lines)");
+        if (this.progressListener != null) {
+            this.progressListener.accept(result);
+        }
+    }
+
+    /**
+     * Reserve the Link IDs of an account, and drop duplicate key details
+     * @param account Account to check
+     * @param linkids Link IDs seen so far
+     * @return false if a Link ID was already used by another account
+     */
+    private static boolean dedupe(AccountImport account, Set<String> linkids) {
+        List<String> unique = new ArrayList<>(new HashSet<>(account.linkids));
+        for (String linkid : unique) {
+            if (linkids.contains(linkid)) return false;
+        }
+        linkids.addAll(unique);
+        account.linkids = unique;
+
+        Set<String> keyids = new HashSet<>();
+        List<MusapKey> keys = new ArrayList<>();
+        for (MusapKey key : account.keys) {
+            if (keyids.add(key.keyid)) keys.add(key);
+        }
+        account.keys = keys;
+        return true;
+    }
+
+}
@@ -1,50 +1,78 @@
 package fi.methics.webapp.musaplink.util.db;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Timestamp;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.google.gson.JsonObject;
+
 import fi.methics.webapp.musaplink.MusapLinkAccount;
 import fi.methics.webapp.musaplink.MusapLinkAccount.MusapKey;
-import fi.methics.webapp.musaplink.util.MusapException;
 import fi.methics.webapp.musaplink.util.MusapLinkConf;
 
 /**
  * Database class for MUSAP Link Account Storage.
  * This stores MUSAP Link Accounts and Coupling Codes used during account enrollment.
+ * <p>The actual storage is handled by an {@link AccountStore} implementation selected in configuration.
  */
 public class AccountStorage extends MusapDb {
     
     private static final Log log = LogFactory.getLog(AccountStorage.class);
 
-    private static final String INSERT_ACCOUNT       = "INSERT INTO musap_accounts (musapid, fcmtoken, apnstoken, created_dt) VALUES (?,?,?,?)";
-    private static final String INSERT_LINKID        = "INSERT INTO link_ids (musapid, linkid, name) VALUES (?,?,?)";
-    private static final String INSERT_KEYS          = "INSERT INTO transport_keys (musapid, mackey, enckey) VALUES (?,?,?)";
-    private static final String SELECT_KEYS          = "SELECT mackey, enckey FROM transport_keys WHERE musapid=?";
-    
-    private static final String UPDATE_ACCOUNT       = "UPDATE musap_accounts SET fcmtoken=?, apnstoken=? WHERE musapid=?";
-    private static final String SELECT_ACCOUNT       = "SELECT musapid, fcmtoken, apnstoken FROM musap_accounts WHERE musapid=?";
-    private static final String LIST_ACCOUNTS        = "SELECT musapid, fcmtoken, apnstoken FROM musap_accounts";
-    
-    private static final String INSERT_KEYDETAILS         = "INSERT INTO key_details (musapid, keyid, keyname, certificate, publickey) VALUES (?,?,?,?,?)";
-    private static final String UPDATE_KEYDETAILS         = "UPDATE key_details SET keyname=?, certificate=?, publickey=?, modified_dt=? WHERE musapid=? AND keyid=?";
-    private static final String SELECT_KEYDETAILS         = "SELECT keyid, keyname, certificate, publickey FROM key_details WHERE musapid=? AND keyname=?";
-    private static final String SELECT_KEYDETAILS_BY_ID   = "SELECT keyid, keyname, certificate, publickey FROM key_details WHERE musapid=? AND keyid=?";
-    private static final String LIST_KEYDETAILS           = "SELECT keyid, keyname, certificate, publickey FROM key_details WHERE musapid=?";
+    public static final String SIMULATED_LINKID = "SIMULATED-LINKID";
 
-    private static final String SELECT_MUSAPID_BY_LINKID   = "SELECT musapid FROM link_ids WHERE linkid=?";
-    private static final String SELECT_LINKIDS_BY_MUSAPID  = "SELECT linkid  FROM link_ids WHERE musapid=?";
+    private static volatile AccountStore store;
 
-    public static final String SIMULATED_LINKID = "SIMULATED-LINKID";
+    /**
+     * Get the storage backend. Initialized based on configuration on first call.
+     * @return storage backend
+     */
+    public static AccountStore getStore() {
+        AccountStore result = store;
+        if (result == null) {
+            synchronized (AccountStorage.class) {
+                result = store;
+                if (result == null) {
+                    if (MusapLinkConf.getInstance().isMemoryStorageEnabled()) {
+                        log.info("Using in-memory account storage");
+                        result = new MemoryAccountStore();
+                    } else {
+                        result = new JdbcAccountStore();
+                    }
+                    store = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Override the storage backend
+     * @param accountStore storage backend
+     */
+    public static void setStore(AccountStore accountStore) {
+        store = accountStore;
+    }
+
+    /**
+     * Get metrics of the recent write tracking used with a read replica
+     * @return metrics JSON or null if the storage backend does not use a replica
+     */
+    public static JsonObject getRecentWritesJson() {
+        AccountStore current = getStore();
+        if (current instanceof JdbcAccountStore) {
+            return ((JdbcAccountStore) current).getRecentWritesJson();
+        }
+        return null;
+    }
 
     /**
      * Add a linkid to an existing MUSAP account
@@ -59,18 +87,7 @@ public class AccountStorage extends MusapDb {
         }
         
         String name = null;
-        
-        try (Connection conn = getConnection();
-             PreparedStatement ps = conn.prepareStatement(INSERT_LINKID))
-        {
-            ps.setString(1, musapid);
-            ps.setString(2, linkid);
-            ps.setString(3, name);
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            log.error("Failed insert Link ID", e);
-            throw new MusapException(e);
-        }
+        getStore().insertLinkId(musapid, linkid, name);
     }
     
     /**
@@ -80,21 +97,7 @@ public class AccountStorage extends MusapDb {
      */
     public static MusapLinkAccount findAccountByLinkId(String linkid) {
         if (linkid == null) return null;
-        
-        try (Connection conn = getConnection();
-             PreparedStatement ps = conn.prepareStatement(SELECT_MUSAPID_BY_LINKID))
-        {
-            ps.setString(1, linkid);
-            try (ResultSet result = ps.executeQuery()) {
-                if (result.next()) {
-                    return findAccountByMusapId(result.getString(1));
-                }
-            }
-        } catch (SQLException e) {
-            log.error("Failed get MUSAP account", e);
-            throw new MusapException(e);
-        }
-        return null;
+        return findAccountByMusapId(getStore().findMusapIdByLinkId(linkid));
     }
     
     /**
@@ -104,27 +107,7 @@ public class AccountStorage extends MusapDb {
      */
     public static MusapLinkAccount findAccountByMusapId(String musapid) {
         if (musapid == null) return null;
-        
-        try (Connection conn = getConnection();
-             PreparedStatement ps = conn.prepareStatement(SELECT_ACCOUNT))
-        {
-            ps.setString(1, musapid);
-            try (ResultSet result = ps.executeQuery()) {
-                if (result.next()) {
-                    MusapLinkAccount account = new MusapLinkAccount();
-                    account.musapid = result.getString(1);
-                    account.fcmToken = result.getString(2);
-                    account.apnsToken = result.getString(3);
-                    account.linkids = new HashSet<>(listLinkIds(musapid));
-                    fillTransportKeys(conn, account);
-                    return account;
-                }
-            }
-        } catch (SQLException e) {
-            log.error("Failed get MUSAP account", e);
-            throw new MusapException(e);
-        }
-        return null;
+        return getStore().findAccountByMusapId(musapid);
     }
     
     /**
@@ -136,27 +119,7 @@ public class AccountStorage extends MusapDb {
     public static MusapKey findKeyDetailsByKeyID(MusapLinkAccount account, String keyid) {
         if (account == null) return null;
         if (keyid   == null) return null;
-        
-        try (Connection conn = getConnection();
-             PreparedStatement ps = conn.prepareStatement(SELECT_KEYDETAILS_BY_ID))
-        {
-            ps.setString(1, account.musapid);
-            ps.setString(2, keyid);
-            try (ResultSet result = ps.executeQuery()) {
-                if (result.next()) {
-                    MusapKey key = new MusapKey();
-                    key.keyid       = result.getString(1);
-                    key.keyname     = result.getString(2);
-                    key.certificate = result.getBytes(3);
-                    key.publickey   = result.getBytes(4);
-                    return key;
-                }
-            }
-        } catch (SQLException e) {
-            log.error("Failed get MUSAP account", e);
-            throw new MusapException(e);
-        }
-        return null;
+        return getStore().findKeyDetailsByKeyID(account.musapid, keyid);
     }
 
     /**
@@ -168,27 +131,7 @@ public class AccountStorage extends MusapDb {
     public static MusapKey findKeyDetailsByKeyname(MusapLinkAccount account, String keyname) {
         if (account == null) return null;
         if (keyname == null) return null;
-        
-        try (Connection conn = getConnection();
-             PreparedStatement ps = conn.prepareStatement(SELECT_KEYDETAILS))
-        {
-            ps.setString(1, account.musapid);
-            ps.setString(2, keyname);
-            try (ResultSet result = ps.executeQuery()) {
-                if (result.next()) {
-                    MusapKey key = new MusapKey();
-                    key.keyid       = result.getString(1);
-                    key.keyname     = result.getString(2);
-                    key.certificate = result.getBytes(3);
-                    key.publickey   = result.getBytes(4);
-                    return key;
-                }
-            }
-        } catch (SQLException e) {
-            log.error("Failed get MUSAP account", e);
-            throw new MusapException(e);
-        }
-        return null;
+        return getStore().findKeyDetailsByKeyname(account.musapid, keyname);
     }
     
     /**
@@ -197,21 +140,7 @@ public class AccountStorage extends MusapDb {
      * @return List of LinkIDs
      */
     public static List<String> listLinkIds(String musapid) {
-        List<String> linkids = new ArrayList<>();
-        try (Connection conn = getConnection();
-             PreparedStatement ps = conn.prepareStatement(SELECT_LINKIDS_BY_MUSAPID))
-        {
-            ps.setString(1, musapid);
-            try (ResultSet result = ps.executeQuery()) {
-                while (result.next()) {
-                    linkids.add(result.getString(1));
-                }
-            }
-        } catch (SQLException e) {
-            log.error("Failed get Link IDs", e);
-            throw new MusapException(e);
-        }
-        return linkids;
+        return getStore().listLinkIds(musapid);
     }
     
     /**
@@ -219,57 +148,58 @@ public class AccountStorage extends MusapDb {
      * @return MUSAP accounts
      */
     public static Collection<MusapLinkAccount> listAccounts() {
-        
-        List<MusapLinkAccount> accounts = new ArrayList<>();
-        
-        try (Connection conn = getConnection();
-                PreparedStatement ps = conn.prepareStatement(LIST_ACCOUNTS))
-        {
-            try (ResultSet result = ps.executeQuery()) {
-                while (result.next()) {
-                    MusapLinkAccount account = new MusapLinkAccount();
-                    account.musapid = result.getString(1);
-                    account.fcmToken = result.getString(2);
-                    account.apnsToken = result.getString(3);
-                    account.linkids = new HashSet<>(listLinkIds(account.musapid));
-                    accounts.add(account);
+        return getStore().listAccounts();
+    }
+    
+    /**
+     * Export all stored MUSAP accounts with their Link IDs and key details as NDJSON (one account per line).
+     * <p>Accounts are streamed page by page, so memory use stays flat regardless of the number of accounts.
+     * @param out Writer to write the NDJSON to
+     * @return number of exported accounts
+     * @throws IOException if writing fails
+     */
+    public static long exportAccounts(Writer out) throws IOException {
+        int pageSize = MusapLinkConf.getInstance().getExportPageSize();
+        AtomicLong count = new AtomicLong();
+        try {
+            getStore().exportAccounts(pageSize, export -> {
+                try {
+                    out.write(export.toJson());
+                    out.write('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-            }
-        } catch (SQLException e) {
-            log.error("Failed get MUSAP ID", e);
-            throw new MusapException(e);
+                if (count.incrementAndGet() % pageSize == 0) {
+                    log.debug("Exported " + count.get() + " accounts");
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        return accounts;
+        out.flush();
+        log.info("Exported " + count.get() + " accounts");
+        return count.get();
     }
-    
+
+    /**
+     * Bulk import MUSAP accounts from NDJSON (one {@link AccountImport} per line).
+     * <p>Input is validated and deduplicated, and stored in batches. Existing accounts are skipped.
+     * @param in Reader to read the NDJSON from
+     * @return import result
+     * @throws IOException if reading fails
+     */
+    public static ImportResult importAccounts(Reader in) throws IOException {
+        int batchSize = MusapLinkConf.getInstance().getImportBatchSize();
+        return new AccountImporter(getStore(), batchSize).importAccounts(in);
+    }
+
     /**
      * List key details for a MUSAP account. Note that this returns nothing if ListKeys is not enabled in configuration.
      * @param account MUSAP Account whose keys to list
      * @return List of key details
      */
     public static Collection<MusapKey> listKeyDetails(MusapLinkAccount account) {
-        List<MusapKey> keys = new ArrayList<>();
-        
-        try (Connection conn = getConnection();
-             PreparedStatement ps = conn.prepareStatement(LIST_KEYDETAILS))
-        {
-            ps.setString(1,  account.musapid);
-            try (ResultSet result = ps.executeQuery()) {
-                while (result.next()) {
-                    MusapKey key = new MusapKey();
-                    key.keyid       = result.getString(1);
-                    key.keyname     = result.getString(2);
-                    key.certificate = result.getBytes(3);
-                    key.publickey   = result.getBytes(4);
-                    keys.add(key);
-                }
-            }
-        } catch (SQLException e) {
-            log.error("Failed get MUSAP ID", e);
-            throw new MusapException(e);
-        }
-        return keys;
-        
+        return getStore().listKeyDetails(account.musapid);
     }
     
     /**
@@ -281,21 +211,7 @@ public class AccountStorage extends MusapDb {
             log.error("Ignoring account with null MUSAP ID");
             return;
         }
-
-        try (Connection conn = getConnection();
-             PreparedStatement ps = conn.prepareStatement(INSERT_ACCOUNT))
-        {
-            ps.setString(1, account.musapid);
-            ps.setString(2, account.fcmToken);
-            ps.setString(3, account.apnsToken);
-            ps.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
-            ps.executeUpdate();
-            
-            storeTransportKeys(conn, account);
-        } catch (SQLException e) {
-            log.error("Failed insert MUSAP account", e);
-            throw new MusapException(e);
-        }
+        getStore().storeAccount(account);
     }
     
     /**
@@ -308,18 +224,20 @@ public class AccountStorage extends MusapDb {
             log.error("Ignoring account with null linkid");
             return;
         }
-        
-        try (Connection conn = getConnection();
-             PreparedStatement ps = conn.prepareStatement(UPDATE_ACCOUNT))
-        {
-            ps.setString(1, account.fcmToken);
-            ps.setString(2, account.apnsToken);
-            ps.setString(3, account.musapid);
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            log.error("Failed update MUSAP account", e);
-            throw new MusapException(e);
-        }
+        getStore().updateAccount(account);
+    }
+    
+    /**
+     * Mark the push token of a MUSAP account invalid after FCM or APNs rejected it.
+     * Pushes are not sent to the account until the app sends a new token.
+     * @param musapid     MUSAP ID
+     * @param token       Rejected token
+     * @param invalidated Time the token became invalid
+     */
+    public static void invalidatePushToken(String musapid, String token, Date invalidated) {
+        if (musapid == null || token == null) return;
+        log.info("Marking push token of " + musapid + " invalid as of " + invalidated);
+        getStore().invalidatePushToken(musapid, token, invalidated);
     }
     
     /**
@@ -362,92 +280,12 @@ public class AccountStorage extends MusapDb {
             }
             
             // Update
-            try (Connection conn = getConnection();
-                 PreparedStatement ps = conn.prepareStatement(UPDATE_KEYDETAILS))
-               {
-                   ps.setString(1, key.keyname);
-                   ps.setBytes(2,  key.certificate);
-                   ps.setBytes(3,  key.publickey);
-                   ps.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
-                   ps.setString(5, account.musapid);
-                   ps.setString(6, keyid);
-                   ps.executeUpdate();
-                   log.debug("Updated key details for keyid " + keyid);
-               } catch (SQLException e) {
-                   log.error("Failed insert MUSAP account", e);
-                   throw new MusapException(e);
-               }
+            getStore().updateKeyDetails(account.musapid, key);
         } else {
             // Insert
-            try (Connection conn = getConnection();
-                 PreparedStatement ps = conn.prepareStatement(INSERT_KEYDETAILS))
-            {
-                ps.setString(1, account.musapid);
-                ps.setString(2, keyid);
-                ps.setString(3, keyname);
-                ps.setBytes(4, key.certificate);
-                ps.setBytes(5, key.publickey);
-                ps.executeUpdate();
-                log.debug("Inserted key details for keyid " + keyid);
-            } catch (SQLException e) {
-                log.error("Failed insert MUSAP account", e);
-                throw new MusapException(e);
-            }
+            getStore().insertKeyDetails(account.musapid, key);
         }
 
     }
     
-
-    /**
-     * Store transport encryption keys.
-     * Does nothing if given account object has no keys.
-     * @param conn DB connection
-     * @param account Account that contains the keys
-     */
-    private static void storeTransportKeys(Connection conn, MusapLinkAccount account) {
-        if (account == null) return;
-        if (account.aesKey == null) return;
-        if (account.macKey == null) return;
-        
-        log.debug("Storing transport keys for MUSAP ID " + account.musapid);
-        try (PreparedStatement ps = conn.prepareStatement(INSERT_KEYS)) {
-            ps.setString(1, account.musapid);
-            ps.setBytes(2,  account.macKey);
-            ps.setBytes(3,  account.aesKey);
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            log.error("Failed insert MUSAP transport keys", e);
-            throw new MusapException(e);
-        }
-    }
-    
-    /**
-     * Fetch and fill transport encryption keys to given MUSAP account
-     * @param conn    DB Connection
-     * @param account Account that should be filled
-     * @return Account with keys
-     */
-    private static MusapLinkAccount fillTransportKeys(Connection conn, MusapLinkAccount account) {
-        
-        log.debug("Looking for transport keys");
-        if (account == null) return null;
-        
-        try (PreparedStatement ps = conn.prepareStatement(SELECT_KEYS)) {
-           ps.setString(1, account.musapid);
-           try (ResultSet result = ps.executeQuery()) {
-               if (result.next()) {
-                   account.macKey = result.getBytes(1);
-                   account.aesKey = result.getBytes(2);
-                   if (account.aesKey != null) log.debug("Found AES key of " + account.aesKey.length + " bytes");
-                   if (account.macKey != null) log.debug("Found MAC key of " + account.macKey.length + " bytes");
-               }
-           }
-       } catch (SQLException e) {
-           log.error("Failed get transport keys", e);
-           throw new MusapException(e);
-       }
-        return account;
-    }
-    
-    
 }
@@ -0,0 +1,134 @@
+package fi.methics.webapp.musaplink.util.db;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+import fi.methics.webapp.musaplink.MusapLinkAccount;
+import fi.methics.webapp.musaplink.MusapLinkAccount.MusapKey;
+
+/**
+ * Storage backend for MUSAP Link Accounts, Link IDs, transport keys and key details.
+ * <p>{@link AccountStorage} delegates all storage operations to an implementation of this.
+ *
+ * @see JdbcAccountStore
+ * @see MemoryAccountStore
+ */
+public interface AccountStore {
+
+    /**
+     * Store a new Link ID for the given MUSAP ID
+     * @param musapid MUSAP ID
+     * @param linkid  Link ID
+     * @param name    Link name (may be null)
+     */
+    public void insertLinkId(String musapid, String linkid, String name);
+
+    /**
+     * Find the MUSAP ID a Link ID belongs to
+     * @param linkid Link ID
+     * @return MUSAP ID or null
+     */
+    public String findMusapIdByLinkId(String linkid);
+
+    /**
+     * Find a MUSAP account by MUSAP ID.
+     * The returned account has its Link IDs and transport keys filled.
+     * @param musapid MUSAP ID
+     * @return MusapAccount or null
+     */
+    public MusapLinkAccount findAccountByMusapId(String musapid);
+
+    /**
+     * Find key details by KeyID
+     * @param musapid MUSAP ID
+     * @param keyid   KeyID
+     * @return key details or null
+     */
+    public MusapKey findKeyDetailsByKeyID(String musapid, String keyid);
+
+    /**
+     * Find key details by key name
+     * @param musapid MUSAP ID
+     * @param keyname Key name
+     * @return key details or null
+     */
+    public MusapKey findKeyDetailsByKeyname(String musapid, String keyname);
+
+    /**
+     * List all LinkIDs related to given MUSAP ID
+     * @param musapid MUSAP ID
+     * @return List of LinkIDs
+     */
+    public List<String> listLinkIds(String musapid);
+
+    /**
+     * List all stored MUSAP accounts
+     * @return MUSAP accounts
+     */
+    public Collection<MusapLinkAccount> listAccounts();
+
+    /**
+     * List key details for a MUSAP account
+     * @param musapid MUSAP ID
+     * @return List of key details
+     */
+    public Collection<MusapKey> listKeyDetails(String musapid);
+
+    /**
+     * Store a new MUSAP account along with its transport keys
+     * @param account New account
+     */
+    public void storeAccount(MusapLinkAccount account);
+
+    /**
+     * Update push notification tokens of a MUSAP account
+     * @param account Account with new data
+     */
+    public void updateAccount(MusapLinkAccount account);
+
+    /**
+     * Mark the push token of a MUSAP account invalid.
+     * Nothing is marked if the account no longer has the given token.
+     * {@link #updateAccount(MusapLinkAccount)} clears the mark.
+     * @param musapid     MUSAP ID
+     * @param token       Rejected FCM or APNs token
+     * @param invalidated Time the token became invalid
+     */
+    public void invalidatePushToken(String musapid, String token, Date invalidated);
+
+    /**
+     * Insert new key details
+     * @param musapid MUSAP ID
+     * @param key     Key details
+     */
+    public void insertKeyDetails(String musapid, MusapKey key);
+
+    /**
+     * Update existing key details identified by {@link MusapKey#keyid}
+     * @param musapid MUSAP ID
+     * @param key     Key details
+     */
+    public void updateKeyDetails(String musapid, MusapKey key);
+
+    /**
+     * Export all accounts with their Link IDs and key details.
+     * <p>Accounts are read in pages ordered by MUSAP ID, so that memory use does not depend on the number of accounts.
+     * @param pageSize Number of accounts to read at a time
+     * @param consumer Consumer receiving each exported account
+     */
+    public void exportAccounts(int pageSize, Consumer<AccountExport> consumer);
+
+    /**
+     * Store a batch of new accounts with their Link IDs, transport keys and key details.
+     * <p>Accounts that already exist are skipped, including their Link IDs and keys.
+     * A new account with a Link ID that already belongs to another account is not stored,
+     * and is given to the conflict consumer instead.
+     * @param batch     Validated and deduplicated accounts to import
+     * @param conflicts Consumer receiving accounts rejected because of a Link ID conflict
+     * @return number of new accounts stored
+     */
+    public int importAccounts(List<AccountImport> batch, Consumer<AccountImport> conflicts);
+
+}
@@ -1,9 +1,5 @@
 package fi.methics.webapp.musaplink.util.db;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -17,29 +13,55 @@ import fi.methics.webapp.musaplink.util.MusapLinkConf;
 
 /**
  * Database class for MUSAP Link Coupling Codes.
+ * <p>The actual storage is handled by a {@link CouplingStore} implementation selected in configuration.
  */
 public class CouplingStorage extends MusapDb {
     
     private static final Log log = LogFactory.getLog(CouplingStorage.class);
 
-    private static final String INSERT_COUPLING_CODE       = "INSERT INTO coupling_codes (couplingcode, linkid, created_dt) VALUES (?,?, ?)";
-    private static final String SELECT_COUPLING_CODE       = "SELECT linkid, couplingcode FROM coupling_codes WHERE couplingcode=?";
-    private static final String DELETE_OLD_COUPLING_CODES  = "DELETE FROM coupling_codes WHERE created_dt<?";
+    // Collisions are rare, so running out of attempts means the code space is nearly full or the store is broken
+    private static final int MAX_ALLOCATION_ATTEMPTS = 10;
+
+    private static volatile CouplingStore store;
+
+    /**
+     * Get the storage backend. Initialized based on configuration on first call.
+     * @return storage backend
+     */
+    public static CouplingStore getStore() {
+        CouplingStore result = store;
+        if (result == null) {
+            synchronized (CouplingStorage.class) {
+                result = store;
+                if (result == null) {
+                    if (MusapLinkConf.getInstance().isMemoryStorageEnabled()) {
+                        log.info("Using in-memory coupling code storage");
+                        result = new MemoryCouplingStore();
+                    } else {
+                        result = new JdbcCouplingStore();
+                    }
+                    store = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Override the storage backend
+     * @param couplingStore storage backend
+     */
+    public static void setStore(CouplingStore couplingStore) {
+        store = couplingStore;
+    }
 
     /**
      * Clean old coupling codes
      */
     public static void cleanCouplingCodes() {
-        try (Connection conn = getConnection();
-            PreparedStatement ps = conn.prepareStatement(DELETE_OLD_COUPLING_CODES))
-        {
-            int cutoff = MusapLinkConf.getInstance().getCouplingLifetime();
-            int cutoffMs = cutoff * 1000;
-            ps.setTimestamp(1, new Timestamp(System.currentTimeMillis() - cutoffMs));
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            log.error("Failed clean coupling codes", e);
-        }
+        int cutoff = MusapLinkConf.getInstance().getCouplingLifetime();
+        int cutoffMs = cutoff * 1000;
+        getStore().deleteCouplingCodes(new Timestamp(System.currentTimeMillis() - cutoffMs));
     }
     
     /**
@@ -48,49 +70,27 @@ public class CouplingStorage extends MusapDb {
      * @return Link ID if found. Null otherwise.
      */
     public static String findLinkId(String couplingCode) {
-        
-        String linkid = null;
-        
-        try (Connection conn = getConnection();
-             PreparedStatement ps = conn.prepareStatement(SELECT_COUPLING_CODE))
-        {
-            ps.setString(1, couplingCode);
-            try (ResultSet result = ps.executeQuery()) {
-                if (result.next()) {
-                    linkid = result.getString(1);
-                }
-            }
-        } catch (SQLException e) {
-            log.error("Failed find Link ID", e);
-            throw new MusapException(e);
-        }
-        return linkid;
+        return getStore().findLinkId(couplingCode);
     }
     
     /**
      * Generate a new Coupling Code for given LinkID. Store the combination.
+     * <p>Codes are allocated by inserting a random code and retrying with a new one if it was already in use.
+     * No locking is needed, as the storage rejects duplicate codes.
      * @param linkid Link ID
      * @return Coupling Code
+     * @throws MusapException if no free code was found
      */
-    public static synchronized CouplingCode newCouplingCode(String linkid) {
-        CouplingCode couplingCode = new CouplingCode();
-        
-        while (findLinkId(couplingCode.getCode()) != null) {
-            couplingCode = new CouplingCode();
-        }
-        
-        try (Connection conn = getConnection();
-             PreparedStatement ps = conn.prepareStatement(INSERT_COUPLING_CODE))
-        {
-            ps.setString(1, couplingCode.getCode());
-            ps.setString(2, linkid);
-            ps.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            log.error("Failed insert Coupling Code", e);
-            throw new MusapException(e);
+    public static CouplingCode newCouplingCode(String linkid) {
+        for (int attempt = 1; attempt <= MAX_ALLOCATION_ATTEMPTS; attempt++) {
+            CouplingCode couplingCode = new CouplingCode();
+            if (getStore().storeCouplingCode(couplingCode.getCode(), linkid)) {
+                return couplingCode;
+            }
+            log.debug("Coupling Code collision (attempt " + attempt + ")");
         }
-        return couplingCode;
+        log.error("Failed to allocate a Coupling Code after " + MAX_ALLOCATION_ATTEMPTS + " attempts");
+        throw new MusapException("Failed to allocate a Coupling Code");
     }
     
     /**
@@ -0,0 +1,37 @@
+package fi.methics.webapp.musaplink.util.db;
+
+import java.sql.Timestamp;
+
+/**
+ * Storage backend for MUSAP Link Coupling Codes.
+ * <p>{@link CouplingStorage} delegates all storage operations to an implementation of this.
+ *
+ * @see JdbcCouplingStore
+ * @see MemoryCouplingStore
+ */
+public interface CouplingStore {
+
+    /**
+     * Find the Link ID stored for the given coupling code
+     * @param couplingCode Coupling Code
+     * @return Link ID if found. Null otherwise.
+     */
+    public String findLinkId(String couplingCode);
+
+    /**
+     * Store a Coupling Code and Link ID combination.
+     * <p>The store must reject codes that are already in use atomically, so that
+     * concurrent callers (also on other nodes) never get the same code.
+     * @param couplingCode Coupling Code
+     * @param linkid       Link ID
+     * @return true if stored, false if the Coupling Code is already in use
+     */
+    public boolean storeCouplingCode(String couplingCode, String linkid);
+
+    /**
+     * Delete coupling codes created before the given time
+     * @param cutoff Cutoff time
+     */
+    public void deleteCouplingCodes(Timestamp cutoff);
+
+}
@@ -0,0 +1,68 @@
+package fi.methics.webapp.musaplink.util.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.annotations.SerializedName;
+
+import fi.methics.webapp.musaplink.util.GsonMessage;
+
+/**
+ * Progress and result of a bulk account import
+ */
+public class ImportResult extends GsonMessage {
+
+    private static final int MAX_ERRORS = 100;
+
+    /** Number of input lines read */
+    @SerializedName("read")
+    public long read;
+
+    /** Number of new accounts stored */
+    @SerializedName("imported")
+    public long imported;
+
+    /** Number of accounts skipped because they were already in the input or in storage */
+    @SerializedName("duplicates")
+    public long duplicates;
+
+    /** Number of new accounts rejected because one of their Link IDs already belongs to another account */
+    @SerializedName("conflicts")
+    public long conflicts;
+
+    /** Number of lines rejected by validation */
+    @SerializedName("invalid")
+    public long invalid;
+
+    /** Number of batches written to storage */
+    @SerializedName("batches")
+    public long batches;
+
+    /** First validation and conflict errors (at most 100) */
+    @SerializedName("errors")
+    public List<String> errors = new ArrayList<>();
+
+    /**
+     * Record an invalid input line
+     * @param line   Line number
+     * @param reason Reason why the line was rejected
+     */
+    public void addInvalid(long line, String reason) {
+        this.invalid++;
+        if (this.errors.size() < MAX_ERRORS) {
+            this.errors.add("Line " + line + ": " + reason);
+        }
+    }
+
+    /**
+     * Record an account that was not imported because of a Link ID conflict
+     * @param musapid MUSAP ID of the account
+     */
+    public void addConflict(String musapid) {
+        this.conflicts++;
+        if (this.errors.size() < MAX_ERRORS) {
+            this.errors.add("Account " + musapid + ": Link ID belongs to another account");
+        }
+    }
+
+}
@@ -0,0 +1,836 @@
+package fi.methics.webapp.musaplink.util.db;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+import com.google.gson.JsonObject;
+
+import fi.methics.webapp.musaplink.MusapLinkAccount;
+import fi.methics.webapp.musaplink.MusapLinkAccount.MusapKey;
+import fi.methics.webapp.musaplink.util.ConcurrentExpirableMap;
+import fi.methics.webapp.musaplink.util.HexUtil;
+import fi.methics.webapp.musaplink.util.Interval;
+import fi.methics.webapp.musaplink.util.MusapException;
+import fi.methics.webapp.musaplink.util.MusapLinkConf;
+
+/**
+ * JDBC implementation of {@link AccountStore}.
+ *
+ * <p>If a read replica is configured, Link ID lookups, account listing and export are sent to the replica
+ * with two exceptions that keep reads consistent with writes:
+ * <ul>
+ * <li>MUSAP IDs and Link IDs written by this node are read from the primary for
+ *     {@link MusapLinkConf#getDbReplicaWriteWindow()} seconds after the write.
+ * <li>Lookups that find nothing (null or an empty list) in the replica are retried on the primary, so
+ *     accounts and links created on other nodes are found before they have replicated.
+ * </ul>
+ * <p>Accounts (push tokens and transport keys) and key details are always read from the primary.
+ * They are used by signing, key listing and push, and may have been changed by another node,
+ * which the write window of this node does not know about.
+ */
+public class JdbcAccountStore extends MusapDb implements AccountStore {
+
+    private static final Log log = LogFactory.getLog(JdbcAccountStore.class);
+
+    private static final String INSERT_ACCOUNT       = "INSERT INTO musap_accounts (musapid, fcmtoken, apnstoken, created_dt) VALUES (?,?,?,?)";
+    private static final String INSERT_LINKID        = "INSERT INTO link_ids (musapid, linkid, name) VALUES (?,?,?)";
+    private static final String INSERT_KEYS          = "INSERT INTO transport_keys (musapid, mackey, enckey, mode) VALUES (?,?,?,?)";
+    private static final String SELECT_KEYS          = "SELECT mackey, enckey, mode FROM transport_keys WHERE musapid=?";
+
+    private static final String UPDATE_ACCOUNT       = "UPDATE musap_accounts SET fcmtoken=?, apnstoken=?, token_invalid_dt=NULL WHERE musapid=?";
+    private static final String INVALIDATE_TOKEN     = "UPDATE musap_accounts SET token_invalid_dt=? WHERE musapid=? AND (fcmtoken=? OR apnstoken=?)";
+    private static final String SELECT_ACCOUNT       = "SELECT musapid, fcmtoken, apnstoken, token_invalid_dt FROM musap_accounts WHERE musapid=?";
+    private static final String LIST_ACCOUNTS        = "SELECT musapid, fcmtoken, apnstoken, token_invalid_dt FROM musap_accounts";
+
+    private static final String INSERT_KEYDETAILS         = "INSERT INTO key_details (musapid, keyid, keyname, certificate, publickey) VALUES (?,?,?,?,?)";
+    private static final String UPDATE_KEYDETAILS         = "UPDATE key_details SET keyname=?, certificate=?, publickey=?, modified_dt=? WHERE musapid=? AND keyid=?";
+    private static final String SELECT_KEYDETAILS         = "SELECT keyid, keyname, certificate, publickey FROM key_details WHERE musapid=? AND keyname=?";
+    private static final String SELECT_KEYDETAILS_BY_ID   = "SELECT keyid, keyname, certificate, publickey FROM key_details WHERE musapid=? AND keyid=?";
+    private static final String LIST_KEYDETAILS           = "SELECT keyid, keyname, certificate, publickey FROM key_details WHERE musapid=?";
+
+    private static final String SELECT_MUSAPID_BY_LINKID   = "SELECT musapid FROM link_ids WHERE linkid=?";
+    private static final String SELECT_LINKIDS_BY_MUSAPID  = "SELECT linkid  FROM link_ids WHERE musapid=?";
+
+    private static final String EXPORT_ACCOUNTS    = "SELECT musapid, fcmtoken, apnstoken FROM musap_accounts WHERE musapid>? ORDER BY musapid LIMIT ?";
+    private static final String EXPORT_LINKIDS     = "SELECT musapid, linkid FROM link_ids WHERE musapid>=? AND musapid<=?";
+    private static final String EXPORT_KEYDETAILS  = "SELECT keyid, keyname, certificate, publickey, musapid FROM key_details WHERE musapid>=? AND musapid<=?";
+
+    private static final String IMPORT_ACCOUNT     = "INSERT INTO musap_accounts (musapid, fcmtoken, apnstoken, created_dt) VALUES (?,?,?,?) ON CONFLICT DO NOTHING";
+    private static final String IMPORT_LINKID      = "INSERT INTO link_ids (musapid, linkid) VALUES (?,?)";
+    private static final String IMPORT_LINKID_USED = "SELECT 1 FROM link_ids WHERE linkid=?";
+    private static final String IMPORT_UNDO        = "DELETE FROM musap_accounts WHERE musapid=?";
+    private static final String IMPORT_KEYS        = "INSERT INTO transport_keys (musapid, mackey, enckey, mode) VALUES (?,?,?,?) ON CONFLICT DO NOTHING";
+    private static final String IMPORT_KEYDETAILS  = "INSERT INTO key_details (musapid, keyid, keyname, certificate, publickey) VALUES (?,?,?,?,?) ON CONFLICT DO NOTHING";
+
+    // PostgreSQL COPY import goes through session-local staging tables emptied on commit
+    private static final String[] CREATE_STAGING = {
+        "CREATE TEMP TABLE IF NOT EXISTS import_accounts (LIKE musap_accounts) ON COMMIT DELETE ROWS",
+        "CREATE TEMP TABLE IF NOT EXISTS import_link_ids (LIKE link_ids) ON COMMIT DELETE ROWS",
+        "CREATE TEMP TABLE IF NOT EXISTS import_transport_keys (LIKE transport_keys) ON COMMIT DELETE ROWS",
+        "CREATE TEMP TABLE IF NOT EXISTS import_key_details (LIKE key_details) ON COMMIT DELETE ROWS",
+        "CREATE TEMP TABLE IF NOT EXISTS import_new_accounts (musapid TEXT) ON COMMIT DELETE ROWS"
+    };
+    private static final String COPY_ACCOUNTS      = "COPY import_accounts (musapid, fcmtoken, apnstoken, created_dt) FROM STDIN";
+    private static final String COPY_LINKIDS       = "COPY import_link_ids (musapid, linkid) FROM STDIN";
+    private static final String COPY_KEYS          = "COPY import_transport_keys (musapid, mackey, enckey, mode) FROM STDIN";
+    private static final String COPY_KEYDETAILS    = "COPY import_key_details (musapid, keyid, keyname, certificate, publickey) FROM STDIN";
+    // New accounts with a Link ID that is already in use are not imported
+    private static final String DELETE_CONFLICTS   = "DELETE FROM import_accounts a USING import_link_ids i, link_ids l "
+                                                   + "WHERE i.musapid=a.musapid AND l.linkid=i.linkid "
+                                                   + "AND NOT EXISTS (SELECT 1 FROM musap_accounts m WHERE m.musapid=a.musapid) RETURNING a.musapid";
+    // Link IDs and keys are only merged for accounts created by this import (import_new_accounts).
+    // Link IDs of new accounts must not exist, so a conflict fails the batch instead of dropping the Link ID.
+    private static final String MERGE_ACCOUNTS     = "WITH created AS (INSERT INTO musap_accounts (musapid, fcmtoken, apnstoken, created_dt) SELECT musapid, fcmtoken, apnstoken, created_dt FROM import_accounts ON CONFLICT DO NOTHING RETURNING musapid) "
+                                                   + "INSERT INTO import_new_accounts (musapid) SELECT musapid FROM created";
+    private static final String MERGE_LINKIDS      = "INSERT INTO link_ids (musapid, linkid) SELECT i.musapid, i.linkid FROM import_link_ids i JOIN import_new_accounts n ON n.musapid=i.musapid";
+    private static final String MERGE_KEYS         = "INSERT INTO transport_keys (musapid, mackey, enckey, mode) SELECT i.musapid, i.mackey, i.enckey, i.mode FROM import_transport_keys i JOIN import_new_accounts n ON n.musapid=i.musapid ON CONFLICT DO NOTHING";
+    private static final String MERGE_KEYDETAILS   = "INSERT INTO key_details (musapid, keyid, keyname, certificate, publickey) SELECT i.musapid, i.keyid, i.keyname, i.certificate, i.publickey FROM import_key_details i JOIN import_new_accounts n ON n.musapid=i.musapid ON CONFLICT DO NOTHING";
+
+    // MUSAP IDs and Link IDs recently written by this node
+    private final ConcurrentExpirableMap<String, Boolean> recentWrites;
+
+    public JdbcAccountStore() {
+        long window = Interval.ofSeconds(MusapLinkConf.getInstance().getDbReplicaWriteWindow()).toMillis();
+        this.recentWrites = new ConcurrentExpirableMap<String, Boolean>(window);
+    }
+
+    /**
+     * Get metrics of the recently written MUSAP IDs and Link IDs that are read from the primary
+     * @return metrics JSON
+     */
+    public JsonObject getRecentWritesJson() {
+        return this.recentWrites.toJson();
+    }
+
+    @Override
+    public void insertLinkId(String musapid, String linkid, String name) {
+        try (Connection conn = getConnection();
+             PreparedStatement ps = conn.prepareStatement(INSERT_LINKID))
+        {
+            ps.setString(1, musapid);
+            ps.setString(2, linkid);
+            ps.setString(3, name);
+            ps.executeUpdate();
+            this.markWritten(musapid);
+            this.markWritten(linkid);
+        } catch (SQLException e) {
+            log.error("Failed insert Link ID", e);
+            throw new MusapException(e);
+        }
+    }
+
+    @Override
+    public String findMusapIdByLinkId(String linkid) {
+        try {
+            return this.read(linkid, conn -> {
+                try (PreparedStatement ps = conn.prepareStatement(SELECT_MUSAPID_BY_LINKID)) {
+                    ps.setString(1, linkid);
+                    try (ResultSet result = ps.executeQuery()) {
+                        if (result.next()) {
+                            return result.getString(1);
+                        }
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            log.error("Failed get MUSAP account", e);
+            throw new MusapException(e);
+        }
+    }
+
+    @Override
+    public MusapLinkAccount findAccountByMusapId(String musapid) {
+        try {
+            return this.readPrimary(conn -> {
+                try (PreparedStatement ps = conn.prepareStatement(SELECT_ACCOUNT)) {
+                    ps.setString(1, musapid);
+                    try (ResultSet result = ps.executeQuery()) {
+                        if (result.next()) {
+                            MusapLinkAccount account = new MusapLinkAccount();
+                            account.musapid = result.getString(1);
+                            account.fcmToken = result.getString(2);
+                            account.apnsToken = result.getString(3);
+                            account.tokenInvalidated = result.getTimestamp(4);
+                            account.linkids = new HashSet<>(listLinkIds(conn, musapid));
+                            fillTransportKeys(conn, account);
+                            return account;
+                        }
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            log.error("Failed get MUSAP account", e);
+            throw new MusapException(e);
+        }
+    }
+
+    @Override
+    public MusapKey findKeyDetailsByKeyID(String musapid, String keyid) {
+        try {
+            return this.readPrimary(conn -> {
+                try (PreparedStatement ps = conn.prepareStatement(SELECT_KEYDETAILS_BY_ID)) {
+                    ps.setString(1, musapid);
+                    ps.setString(2, keyid);
+                    try (ResultSet result = ps.executeQuery()) {
+                        if (result.next()) {
+                            return readKey(result);
+                        }
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            log.error("Failed get MUSAP account", e);
+            throw new MusapException(e);
+        }
+    }
+
+    @Override
+    public MusapKey findKeyDetailsByKeyname(String musapid, String keyname) {
+        try {
+            return this.readPrimary(conn -> {
+                try (PreparedStatement ps = conn.prepareStatement(SELECT_KEYDETAILS)) {
+                    ps.setString(1, musapid);
+                    ps.setString(2, keyname);
+                    try (ResultSet result = ps.executeQuery()) {
+                        if (result.next()) {
+                            return readKey(result);
+                        }
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            log.error("Failed get MUSAP account", e);
+            throw new MusapException(e);
+        }
+    }
+
+    @Override
+    public List<String> listLinkIds(String musapid) {
+        try {
+            return this.read(musapid, conn -> listLinkIds(conn, musapid));
+        } catch (SQLException e) {
+            log.error("Failed get Link IDs", e);
+            throw new MusapException(e);
+        }
+    }
+
+    @Override
+    public Collection<MusapLinkAccount> listAccounts() {
+
+        List<MusapLinkAccount> accounts = new ArrayList<>();
+
+        try (Connection conn = getReadConnection();
+                PreparedStatement ps = conn.prepareStatement(LIST_ACCOUNTS))
+        {
+            try (ResultSet result = ps.executeQuery()) {
+                while (result.next()) {
+                    MusapLinkAccount account = new MusapLinkAccount();
+                    account.musapid = result.getString(1);
+                    account.fcmToken = result.getString(2);
+                    account.apnsToken = result.getString(3);
+                    account.tokenInvalidated = result.getTimestamp(4);
+                    account.linkids = new HashSet<>(listLinkIds(conn, account.musapid));
+                    accounts.add(account);
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Failed get MUSAP ID", e);
+            throw new MusapException(e);
+        }
+        return accounts;
+    }
+
+    @Override
+    public Collection<MusapKey> listKeyDetails(String musapid) {
+        try {
+            return this.readPrimary(conn -> {
+                List<MusapKey> keys = new ArrayList<>();
+                try (PreparedStatement ps = conn.prepareStatement(LIST_KEYDETAILS)) {
+                    ps.setString(1, musapid);
+                    try (ResultSet result = ps.executeQuery()) {
+                        while (result.next()) {
+                            keys.add(readKey(result));
+                        }
+                    }
+                }
+                return keys;
+            });
+        } catch (SQLException e) {
+            log.error("Failed get MUSAP ID", e);
+            throw new MusapException(e);
+        }
+    }
+
+    @Override
+    public void storeAccount(MusapLinkAccount account) {
+        try (Connection conn = getConnection();
+             PreparedStatement ps = conn.prepareStatement(INSERT_ACCOUNT))
+        {
+            ps.setString(1, account.musapid);
+            ps.setString(2, account.fcmToken);
+            ps.setString(3, account.apnsToken);
+            ps.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+            ps.executeUpdate();
+
+            storeTransportKeys(conn, account);
+            this.markWritten(account.musapid);
+        } catch (SQLException e) {
+            log.error("Failed insert MUSAP account", e);
+            throw new MusapException(e);
+        }
+    }
+
+    @Override
+    public void updateAccount(MusapLinkAccount account) {
+        try (Connection conn = getConnection();
+             PreparedStatement ps = conn.prepareStatement(UPDATE_ACCOUNT))
+        {
+            ps.setString(1, account.fcmToken);
+            ps.setString(2, account.apnsToken);
+            ps.setString(3, account.musapid);
+            ps.executeUpdate();
+            this.markWritten(account.musapid);
+        } catch (SQLException e) {
+            log.error("Failed update MUSAP account", e);
+            throw new MusapException(e);
+        }
+    }
+
+    @Override
+    public void invalidatePushToken(String musapid, String token, Date invalidated) {
+        try (Connection conn = getConnection();
+             PreparedStatement ps = conn.prepareStatement(INVALIDATE_TOKEN))
+        {
+            ps.setTimestamp(1, new Timestamp(invalidated.getTime()));
+            ps.setString(2, musapid);
+            ps.setString(3, token);
+            ps.setString(4, token);
+            ps.executeUpdate();
+            this.markWritten(musapid);
+        } catch (SQLException e) {
+            log.error("Failed invalidate push token", e);
+            throw new MusapException(e);
+        }
+    }
+
+    @Override
+    public void insertKeyDetails(String musapid, MusapKey key) {
+        try (Connection conn = getConnection();
+             PreparedStatement ps = conn.prepareStatement(INSERT_KEYDETAILS))
+        {
+            ps.setString(1, musapid);
+            ps.setString(2, key.keyid);
+            ps.setString(3, key.keyname);
+            ps.setBytes(4, key.certificate);
+            ps.setBytes(5, key.publickey);
+            ps.executeUpdate();
+            this.markWritten(musapid);
+            log.debug("Inserted key details for keyid " + key.keyid);
+        } catch (SQLException e) {
+            log.error("Failed insert MUSAP account", e);
+            throw new MusapException(e);
+        }
+    }
+
+    @Override
+    public void updateKeyDetails(String musapid, MusapKey key) {
+        try (Connection conn = getConnection();
+             PreparedStatement ps = conn.prepareStatement(UPDATE_KEYDETAILS))
+        {
+            ps.setString(1, key.keyname);
+            ps.setBytes(2,  key.certificate);
+            ps.setBytes(3,  key.publickey);
+            ps.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+            ps.setString(5, musapid);
+            ps.setString(6, key.keyid);
+            ps.executeUpdate();
+            this.markWritten(musapid);
+            log.debug("Updated key details for keyid " + key.keyid);
+        } catch (SQLException e) {
+            log.error("Failed insert MUSAP account", e);
+            throw new MusapException(e);
+        }
+    }
+
+    @Override
+    public void exportAccounts(int pageSize, Consumer<AccountExport> consumer) {
+        // Keyset pagination: each page is a short query, so no long-running transaction or cursor is held open
+        String last = "";
+        try (Connection conn = getReadConnection()) {
+            while (true) {
+                Map<String, AccountExport> page = readExportPage(conn, last, pageSize);
+                if (page.isEmpty()) break;
+                for (AccountExport export : page.values()) {
+                    consumer.accept(export);
+                    last = export.musapid;
+                }
+                if (page.size() < pageSize) break;
+            }
+        } catch (SQLException e) {
+            log.error("Failed export MUSAP accounts", e);
+            throw new MusapException(e);
+        }
+    }
+
+    @Override
+    public int importAccounts(List<AccountImport> batch, Consumer<AccountImport> conflicts) {
+        if (batch.isEmpty()) return 0;
+        try (Connection conn = getConnection()) {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                int imported;
+                if (MusapLinkConf.getInstance().isImportCopyEnabled() && conn.isWrapperFor(PGConnection.class)) {
+                    imported = copyAccounts(conn, conn.unwrap(PGConnection.class).getCopyAPI(), batch, conflicts);
+                } else {
+                    imported = insertAccounts(conn, batch, conflicts);
+                }
+                conn.commit();
+                for (AccountImport account : batch) {
+                    this.markWritten(account.musapid);
+                }
+                return imported;
+            } catch (SQLException | IOException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException | IOException e) {
+            log.error("Failed import MUSAP accounts", e);
+            throw new MusapException(e);
+        }
+    }
+
+    /**
+     * Import a batch of accounts with PostgreSQL COPY.
+     * Rows are copied to staging tables, and then inserted to the real tables skipping existing rows.
+     * @param conn      DB connection (in a transaction)
+     * @param copy      PostgreSQL COPY API of the connection
+     * @param batch     Accounts to import
+     * @param conflicts Consumer receiving accounts rejected because of a Link ID conflict
+     * @return number of new accounts
+     * @throws SQLException
+     * @throws IOException
+     */
+    private static int copyAccounts(Connection conn, CopyManager copy, List<AccountImport> batch, Consumer<AccountImport> conflicts) throws SQLException, IOException {
+        try (Statement st = conn.createStatement()) {
+            for (String sql : CREATE_STAGING) {
+                st.execute(sql);
+            }
+        }
+
+        String now = new Timestamp(System.currentTimeMillis()).toString();
+        StringBuilder accounts = new StringBuilder();
+        StringBuilder linkids  = new StringBuilder();
+        StringBuilder keys     = new StringBuilder();
+        StringBuilder details  = new StringBuilder();
+        for (AccountImport account : batch) {
+            appendCopyRow(accounts, account.musapid, account.fcmToken, account.apnsToken, now);
+            for (String linkid : account.linkids) {
+                appendCopyRow(linkids, account.musapid, linkid);
+            }
+            if (account.macKey != null && account.aesKey != null) {
+                appendCopyRow(keys, account.musapid, toByteaHex(account.macKey), toByteaHex(account.aesKey), account.transportMode);
+            }
+            for (MusapKey key : account.keys) {
+                appendCopyRow(details, account.musapid, key.keyid, key.keyname, toByteaHex(key.certificate), toByteaHex(key.publickey));
+            }
+        }
+
+        copy.copyIn(COPY_ACCOUNTS, new StringReader(accounts.toString()));
+        if (linkids.length() > 0) copy.copyIn(COPY_LINKIDS,    new StringReader(linkids.toString()));
+        if (keys.length()    > 0) copy.copyIn(COPY_KEYS,       new StringReader(keys.toString()));
+        if (details.length() > 0) copy.copyIn(COPY_KEYDETAILS, new StringReader(details.toString()));
+
+        reportConflicts(conn, batch, conflicts);
+        try (Statement st = conn.createStatement()) {
+            int imported = st.executeUpdate(MERGE_ACCOUNTS);
+            st.executeUpdate(MERGE_LINKIDS);
+            st.executeUpdate(MERGE_KEYS);
+            st.executeUpdate(MERGE_KEYDETAILS);
+            return imported;
+        }
+    }
+
+    /**
+     * Import a batch of accounts with JDBC batch inserts.
+     * Used when COPY is not available.
+     * Link IDs and keys are only inserted for accounts created by this batch.
+     * @param conn      DB connection (in a transaction)
+     * @param batch     Accounts to import
+     * @param conflicts Consumer receiving accounts rejected because of a Link ID conflict
+     * @return number of new accounts
+     * @throws SQLException
+     */
+    private static int insertAccounts(Connection conn, List<AccountImport> batch, Consumer<AccountImport> conflicts) throws SQLException {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        List<AccountImport> created = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(IMPORT_ACCOUNT)) {
+            for (AccountImport account : batch) {
+                ps.setString(1, account.musapid);
+                ps.setString(2, account.fcmToken);
+                ps.setString(3, account.apnsToken);
+                ps.setTimestamp(4, now);
+                ps.addBatch();
+            }
+            int[] counts = ps.executeBatch();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    created.add(batch.get(i));
+                } else if (counts[i] == Statement.SUCCESS_NO_INFO) {
+                    // E.g. reWriteBatchedInserts. The account may have existed, so it is treated as existing.
+                    log.warn("No insert result for " + batch.get(i).musapid + ". Skipping its Link IDs and keys.");
+                }
+            }
+        }
+        // Undo new accounts whose Link IDs are already in use
+        try (PreparedStatement used = conn.prepareStatement(IMPORT_LINKID_USED);
+             PreparedStatement undo = conn.prepareStatement(IMPORT_UNDO))
+        {
+            for (Iterator<AccountImport> i = created.iterator(); i.hasNext(); ) {
+                AccountImport account = i.next();
+                if (!isLinkIdUsed(used, account)) continue;
+                undo.setString(1, account.musapid);
+                undo.executeUpdate();
+                conflicts.accept(account);
+                i.remove();
+            }
+        }
+        try (PreparedStatement ps = conn.prepareStatement(IMPORT_LINKID)) {
+            for (AccountImport account : created) {
+                for (String linkid : account.linkids) {
+                    ps.setString(1, account.musapid);
+                    ps.setString(2, linkid);
+                    ps.addBatch();
+                }
+            }
+            ps.executeBatch();
+        }
+        try (PreparedStatement ps = conn.prepareStatement(IMPORT_KEYS)) {
+            for (AccountImport account : created) {
+                if (account.macKey == null || account.aesKey == null) continue;
+                ps.setString(1, account.musapid);
+                ps.setBytes(2,  account.macKey);
+                ps.setBytes(3,  account.aesKey);
+                ps.setString(4, account.transportMode);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        try (PreparedStatement ps = conn.prepareStatement(IMPORT_KEYDETAILS)) {
+            for (AccountImport account : created) {
+                for (MusapKey key : account.keys) {
+                    ps.setString(1, account.musapid);
+                    ps.setString(2, key.keyid);
+                    ps.setString(3, key.keyname);
+                    ps.setBytes(4, key.certificate);
+                    ps.setBytes(5, key.publickey);
+                    ps.addBatch();
+                }
+            }
+            ps.executeBatch();
+        }
+        return created.size();
+    }
+
+    /**
+     * Remove new staged accounts with a Link ID that is already in use, and report them
+     * @param conn      DB connection (in a transaction, with staged rows)
+     * @param batch     Staged accounts
+     * @param conflicts Consumer receiving the removed accounts
+     * @throws SQLException
+     */
+    private static void reportConflicts(Connection conn, List<AccountImport> batch, Consumer<AccountImport> conflicts) throws SQLException {
+        Set<String> rejected = new HashSet<>();
+        try (Statement st = conn.createStatement();
+             ResultSet result = st.executeQuery(DELETE_CONFLICTS))
+        {
+            while (result.next()) {
+                rejected.add(result.getString(1));
+            }
+        }
+        if (rejected.isEmpty()) return;
+        for (AccountImport account : batch) {
+            if (rejected.contains(account.musapid)) conflicts.accept(account);
+        }
+    }
+
+    /**
+     * Check if any Link ID of an account is already in use
+     * @param ps      Prepared {@link #IMPORT_LINKID_USED} statement
+     * @param account Account to check
+     * @return true if a Link ID is in use
+     * @throws SQLException
+     */
+    private static boolean isLinkIdUsed(PreparedStatement ps, AccountImport account) throws SQLException {
+        for (String linkid : account.linkids) {
+            ps.setString(1, linkid);
+            try (ResultSet result = ps.executeQuery()) {
+                if (result.next()) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Append a row in PostgreSQL COPY text format
+     * @param sb     Builder to append to
+     * @param values Column values (null for NULL)
+     */
+    private static void appendCopyRow(StringBuilder sb, String... values) {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) sb.append('\t');
+            String value = values[i];
+            if (value == null) {
+                sb.append("\\N");
+                continue;
+            }
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                switch (c) {
+                    case '\\': sb.append("\\\\"); break;
+                    case '\t': sb.append("\\t");  break;
+                    case '\n': sb.append("\\n");  break;
+                    case '\r': sb.append("\\r");  break;
+                    default:   sb.append(c);
+                }
+            }
+        }
+        sb.append('\n');
+    }
+
+    /**
+     * Convert bytes to PostgreSQL bytea hex input format
+     * @param bytes bytes (may be null)
+     * @return hex String or null
+     */
+    private static String toByteaHex(byte[] bytes) {
+        if (bytes == null) return null;
+        return "\\x" + HexUtil.hexLine(bytes);
+    }
+
+    /**
+     * Read one page of accounts for export, with Link IDs and key details of the page
+     * @param conn     DB connection
+     * @param after    Read accounts whose MUSAP ID is after this
+     * @param pageSize Max number of accounts to read
+     * @return accounts ordered by MUSAP ID
+     * @throws SQLException
+     */
+    private static Map<String, AccountExport> readExportPage(Connection conn, String after, int pageSize) throws SQLException {
+        Map<String, AccountExport> page = new LinkedHashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(EXPORT_ACCOUNTS)) {
+            ps.setFetchSize(pageSize);
+            ps.setString(1, after);
+            ps.setInt(2, pageSize);
+            try (ResultSet result = ps.executeQuery()) {
+                while (result.next()) {
+                    AccountExport export = new AccountExport();
+                    export.musapid   = result.getString(1);
+                    export.fcmToken  = result.getString(2);
+                    export.apnsToken = result.getString(3);
+                    page.put(export.musapid, export);
+                }
+            }
+        }
+        if (page.isEmpty()) return page;
+
+        String first = page.keySet().iterator().next();
+        String last  = null;
+        for (String musapid : page.keySet()) {
+            last = musapid;
+        }
+
+        try (PreparedStatement ps = conn.prepareStatement(EXPORT_LINKIDS)) {
+            ps.setFetchSize(pageSize);
+            ps.setString(1, first);
+            ps.setString(2, last);
+            try (ResultSet result = ps.executeQuery()) {
+                while (result.next()) {
+                    AccountExport export = page.get(result.getString(1));
+                    if (export != null) export.linkids.add(result.getString(2));
+                }
+            }
+        }
+        try (PreparedStatement ps = conn.prepareStatement(EXPORT_KEYDETAILS)) {
+            ps.setFetchSize(pageSize);
+            ps.setString(1, first);
+            ps.setString(2, last);
+            try (ResultSet result = ps.executeQuery()) {
+                while (result.next()) {
+                    AccountExport export = page.get(result.getString(5));
+                    if (export != null) export.keys.add(readKey(result));
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Run a read-only query.
+     * <p>The query is run against the replica, unless the given key was recently written by this node.
+     * If the replica returns null or an empty collection, the query is retried against the primary.
+     * @param key   MUSAP ID or Link ID the query is about
+     * @param query Query to run
+     * @return query result
+     * @throws SQLException
+     */
+    private <T> T read(String key, Query<T> query) throws SQLException {
+        if (isReplicaEnabled() && !this.recentWrites.containsKey(key)) {
+            try (Connection conn = getReadConnection()) {
+                T result = query.run(conn);
+                if (result != null && !(result instanceof Collection && ((Collection<?>) result).isEmpty())) {
+                    return result;
+                }
+            }
+            log.trace("Replica had no result for " + key + ". Retrying on primary.");
+        }
+        try (Connection conn = getConnection()) {
+            return query.run(conn);
+        }
+    }
+
+    /**
+     * Run a query against the primary
+     * @param query Query to run
+     * @return query result
+     * @throws SQLException
+     */
+    private <T> T readPrimary(Query<T> query) throws SQLException {
+        try (Connection conn = getConnection()) {
+            return query.run(conn);
+        }
+    }
+
+    /**
+     * Remember that the given MUSAP ID or Link ID was just written, so that
+     * following reads are not served from a lagging replica
+     * @param key MUSAP ID or Link ID
+     */
+    private void markWritten(String key) {
+        if (key == null) return;
+        if (!isReplicaEnabled()) return;
+        this.recentWrites.put(key, Boolean.TRUE);
+    }
+
+    /**
+     * List all LinkIDs related to given MUSAP ID using the given connection
+     * @param conn    DB connection
+     * @param musapid MUSAP ID
+     * @return List of LinkIDs
+     * @throws SQLException
+     */
+    private static List<String> listLinkIds(Connection conn, String musapid) throws SQLException {
+        List<String> linkids = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(SELECT_LINKIDS_BY_MUSAPID)) {
+            ps.setString(1, musapid);
+            try (ResultSet result = ps.executeQuery()) {
+                while (result.next()) {
+                    linkids.add(result.getString(1));
+                }
+            }
+        }
+        return linkids;
+    }
+
+    /**
+     * Read key details from the current row of a result set
+     * @param result Result set with columns keyid, keyname, certificate and publickey
+     * @return key details
+     * @throws SQLException
+     */
+    private static MusapKey readKey(ResultSet result) throws SQLException {
+        MusapKey key = new MusapKey();
+        key.keyid       = result.getString(1);
+        key.keyname     = result.getString(2);
+        key.certificate = result.getBytes(3);
+        key.publickey   = result.getBytes(4);
+        return key;
+    }
+
+    /**
+     * Store transport encryption keys.
+     * Does nothing if given account object has no keys.
+     * @param conn DB connection
+     * @param account Account that contains the keys
+     */
+    private static void storeTransportKeys(Connection conn, MusapLinkAccount account) {
+        if (account == null) return;
+        if (account.aesKey == null) return;
+        if (account.macKey == null) return;
+
+        log.debug("Storing transport keys for MUSAP ID " + account.musapid);
+        try (PreparedStatement ps = conn.prepareStatement(INSERT_KEYS)) {
+            ps.setString(1, account.musapid);
+            ps.setBytes(2,  account.macKey);
+            ps.setBytes(3,  account.aesKey);
+            ps.setString(4, account.transportMode);
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            log.error("Failed insert MUSAP transport keys", e);
+            throw new MusapException(e);
+        }
+    }
+
+    /**
+     * Fetch and fill transport encryption keys to given MUSAP account
+     * @param conn    DB Connection
+     * @param account Account that should be filled
+     * @return Account with keys
+     */
+    private static MusapLinkAccount fillTransportKeys(Connection conn, MusapLinkAccount account) {
+
+        log.debug("Looking for transport keys");
+        if (account == null) return null;
+
+        try (PreparedStatement ps = conn.prepareStatement(SELECT_KEYS)) {
+           ps.setString(1, account.musapid);
+           try (ResultSet result = ps.executeQuery()) {
+               if (result.next()) {
+                   account.macKey = result.getBytes(1);
+                   account.aesKey = result.getBytes(2);
+                   account.transportMode = result.getString(3);
+                   if (account.aesKey != null) log.debug("Found AES key of " + account.aesKey.length + " bytes");
+                   if (account.macKey != null) log.debug("Found MAC key of " + account.macKey.length + " bytes");
+               }
+           }
+       } catch (SQLException e) {
+           log.error("Failed get transport keys", e);
+           throw new MusapException(e);
+       }
+        return account;
+    }
+
+    @FunctionalInterface
+    private interface Query<T> {
+        public T run(Connection conn) throws SQLException;
+    }
+
+}
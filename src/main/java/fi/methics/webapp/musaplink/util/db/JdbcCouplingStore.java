@@ -0,0 +1,78 @@
+package fi.methics.webapp.musaplink.util.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import fi.methics.webapp.musaplink.util.MusapException;
+
+/**
+ * JDBC implementation of {@link CouplingStore}.
+ */
+public class JdbcCouplingStore extends MusapDb implements CouplingStore {
+
+    private static final Log log = LogFactory.getLog(JdbcCouplingStore.class);
+
+    private static final String INSERT_COUPLING_CODE       = "INSERT INTO coupling_codes (couplingcode, linkid, created_dt) VALUES (?,?, ?)";
+    private static final String SELECT_COUPLING_CODE       = "SELECT linkid, couplingcode FROM coupling_codes WHERE couplingcode=?";
+    private static final String DELETE_OLD_COUPLING_CODES  = "DELETE FROM coupling_codes WHERE created_dt<?";
+
+    @Override
+    public String findLinkId(String couplingCode) {
+
+        String linkid = null;
+
+        try (Connection conn = getConnection();
+             PreparedStatement ps = conn.prepareStatement(SELECT_COUPLING_CODE))
+        {
+            ps.setString(1, couplingCode);
+            try (ResultSet result = ps.executeQuery()) {
+                if (result.next()) {
+                    linkid = result.getString(1);
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Failed find Link ID", e);
+            throw new MusapException(e);
+        }
+        return linkid;
+    }
+
+    @Override
+    public boolean storeCouplingCode(String couplingCode, String linkid) {
+        try (Connection conn = getConnection();
+             PreparedStatement ps = conn.prepareStatement(INSERT_COUPLING_CODE))
+        {
+            ps.setString(1, couplingCode);
+            ps.setString(2, linkid);
+            ps.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+            ps.executeUpdate();
+            return true;
+        } catch (SQLException e) {
+            if (wasItDuplicateInsert(e)) {
+                log.debug("Coupling Code already in use");
+                return false;
+            }
+            log.error("Failed insert Coupling Code", e);
+            throw new MusapException(e);
+        }
+    }
+
+    @Override
+    public void deleteCouplingCodes(Timestamp cutoff) {
+        try (Connection conn = getConnection();
+            PreparedStatement ps = conn.prepareStatement(DELETE_OLD_COUPLING_CODES))
+        {
+            ps.setTimestamp(1, cutoff);
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            log.error("Failed clean coupling codes", e);
+        }
+    }
+
+}
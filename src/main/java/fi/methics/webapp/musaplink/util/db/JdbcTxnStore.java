@@ -0,0 +1,122 @@
+package fi.methics.webapp.musaplink.util.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import fi.methics.webapp.musaplink.coupling.json.SignatureReq;
+import fi.methics.webapp.musaplink.util.MusapException;
+
+/**
+ * JDBC implementation of {@link TxnStore}.
+ */
+public class JdbcTxnStore extends MusapDb implements TxnStore {
+
+    private static final Log log = LogFactory.getLog(JdbcTxnStore.class);
+
+    private static final String INSERT_SIGN_REQ    = "INSERT INTO transactions (transid, linkid, request, created_dt) VALUES (?,?,?,?)";
+    private static final String SELECT_SIGN_REQ    = "SELECT request, transid FROM transactions WHERE linkid=? AND response IS NULL AND created_dt >= CURRENT_TIMESTAMP - interval '2 minutes' ORDER BY created_dt DESC LIMIT 1";
+
+    private static final String SELECT_TXN         = "SELECT 1 FROM transactions WHERE transid=?";
+    private static final String DELETE_TXN         = "DELETE FROM transactions WHERE transid=?";
+    private static final String DELETE_OLD_TXNS    = "DELETE FROM transactions WHERE created_dt<?";
+    private static final String COUNT_TRANSACTIONS = "SELECT COUNT(*) FROM transactions";
+
+    @Override
+    public void storeRequest(String transid, String linkid, SignatureReq req) {
+        try (Connection conn = getConnection();
+             PreparedStatement ps = conn.prepareStatement(INSERT_SIGN_REQ))
+        {
+            ps.setString(1, transid);
+            ps.setString(2, linkid);
+            ps.setString(3, req.toJson());
+            ps.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            log.error("Failed insert transaction", e);
+            throw new MusapException(e);
+        }
+    }
+
+    @Override
+    public SignatureReq getSignReq(String linkid) {
+        try (Connection conn = getConnection();
+             PreparedStatement ps = conn.prepareStatement(SELECT_SIGN_REQ))
+        {
+            ps.setString(1, linkid);
+            try (ResultSet result = ps.executeQuery()) {
+                if (result.next()) {
+                    SignatureReq req = SignatureReq.fromJson(result.getString(1), SignatureReq.class);
+                    req.transid = result.getString(2);
+                    return req;
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Failed get transaction", e);
+            throw new MusapException(e);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasTransaction(String transid) {
+        try (Connection conn = getConnection();
+             PreparedStatement ps = conn.prepareStatement(SELECT_TXN))
+        {
+            ps.setString(1, transid);
+            try (ResultSet result = ps.executeQuery()) {
+                return result.next();
+            }
+        } catch (SQLException e) {
+            log.error("Failed get transaction", e);
+            throw new MusapException(e);
+        }
+    }
+
+    @Override
+    public void deleteTransaction(String transid) {
+        try (Connection conn = getConnection();
+             PreparedStatement ps = conn.prepareStatement(DELETE_TXN))
+        {
+            ps.setString(1, transid);
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            log.error("Failed delete transaction", e);
+        }
+    }
+
+    @Override
+    public int countTransactions() {
+        try (Connection conn = getConnection();
+                PreparedStatement ps = conn.prepareStatement(COUNT_TRANSACTIONS))
+        {
+            try (ResultSet result = ps.executeQuery()) {
+                if (result.next()) {
+                    return result.getInt(1);
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Failed count transactions", e);
+            throw new MusapException(e);
+        }
+        return 0;
+    }
+
+    @Override
+    public void deleteTransactions(Timestamp cutoff) {
+        try (Connection conn = getConnection();
+             PreparedStatement ps = conn.prepareStatement(DELETE_OLD_TXNS))
+        {
+            ps.setTimestamp(1, cutoff);
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            log.error("Failed clean transactiosn", e);
+        }
+    }
+
+}
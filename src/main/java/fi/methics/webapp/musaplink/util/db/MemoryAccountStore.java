@@ -0,0 +1,232 @@
+package fi.methics.webapp.musaplink.util.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import fi.methics.webapp.musaplink.MusapLinkAccount;
+import fi.methics.webapp.musaplink.MusapLinkAccount.MusapKey;
+import fi.methics.webapp.musaplink.util.MusapException;
+
+/**
+ * In-memory implementation of {@link AccountStore}.
+ *
+ * <p>Accounts live only as long as the JVM. Objects are copied on the way in and out
+ * so that callers can modify returned accounts without affecting the stored state.
+ */
+public class MemoryAccountStore implements AccountStore {
+
+    private final Map<String, MusapLinkAccount>      accounts = new ConcurrentHashMap<>();
+    private final Map<String, String>                linkids  = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, MusapKey>> keys     = new ConcurrentHashMap<>();
+
+    @Override
+    public void insertLinkId(String musapid, String linkid, String name) {
+        if (this.linkids.putIfAbsent(linkid, musapid) != null) {
+            throw new MusapException("Duplicate Link ID " + linkid);
+        }
+        MusapLinkAccount account = this.accounts.get(musapid);
+        if (account != null) {
+            account.linkids.add(linkid);
+        }
+    }
+
+    @Override
+    public String findMusapIdByLinkId(String linkid) {
+        return this.linkids.get(linkid);
+    }
+
+    @Override
+    public MusapLinkAccount findAccountByMusapId(String musapid) {
+        MusapLinkAccount account = this.accounts.get(musapid);
+        if (account == null) return null;
+        return copy(account);
+    }
+
+    @Override
+    public MusapKey findKeyDetailsByKeyID(String musapid, String keyid) {
+        MusapKey key = this.getKeys(musapid).get(keyid);
+        if (key == null) return null;
+        return copy(key);
+    }
+
+    @Override
+    public MusapKey findKeyDetailsByKeyname(String musapid, String keyname) {
+        for (MusapKey key : this.getKeys(musapid).values()) {
+            if (keyname.equals(key.keyname)) {
+                return copy(key);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<String> listLinkIds(String musapid) {
+        MusapLinkAccount account = this.accounts.get(musapid);
+        if (account == null) return new ArrayList<>();
+        return new ArrayList<>(account.linkids);
+    }
+
+    @Override
+    public Collection<MusapLinkAccount> listAccounts() {
+        List<MusapLinkAccount> result = new ArrayList<>();
+        for (MusapLinkAccount account : this.accounts.values()) {
+            result.add(copy(account));
+        }
+        return result;
+    }
+
+    @Override
+    public Collection<MusapKey> listKeyDetails(String musapid) {
+        List<MusapKey> result = new ArrayList<>();
+        for (MusapKey key : this.getKeys(musapid).values()) {
+            result.add(copy(key));
+        }
+        return result;
+    }
+
+    @Override
+    public void storeAccount(MusapLinkAccount account) {
+        MusapLinkAccount stored = copy(account);
+        stored.linkids = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        if (this.accounts.putIfAbsent(account.musapid, stored) != null) {
+            throw new MusapException("Duplicate MUSAP ID " + account.musapid);
+        }
+    }
+
+    @Override
+    public void updateAccount(MusapLinkAccount account) {
+        MusapLinkAccount stored = this.accounts.get(account.musapid);
+        if (stored == null) return;
+        synchronized (stored) {
+            stored.fcmToken  = account.fcmToken;
+            stored.apnsToken = account.apnsToken;
+            stored.tokenInvalidated = null;
+        }
+    }
+
+    @Override
+    public void invalidatePushToken(String musapid, String token, Date invalidated) {
+        MusapLinkAccount stored = this.accounts.get(musapid);
+        if (stored == null || token == null) return;
+        synchronized (stored) {
+            if (token.equals(stored.fcmToken) || token.equals(stored.apnsToken)) {
+                stored.tokenInvalidated = invalidated;
+            }
+        }
+    }
+
+    @Override
+    public void insertKeyDetails(String musapid, MusapKey key) {
+        Map<String, MusapKey> accountKeys = this.keys.computeIfAbsent(musapid, k -> new ConcurrentHashMap<>());
+        if (accountKeys.putIfAbsent(key.keyid, copy(key)) != null) {
+            throw new MusapException("Duplicate key details for keyid " + key.keyid);
+        }
+    }
+
+    @Override
+    public void updateKeyDetails(String musapid, MusapKey key) {
+        Map<String, MusapKey> accountKeys = this.keys.get(musapid);
+        if (accountKeys == null) return;
+        accountKeys.computeIfPresent(key.keyid, (k, old) -> {
+            MusapKey updated = copy(key);
+            updated.keyusages = old.keyusages;
+            return updated;
+        });
+    }
+
+    @Override
+    public void exportAccounts(int pageSize, Consumer<AccountExport> consumer) {
+        for (MusapLinkAccount account : this.accounts.values()) {
+            AccountExport export = new AccountExport(copy(account));
+            export.keys.addAll(this.listKeyDetails(account.musapid));
+            consumer.accept(export);
+        }
+    }
+
+    @Override
+    public int importAccounts(List<AccountImport> batch, Consumer<AccountImport> conflicts) {
+        int imported = 0;
+        for (AccountImport entry : batch) {
+            // Existing accounts are skipped, including their Link IDs and keys
+            if (this.accounts.containsKey(entry.musapid)) continue;
+
+            // Reserve the Link IDs before creating the account
+            List<String> reserved = new ArrayList<>();
+            for (String linkid : entry.linkids) {
+                if (this.linkids.putIfAbsent(linkid, entry.musapid) != null) break;
+                reserved.add(linkid);
+            }
+            if (reserved.size() < entry.linkids.size()) {
+                reserved.forEach(linkid -> this.linkids.remove(linkid, entry.musapid));
+                conflicts.accept(entry);
+                continue;
+            }
+
+            MusapLinkAccount stored = copy(entry.toAccount());
+            stored.linkids = Collections.newSetFromMap(new ConcurrentHashMap<>());
+            stored.linkids.addAll(reserved);
+            if (this.accounts.putIfAbsent(entry.musapid, stored) != null) {
+                reserved.forEach(linkid -> this.linkids.remove(linkid, entry.musapid));
+                continue;
+            }
+            imported++;
+            Map<String, MusapKey> accountKeys = this.keys.computeIfAbsent(entry.musapid, k -> new ConcurrentHashMap<>());
+            for (MusapKey key : entry.keys) {
+                accountKeys.putIfAbsent(key.keyid, copy(key));
+            }
+        }
+        return imported;
+    }
+
+    /**
+     * Get the key details map of a MUSAP account
+     * @param musapid MUSAP ID
+     * @return map of KeyID to key details (never null)
+     */
+    private Map<String, MusapKey> getKeys(String musapid) {
+        Map<String, MusapKey> accountKeys = this.keys.get(musapid);
+        if (accountKeys == null) return Collections.emptyMap();
+        return accountKeys;
+    }
+
+    /**
+     * Make a detached copy of an account
+     * @param account Account to copy
+     * @return copy
+     */
+    private static MusapLinkAccount copy(MusapLinkAccount account) {
+        MusapLinkAccount copy = new MusapLinkAccount();
+        synchronized (account) {
+            copy.musapid   = account.musapid;
+            copy.fcmToken  = account.fcmToken;
+            copy.apnsToken = account.apnsToken;
+            copy.aesKey    = account.aesKey;
+            copy.macKey    = account.macKey;
+            copy.transportMode = account.transportMode;
+            copy.tokenInvalidated = account.tokenInvalidated;
+        }
+        copy.linkids = new HashSet<>(account.linkids);
+        return copy;
+    }
+
+    /**
+     * Make a detached copy of key details
+     * @param key Key details to copy
+     * @return copy
+     */
+    private static MusapKey copy(MusapKey key) {
+        MusapKey copy = new MusapKey(key.keyid, key.keyname);
+        copy.certificate = key.certificate;
+        copy.publickey   = key.publickey;
+        copy.keyusages   = key.keyusages;
+        return copy;
+    }
+
+}
@@ -0,0 +1,53 @@
+package fi.methics.webapp.musaplink.util.db;
+
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fi.methics.webapp.musaplink.util.MusapLinkConf;
+
+/**
+ * In-memory implementation of {@link CouplingStore}.
+ *
+ * <p>Coupling codes older than the configured coupling lifetime are not returned
+ * even if {@link CouplingStorage#cleanCouplingCodes()} has not removed them yet.
+ */
+public class MemoryCouplingStore implements CouplingStore {
+
+    private final Map<String, StoredCode> codes = new ConcurrentHashMap<>();
+
+    @Override
+    public String findLinkId(String couplingCode) {
+        StoredCode code = this.codes.get(couplingCode);
+        if (code == null) return null;
+
+        long lifetimeMs = MusapLinkConf.getInstance().getCouplingLifetime() * 1000L;
+        if (code.created < System.currentTimeMillis() - lifetimeMs) {
+            this.codes.remove(couplingCode, code);
+            return null;
+        }
+        return code.linkid;
+    }
+
+    @Override
+    public boolean storeCouplingCode(String couplingCode, String linkid) {
+        return this.codes.putIfAbsent(couplingCode, new StoredCode(linkid)) == null;
+    }
+
+    @Override
+    public void deleteCouplingCodes(Timestamp cutoff) {
+        long limit = cutoff.getTime();
+        this.codes.values().removeIf(code -> code.created < limit);
+    }
+
+    private static class StoredCode {
+        private final String linkid;
+        private final long   created;
+
+        public StoredCode(String linkid) {
+            this.linkid  = linkid;
+            this.created = System.currentTimeMillis();
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package fi.methics.webapp.musaplink.util.db;
+
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fi.methics.webapp.musaplink.coupling.json.SignatureReq;
+import fi.methics.webapp.musaplink.util.Interval;
+
+/**
+ * In-memory implementation of {@link TxnStore}.
+ *
+ * <p>Requests are kept as JSON like in the database, and are only visible to
+ * {@link #getSignReq(String)} for the same 2 minute window as with JDBC storage.
+ * Old transactions are removed by {@link TxnStorage#cleanTransactions()}.
+ */
+public class MemoryTxnStore implements TxnStore {
+
+    private static final long PENDING_WINDOW = Interval.ofMinutes(2).toMillis();
+
+    private final Map<String, StoredTxn>              txns     = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, StoredTxn>> byLinkId = new ConcurrentHashMap<>();
+
+    @Override
+    public void storeRequest(String transid, String linkid, SignatureReq req) {
+        StoredTxn txn = new StoredTxn(transid, linkid, req.toJson());
+        this.txns.put(transid, txn);
+        this.byLinkId.compute(linkid, (k, pending) -> {
+            if (pending == null) pending = new ConcurrentHashMap<>();
+            pending.put(transid, txn);
+            return pending;
+        });
+    }
+
+    @Override
+    public SignatureReq getSignReq(String linkid) {
+        Map<String, StoredTxn> pending = this.byLinkId.get(linkid);
+        if (pending == null) return null;
+
+        long      since  = System.currentTimeMillis() - PENDING_WINDOW;
+        StoredTxn latest = null;
+        for (StoredTxn txn : pending.values()) {
+            if (txn.created < since) continue;
+            if (latest == null || txn.created > latest.created) {
+                latest = txn;
+            }
+        }
+        if (latest == null) return null;
+        SignatureReq req = SignatureReq.fromJson(latest.request, SignatureReq.class);
+        req.transid = latest.transid;
+        return req;
+    }
+
+    @Override
+    public boolean hasTransaction(String transid) {
+        return this.txns.containsKey(transid);
+    }
+
+    @Override
+    public void deleteTransaction(String transid) {
+        StoredTxn txn = this.txns.remove(transid);
+        if (txn != null) {
+            this.unlink(txn);
+        }
+    }
+
+    @Override
+    public int countTransactions() {
+        return this.txns.size();
+    }
+
+    @Override
+    public void deleteTransactions(Timestamp cutoff) {
+        long limit = cutoff.getTime();
+        for (StoredTxn txn : this.txns.values()) {
+            if (txn.created < limit && this.txns.remove(txn.transid, txn)) {
+                this.unlink(txn);
+            }
+        }
+    }
+
+    /**
+     * Remove a transaction from the Link ID index
+     * @param txn Transaction to remove
+     */
+    private void unlink(StoredTxn txn) {
+        this.byLinkId.computeIfPresent(txn.linkid, (k, pending) -> {
+            pending.remove(txn.transid, txn);
+            return pending.isEmpty() ? null : pending;
+        });
+    }
+
+    private static class StoredTxn {
+        private final String transid;
+        private final String linkid;
+        private final String request;
+        private final long   created;
+
+        public StoredTxn(String transid, String linkid, String request) {
+            this.transid = transid;
+            this.linkid  = linkid;
+            this.request = request;
+            this.created = System.currentTimeMillis();
+        }
+    }
+
+}
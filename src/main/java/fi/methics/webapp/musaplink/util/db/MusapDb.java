@@ -28,6 +28,7 @@ public class MusapDb {
     public static final String MSG_DUPLICATE_KEY = "duplicate key value";
     
     private static DataSource datasource;
+    private static DataSource replica;
     
     /**
      * Initialize PostgreSQL {@link DataSource}
@@ -41,6 +42,36 @@ public class MusapDb {
         if (conf.getDbPassword() != null) datasource.setPassword(conf.getDbPassword());
         datasource.setMaxActive(100);
         datasource.setDriverClassName(conf.getDriverClass());
+        initReplicaDataSource(conf);
+    }
+    
+    /**
+     * Initialize the optional read-only replica {@link DataSource}.
+     * Does nothing if no replica URL is configured.
+     */
+    private static void initReplicaDataSource(MusapLinkConf conf) {
+        if (replica != null) return;
+        if (conf.getDbReplicaUrl() == null) return;
+        log.info("Using read replica " + conf.getDbReplicaUrl());
+        replica = new DataSource();
+        replica.setPoolProperties(new PoolProperties());
+        replica.setUrl(conf.getDbReplicaUrl());
+        if (conf.getDbReplicaUsername() != null) replica.setUsername(conf.getDbReplicaUsername());
+        if (conf.getDbReplicaPassword() != null) replica.setPassword(conf.getDbReplicaPassword());
+        replica.setMaxActive(100);
+        replica.setDefaultReadOnly(true);
+        replica.setDriverClassName(conf.getDriverClass());
+    }
+    
+    /**
+     * Check if a read-only replica has been configured
+     * @return true if {@link #getReadConnection()} returns replica connections
+     */
+    public static boolean isReplicaEnabled() {
+        if (datasource == null) {
+            initDataSource(MusapLinkConf.getInstance());
+        }
+        return replica != null;
     }
     
     /**
@@ -60,6 +91,24 @@ public class MusapDb {
         return conn;
     }
     
+    /**
+     * Get a read-only database connection.
+     * Returns a replica connection if a replica is configured, and a primary connection otherwise.
+     * @return {@link Connection}
+     * @throws SQLException
+     */
+    public static Connection getReadConnection() throws SQLException {
+        if (!isReplicaEnabled()) {
+            return getConnection();
+        }
+        Connection conn = replica.getConnection();
+        if (conn.isClosed()) {
+            log.error("Tomcat DataSource returned an already closed replica connection");
+            throw new SQLException("Connection closed");
+        }
+        return conn;
+    }
+    
     /**
      * Was it duplicate insert?
      * @param e SQL Exception
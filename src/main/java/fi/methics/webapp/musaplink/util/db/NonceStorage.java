@@ -0,0 +1,197 @@
+package fi.methics.webapp.musaplink.util.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import fi.methics.webapp.musaplink.util.MusapException;
+import fi.methics.webapp.musaplink.util.MusapLinkConf;
+
+/**
+ * Database class for used Coupling API nonces shared by all MUSAP Link nodes.
+ * <p>Nonces are stored in the unlogged, hourly partitioned table {@code used_nonces} (PostgreSQL only).
+ * The primary key rejects a nonce that any node has already stored for the same message timestamp.
+ * Old partitions are dropped as a whole instead of deleting rows.
+ */
+public class NonceStorage extends MusapDb {
+
+    private static final Log log = LogFactory.getLog(NonceStorage.class);
+
+    private static final String TABLE = "used_nonces";
+
+    private static final String INSERT_NONCE      = "INSERT INTO used_nonces (nonce, msg_ts) VALUES (?,?) ON CONFLICT DO NOTHING";
+    private static final String CREATE_PARTITION  = "CREATE UNLOGGED TABLE IF NOT EXISTS %s PARTITION OF used_nonces FOR VALUES FROM (%d) TO (%d)";
+    private static final String DROP_PARTITION    = "DROP TABLE IF EXISTS %s";
+    private static final String SELECT_PARTITIONS = "SELECT c.relname FROM pg_inherits i "
+                                                  + "JOIN pg_class c ON c.oid=i.inhrelid "
+                                                  + "JOIN pg_class p ON p.oid=i.inhparent WHERE p.relname=?";
+
+    // SQL state of an insert that does not fit in any partition
+    private static final String NO_PARTITION = "23514";
+
+    private static final long PARTITION_WIDTH = TimeUnit.HOURS.toMillis(1);
+    private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMddHH").withZone(ZoneOffset.UTC);
+
+    /**
+     * Check if the shared nonce store is in use.
+     * It is never used with in-memory storage.
+     * @return true if enabled
+     */
+    public static boolean isEnabled() {
+        MusapLinkConf conf = MusapLinkConf.getInstance();
+        return conf.isSharedNonceStoreEnabled() && !conf.isMemoryStorageEnabled();
+    }
+
+    /**
+     * Store a nonce if no node has stored it before
+     * @param nonce     Nonce
+     * @param timestamp Message timestamp (epoch milliseconds)
+     * @return true if the nonce was stored, false if it was already used
+     * @throws MusapException if the nonce could not be stored
+     */
+    public static boolean addNonce(final String nonce, final long timestamp) {
+        try (Connection conn = getConnection()) {
+            try {
+                return insertNonce(conn, nonce, timestamp);
+            } catch (SQLException e) {
+                if (!NO_PARTITION.equals(e.getSQLState())) throw e;
+                log.debug("No nonce partition for " + Instant.ofEpochMilli(timestamp) + ". Creating it.");
+                createPartition(conn, timestamp);
+                return insertNonce(conn, nonce, timestamp);
+            }
+        } catch (SQLException e) {
+            log.error("Failed to store nonce", e);
+            throw new MusapException(e);
+        }
+    }
+
+    /**
+     * Create partitions for the accepted timestamp window and drop older partitions
+     * @param window How old message timestamps are accepted (milliseconds)
+     * @param skew   How far in the future message timestamps are accepted (milliseconds)
+     */
+    public static void maintainPartitions(final long window, final long skew) {
+        final long now    = System.currentTimeMillis();
+        final long oldest = partitionStart(now - window);
+        try (Connection conn = getConnection()) {
+            for (long start = oldest; start <= now + skew; start += PARTITION_WIDTH) {
+                createPartition(conn, start);
+            }
+            for (String partition : listPartitions(conn)) {
+                Long start = parsePartitionStart(partition);
+                if (start != null && start < oldest) {
+                    log.debug("Dropping nonce partition " + partition);
+                    try (Statement st = conn.createStatement()) {
+                        st.execute(String.format(DROP_PARTITION, partition));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Failed to maintain nonce partitions", e);
+            throw new MusapException(e);
+        }
+    }
+
+    /**
+     * Schedule a timer that maintains the nonce partitions
+     * @param interval Interval in milliseconds
+     * @param window   How old message timestamps are accepted (milliseconds)
+     * @param skew     How far in the future message timestamps are accepted (milliseconds)
+     * @return timer
+     */
+    public static Timer scheduleMaintenance(final long interval, final long window, final long skew) {
+        Timer timer = new Timer("nonce-partitions", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    NonceStorage.maintainPartitions(window, skew);
+                } catch (Exception e) {
+                    log.warn("Nonce partition maintenance failed", e);
+                }
+            }
+        }, 0, interval);
+        return timer;
+    }
+
+    private static boolean insertNonce(final Connection conn, final String nonce, final long timestamp) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(INSERT_NONCE)) {
+            ps.setString(1, nonce);
+            ps.setLong(2, timestamp);
+            return ps.executeUpdate() > 0;
+        }
+    }
+
+    /**
+     * Create the partition containing the given timestamp, if it does not exist
+     * @param conn      DB connection
+     * @param timestamp Timestamp (epoch milliseconds)
+     * @throws SQLException
+     */
+    private static void createPartition(final Connection conn, final long timestamp) throws SQLException {
+        final long start = partitionStart(timestamp);
+        final String sql = String.format(CREATE_PARTITION, partitionName(start), start, start + PARTITION_WIDTH);
+        try (Statement st = conn.createStatement()) {
+            st.execute(sql);
+        } catch (SQLException e) {
+            // Another node created it at the same time
+            if (!wasItDuplicateInsert(e)) throw e;
+        }
+    }
+
+    private static List<String> listPartitions(final Connection conn) throws SQLException {
+        List<String> partitions = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(SELECT_PARTITIONS)) {
+            ps.setString(1, TABLE);
+            try (ResultSet result = ps.executeQuery()) {
+                while (result.next()) {
+                    partitions.add(result.getString(1));
+                }
+            }
+        }
+        return partitions;
+    }
+
+    private static long partitionStart(final long timestamp) {
+        return Math.floorDiv(timestamp, PARTITION_WIDTH) * PARTITION_WIDTH;
+    }
+
+    private static String partitionName(final long start) {
+        return TABLE + "_" + PARTITION_SUFFIX.format(Instant.ofEpochMilli(start));
+    }
+
+    /**
+     * Parse the start time of a partition from its name
+     * @param partition Partition name
+     * @return start time (epoch milliseconds) or null if the name is not a nonce partition name
+     */
+    private static Long parsePartitionStart(final String partition) {
+        if (partition == null || !partition.startsWith(TABLE + "_")) return null;
+        String suffix = partition.substring(TABLE.length() + 1);
+        if (suffix.length() != 10) return null;
+        try {
+            int year  = Integer.parseInt(suffix.substring(0, 4));
+            int month = Integer.parseInt(suffix.substring(4, 6));
+            int day   = Integer.parseInt(suffix.substring(6, 8));
+            int hour  = Integer.parseInt(suffix.substring(8, 10));
+            return LocalDateTime.of(year, month, day, hour, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+}
@@ -1,41 +1,65 @@
 package fi.methics.webapp.musaplink.util.db;
 
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import fi.methics.webapp.musaplink.coupling.json.SignatureReq;
+import fi.methics.webapp.musaplink.link.json.MusapResp;
 import fi.methics.webapp.musaplink.link.json.MusapSignResp;
 import fi.methics.webapp.musaplink.util.IdGenerator;
-import fi.methics.webapp.musaplink.util.MusapException;
 import fi.methics.webapp.musaplink.util.MusapLinkConf;
 import fi.methics.webapp.musaplink.util.SignatureCallback;
+import fi.methics.webapp.musaplink.util.push.PushResult;
 
 /**
  * Database class for MUSAP Link transaction storage.
+ * <p>The actual storage is handled by a {@link TxnStore} implementation selected in configuration.
  */
 public class TxnStorage extends MusapDb {
 
     private static final Log log = LogFactory.getLog(TxnStorage.class);
 
-    private static final Map<String, SignatureCallback> SIGNATURE_CALLBACKS = new HashMap<>();
-    
-    private static final String INSERT_SIGN_REQ    = "INSERT INTO transactions (transid, linkid, request, created_dt) VALUES (?,?,?,?)";
-    private static final String SELECT_SIGN_REQ    = "SELECT request, transid FROM transactions WHERE linkid=? AND response IS NULL AND created_dt >= CURRENT_TIMESTAMP - interval '2 minutes' ORDER BY created_dt DESC LIMIT 1";
+    private static final Map<String, SignatureCallback> SIGNATURE_CALLBACKS = new ConcurrentHashMap<>();
+
+    private static volatile TxnStore store;
+
+    /**
+     * Get the storage backend. Initialized based on configuration on first call.
+     * @return storage backend
+     */
+    public static TxnStore getStore() {
+        TxnStore result = store;
+        if (result == null) {
+            synchronized (TxnStorage.class) {
+                result = store;
+                if (result == null) {
+                    if (MusapLinkConf.getInstance().isMemoryStorageEnabled()) {
+                        log.info("Using in-memory transaction storage");
+                        result = new MemoryTxnStore();
+                    } else {
+                        result = new JdbcTxnStore();
+                    }
+                    store = result;
+                }
+            }
+        }
+        return result;
+    }
 
-    private static final String DELETE_TXN         = "DELETE FROM transactions WHERE transid=?";
-    private static final String DELETE_OLD_TXNS    = "DELETE FROM transactions WHERE created_dt<?";
-    private static final String COUNT_TRANSACTIONS = "SELECT COUNT(*) FROM transactions";
+    /**
+     * Override the storage backend
+     * @param txnStore storage backend
+     */
+    public static void setStore(TxnStore txnStore) {
+        store = txnStore;
+    }
     
     /**
      * Store a signature request and assign txnid to it
@@ -45,18 +69,7 @@ public class TxnStorage extends MusapDb {
      */
     public static SignatureCallback storeRequest(String linkid, SignatureReq req) {
         String transid = IdGenerator.generateTxnId();
-        try (Connection conn = getConnection();
-             PreparedStatement ps = conn.prepareStatement(INSERT_SIGN_REQ))
-        {
-            ps.setString(1, transid);
-            ps.setString(2, linkid);
-            ps.setString(3, req.toJson());
-            ps.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            log.error("Failed insert transaction", e);
-            throw new MusapException(e);
-        }
+        getStore().storeRequest(transid, linkid, req);
         SignatureCallback callback = new SignatureCallback(transid);
         SIGNATURE_CALLBACKS.put(transid, callback);
         return callback;
@@ -80,6 +93,25 @@ public class TxnStorage extends MusapDb {
         }
     }
     
+    /**
+     * Store the outcome of the push notification sent for a transaction.
+     * If the device could not be reached, the transaction fails without waiting for a response.
+     * @param transid Transaction ID
+     * @param result  Push notification result
+     */
+    public static void storePushResult(String transid, PushResult result) {
+        SignatureCallback callback = SIGNATURE_CALLBACKS.get(transid);
+        if (callback == null) {
+            log.debug("Found no callback");
+            return;
+        }
+        if (result.isFailure() && callback.getResponse() == null) {
+            log.info("Failing transaction " + transid + ". Push notification failed: " + result);
+            callback.setError(MusapResp.createError(MusapResp.ERROR_SSCD_UNREACHABLE, "Push notification failed: " + result.reason));
+            callback.release();
+        }
+    }
+    
     /**
      * Delete a transaction that has been handled
      * @param transid Transaction ID
@@ -87,14 +119,7 @@ public class TxnStorage extends MusapDb {
      */
     public static void deleteTransaction(String transid) {
         log.info("Deleting handled transaction (transid=" + transid + ")");
-        try (Connection conn = getConnection();
-             PreparedStatement ps = conn.prepareStatement(DELETE_TXN))
-        {
-            ps.setString(1, transid);
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            log.error("Failed delete transaction", e);
-        }
+        getStore().deleteTransaction(transid);
     }
     
     /**
@@ -117,22 +142,16 @@ public class TxnStorage extends MusapDb {
      * @return Signature Request or null if not found
      */
     public static SignatureReq getSignReq(String linkid) {
-        try (Connection conn = getConnection();
-             PreparedStatement ps = conn.prepareStatement(SELECT_SIGN_REQ))
-        {
-            ps.setString(1, linkid);
-            try (ResultSet result = ps.executeQuery()) {
-                if (result.next()) {
-                    SignatureReq req = SignatureReq.fromJson(result.getString(1), SignatureReq.class);
-                    req.transid = result.getString(2);
-                    return req;
-                }
-            }
-        } catch (SQLException e) {
-            log.error("Failed get transaction", e);
-            throw new MusapException(e);
-        }
-        return null;
+        return getStore().getSignReq(linkid);
+    }
+    
+    /**
+     * Check if the request of a transaction is still waiting to be picked up
+     * @param transid Transaction ID
+     * @return true if the request is pending
+     */
+    public static boolean isPending(String transid) {
+        return getStore().hasTransaction(transid);
     }
     
     /**
@@ -140,19 +159,7 @@ public class TxnStorage extends MusapDb {
      * @return transaction count
      */
     public static int countTransactions() {
-        try (Connection conn = getConnection();
-                PreparedStatement ps = conn.prepareStatement(COUNT_TRANSACTIONS))
-        {
-            try (ResultSet result = ps.executeQuery()) {
-                if (result.next()) {
-                    return result.getInt(1);
-                }
-            }
-        } catch (SQLException e) {
-            log.error("Failed count transactions", e);
-            throw new MusapException(e);
-        }
-        return 0;
+        return getStore().countTransactions();
     }
 
     
@@ -160,16 +167,9 @@ public class TxnStorage extends MusapDb {
      * Clean old transactions
      */
     public static void cleanTransactions() {
-        try (Connection conn = getConnection();
-             PreparedStatement ps = conn.prepareStatement(DELETE_OLD_TXNS))
-        {
-            int cutoff = MusapLinkConf.getInstance().getTxnLifetime();
-            int cutoffMs = cutoff * 1000;
-            ps.setTimestamp(1, new Timestamp(System.currentTimeMillis() - cutoffMs));
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            log.error("Failed clean transactiosn", e);
-        }
+        int cutoff = MusapLinkConf.getInstance().getTxnLifetime();
+        int cutoffMs = cutoff * 1000;
+        getStore().deleteTransactions(new Timestamp(System.currentTimeMillis() - cutoffMs));
     }
 
     /**
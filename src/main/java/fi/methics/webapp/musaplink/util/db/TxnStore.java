@@ -0,0 +1,56 @@
+package fi.methics.webapp.musaplink.util.db;
+
+import java.sql.Timestamp;
+
+import fi.methics.webapp.musaplink.coupling.json.SignatureReq;
+
+/**
+ * Storage backend for pending MUSAP Link transactions.
+ * <p>{@link TxnStorage} delegates all storage operations to an implementation of this.
+ *
+ * @see JdbcTxnStore
+ * @see MemoryTxnStore
+ */
+public interface TxnStore {
+
+    /**
+     * Store a signature request
+     * @param transid Transaction ID
+     * @param linkid  Link ID the request is sent to
+     * @param req     The signature request
+     */
+    public void storeRequest(String transid, String linkid, SignatureReq req);
+
+    /**
+     * Get the latest pending signature request for a Link ID
+     * @param linkid Link ID
+     * @return Signature Request or null if not found
+     */
+    public SignatureReq getSignReq(String linkid);
+
+    /**
+     * Check if a transaction is still stored, i.e. its request has not been picked up yet
+     * @param transid Transaction ID
+     * @return true if the transaction exists
+     */
+    public boolean hasTransaction(String transid);
+
+    /**
+     * Delete a transaction
+     * @param transid Transaction ID
+     */
+    public void deleteTransaction(String transid);
+
+    /**
+     * Count total amount of transactions currently stored
+     * @return transaction count
+     */
+    public int countTransactions();
+
+    /**
+     * Delete transactions created before the given time
+     * @param cutoff Cutoff time
+     */
+    public void deleteTransactions(Timestamp cutoff);
+
+}
@@ -1,13 +1,30 @@
 package fi.methics.webapp.musaplink.util.etsi204;
 
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import fi.methics.webapp.musaplink.coupling.ExternalSignatureProvider;
+import fi.methics.webapp.musaplink.coupling.json.ExternalSignatureReq;
+import fi.methics.webapp.musaplink.coupling.json.ExternalSignatureResp;
 import fi.methics.webapp.musaplink.util.MusapLinkConf;
 
 /**
  * ETSI TS 102 204 signature client
+ * <p>As an {@link ExternalSignatureProvider}, blocking MSSP calls run on threads of this client.
+ * The number of threads and queued requests are bounded, so a slow MSSP only delays its own requests.
  */
-public abstract class Etsi204Client {
+public abstract class Etsi204Client implements ExternalSignatureProvider {
+    
+    private static final Log log = LogFactory.getLog(Etsi204Client.class);
     
     public static final String SIGPROF_ALAUDA_AUTHN = "http://alauda.mobi/digitalSignature";
     public static final String SIGPROF_ALAUDA_SIGN  = "http://alauda.mobi/nonRepudiation";
@@ -18,6 +35,11 @@ public abstract class Etsi204Client {
     public static final String ATTR_EVENTID     = "eventid";
     public static final String ATTR_LANGUAGE    = "language";
     
+    public static final int DEFAULT_THREADS = 10;
+    
+    // Max number of requests waiting for a thread
+    private static final int MAX_QUEUE = 1000;
+    
     
     protected String clientid;
     protected String sscdtype;
@@ -28,6 +50,9 @@ public abstract class Etsi204Client {
     
     protected String signatureProfile;
     
+    protected int maxThreads = DEFAULT_THREADS;
+    private ThreadPoolExecutor executor;
+    
     protected Etsi204Client(String clientid, String sscdtype) {
         this.clientid = clientid;
         this.sscdtype = sscdtype;
@@ -45,6 +70,14 @@ public abstract class Etsi204Client {
         this.enableUserLang = enabled;
     }
     
+    /**
+     * Set the max number of concurrent MSSP calls
+     * @param maxThreads max threads
+     */
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads > 0 ? maxThreads : DEFAULT_THREADS;
+    }
+    
     /**
      * Get the SignatureProfile to be used
      * @return SignatureProfile. Default is {@link #SIGPROF_ALAUDA_SIGN}.
@@ -77,6 +110,69 @@ public abstract class Etsi204Client {
                                          Map<String, String> attrs) 
         throws Etsi204Exception;
     
+    /**
+     * Request a signature without blocking the caller.
+     * The blocking {@link #sign(String, String, byte[], String, Map)} is run on a thread of this client.
+     * @param req     External signature request
+     * @param transid Transaction ID
+     * @return future completed with the signature response, or exceptionally with {@link Etsi204Exception}
+     */
+    @Override
+    public CompletableFuture<ExternalSignatureResp> sign(final ExternalSignatureReq req, final String transid) {
+        final String msisdn = req.attributes.get("msisdn");
+        log.debug("Sending signature request to clientid=" + this.clientid + ", msisdn=" + msisdn);
+        return this.submit(() -> this.sign(msisdn, req.display, req.getDtbs(), transid, req.attributes))
+                   .thenApply(resp -> this.toExternalSignatureResp(resp, req, transid));
+    }
+    
+    /**
+     * Run a blocking MSSP call on a thread of this client
+     * @param call MSSP call
+     * @return future completed with the result, or exceptionally with {@link Etsi204Exception}
+     */
+    protected <T> CompletableFuture<T> submit(final Callable<T> call) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            this.getExecutor().execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch (Etsi204Exception e) {
+                    future.completeExceptionally(e);
+                } catch (Exception e) {
+                    future.completeExceptionally(new Etsi204Exception(e));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Too many pending requests for client " + this.clientid);
+            future.completeExceptionally(new Etsi204Exception(e));
+        }
+        return future;
+    }
+    
+    /**
+     * Convert an MSSP response to an external signature response
+     * @param resp    MSSP response
+     * @param req     External signature request
+     * @param transid Transaction ID
+     * @return External signature response
+     */
+    protected ExternalSignatureResp toExternalSignatureResp(Etsi204Response resp, ExternalSignatureReq req, String transid) {
+        ExternalSignatureResp sigResp = new ExternalSignatureResp();
+        sigResp.signature   = resp.getSignatureB64();
+        try {
+            sigResp.publickey   = resp.getPublicKeyB64();
+            sigResp.certificate = resp.getCertificateB64();
+            sigResp.certChain   = resp.getCertificateChain();
+        } catch (Exception e) {
+            log.warn("Failed to parse certificate from response", e);
+        }
+        sigResp.status  = "success";
+        sigResp.transid = transid;
+        sigResp.keyid   = req.keyid;
+        return sigResp;
+    }
+    
+    @Override
     public String getClientId() {
         return this.clientid;
     }
@@ -122,6 +218,26 @@ public abstract class Etsi204Client {
         return userlang != null ? userlang : "en";
     }
     
+    /**
+     * Get the thread pool of this client. Created on first call.
+     * @return executor
+     */
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (this.executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(this.maxThreads, this.maxThreads,
+                                                   60, TimeUnit.SECONDS,
+                                                   new ArrayBlockingQueue<>(MAX_QUEUE),
+                                                   r -> {
+                                                       Thread t = new Thread(r, "etsi204-" + this.clientid + "-" + count.incrementAndGet());
+                                                       t.setDaemon(true);
+                                                       return t;
+                                                   });
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+        return this.executor;
+    }
+    
     public static enum ClientType {
         REST("rest"),
         SOAP("soap");
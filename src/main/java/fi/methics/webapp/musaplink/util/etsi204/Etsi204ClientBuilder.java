@@ -45,6 +45,8 @@ public class Etsi204ClientBuilder {
     private boolean enableNospamCode;
     private boolean enableEventId;
     private boolean enableUserLang;
+    private boolean enableAsynch;
+    private int     maxThreads = Etsi204Client.DEFAULT_THREADS;
 
     public Etsi204ClientBuilder(String clientid, String sscdtype) {
         this.clientid = clientid;
@@ -77,7 +79,9 @@ public class Etsi204ClientBuilder {
                                                null);
             
             client.setSSLSocketFactory(ssf);
-            result = new Etsi204SoapClient(client, this.clientid, this.sscdtype);
+            Etsi204SoapClient soapClient = new Etsi204SoapClient(client, this.clientid, this.sscdtype);
+            soapClient.setAsynchEnabled(this.enableAsynch);
+            result = soapClient;
         } else {
             log.debug("Initializing REST client " + this.clientid);
             MssClient.Builder builder = new MssClient.Builder();
@@ -95,6 +99,7 @@ public class Etsi204ClientBuilder {
         result.setNospamCodeEnabled(this.enableNospamCode);
         result.setUserLangEnabled(this.enableUserLang);
         result.setSignatureProfile(this.signatureProfile);
+        result.setMaxThreads(this.maxThreads);
         return result;
     }
     
@@ -173,6 +178,16 @@ public class Etsi204ClientBuilder {
         return this;
     }
     
+    public Etsi204ClientBuilder withAsynchEnabled(boolean enabled) {
+        this.enableAsynch = enabled;
+        return this;
+    }
+
+    public Etsi204ClientBuilder withMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+        return this;
+    }
+    
     public Etsi204ClientBuilder withClientType(ClientType clientType) {
         this.clientType = clientType;
         return this;
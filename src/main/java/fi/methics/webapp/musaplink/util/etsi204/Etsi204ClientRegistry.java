@@ -0,0 +1,64 @@
+package fi.methics.webapp.musaplink.util.etsi204;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Immutable set of configured ETSI TS 102 204 signature clients keyed by ClientID.
+ * <p>Clients are built once when the configuration is loaded and shared by all requests,
+ * so keystores and SOAP/REST connection pools are not set up again for every signature.
+ */
+public final class Etsi204ClientRegistry {
+
+    private static final Log log = LogFactory.getLog(Etsi204ClientRegistry.class);
+
+    private final Map<String, Etsi204Client> clients;
+
+    /**
+     * Create a new registry. If several clients have the same ClientID, the first one is used.
+     * @param clients Clients in configuration order
+     */
+    public Etsi204ClientRegistry(List<Etsi204Client> clients) {
+        Map<String, Etsi204Client> map = new LinkedHashMap<>();
+        for (Etsi204Client client : clients) {
+            if (client == null || client.getClientId() == null) continue;
+            if (map.putIfAbsent(client.getClientId(), client) != null) {
+                log.warn("Duplicate ClientID " + client.getClientId() + ". Using the first one.");
+            }
+        }
+        this.clients = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Get a client with given ClientID
+     * @param clientid Client ID
+     * @return Client if found, null otherwise
+     */
+    public Etsi204Client get(String clientid) {
+        if (clientid == null) return null;
+        return this.clients.get(clientid);
+    }
+
+    /**
+     * Get all clients in configuration order
+     * @return Unmodifiable list of clients
+     */
+    public List<Etsi204Client> getClients() {
+        return Collections.unmodifiableList(new ArrayList<>(this.clients.values()));
+    }
+
+    /**
+     * Get the configured ClientIDs
+     * @return ClientIDs
+     */
+    public List<String> getClientIds() {
+        return Collections.unmodifiableList(new ArrayList<>(this.clients.keySet()));
+    }
+
+}
@@ -39,6 +39,18 @@ public class Etsi204Exception extends Exception {
         this.errorDetail = e.getMessage();
     }
     
+    /**
+     * Create an exception from an MSSP status
+     * @param errorCode ETSI TS 102 204 status code
+     * @param errorMsg  Status message
+     */
+    public Etsi204Exception(String errorCode, String errorMsg) {
+        super(errorCode + " " + errorMsg);
+        this.errorCode   = errorCode;
+        this.errorMsg    = errorMsg;
+        this.errorDetail = errorMsg;
+    }
+    
     public String getErrorCode() {
         return this.errorCode;
     }
@@ -4,26 +4,69 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import fi.laverca.etsi.EtsiClient;
 import fi.laverca.etsi.EtsiRequest;
+import fi.laverca.etsi.EtsiResponse;
 import fi.laverca.ficom.FiComAdditionalServices;
 import fi.laverca.jaxb.mss.AdditionalServiceType;
+import fi.laverca.jaxb.mss.MSSSignatureReq;
+import fi.laverca.jaxb.mss.MSSSignatureResp;
 import fi.laverca.jaxb.mss.MessagingModeType;
+import fi.laverca.mss.MssClient;
 import fi.laverca.util.DTBS;
+import fi.methics.webapp.musaplink.coupling.json.ExternalSignatureReq;
+import fi.methics.webapp.musaplink.coupling.json.ExternalSignatureResp;
 
 /**
  * SOAP ETSI TS 102 204 signature client
+ * <p>In asynchronous client-server mode the MSSP answers the signature request right away,
+ * and the signature is fetched with status requests. Status polls are scheduled, so no thread
+ * waits for the user to sign.
  */
 public class Etsi204SoapClient extends Etsi204Client {
+
+    private static final Log log = LogFactory.getLog(Etsi204SoapClient.class);
+    
+    // ETSI TS 102 204 status codes
+    private static final long SIGNATURE               = 500;
+    private static final long VALID_SIGNATURE         = 502;
+    private static final long OUTSTANDING_TRANSACTION = 504;
+    
+    // Status polling times in milliseconds
+    private static final long INITIAL_WAIT   = 2000;
+    private static final long POLL_INTERVAL  = 2000;
+    private static final long STATUS_TIMEOUT = 180000;
+
+    private static final ScheduledExecutorService POLLER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "etsi204-status-poll");
+        t.setDaemon(true);
+        return t;
+    });
     
     private EtsiClient client; // Laverca client
+    private boolean    asynch;
     
     protected Etsi204SoapClient(EtsiClient client, String sscdid, String sscdtype) {
         super(sscdid, sscdtype);
         this.client   = client;
     }
     
+    /**
+     * Use asynchronous client-server messaging mode with status polling
+     * @param enabled true to enable
+     */
+    public void setAsynchEnabled(boolean enabled) {
+        this.asynch = enabled;
+    }
+    
     /**
      * Send a SignatureRequest to MSSP
      * @param msisdn  MSISDN
@@ -42,37 +85,135 @@ public class Etsi204SoapClient extends Etsi204Client {
     {
         
         try {
-            
-            List<AdditionalServiceType> additionalServices = new ArrayList<>();
-            if (this.enableEventId) {
-                String eventid = this.resolveEventId(transid, attrs);
-                additionalServices.add(FiComAdditionalServices.createEventIdService(eventid));
-            }
-            if (this.enableNoSpamCode) {
-                String  nospamcode = this.resolveNospamCode(attrs);
-                boolean validate   = nospamcode != null;
-                additionalServices.add(FiComAdditionalServices.createNoSpamService(nospamcode, validate));
-            }
-            if (this.enableUserLang) {
-                String userlang = this.resolveUserLang(attrs);
-                additionalServices.add(FiComAdditionalServices.createUserLangService(userlang));
-            }
-            String mimeType = attrs.get(ATTR_MIMETYPE);
-            if (mimeType == null) mimeType = DEFAULT_MIMETYPE;
-            
-            String apTransId = "A" + UUID.randomUUID().toString();
-            EtsiRequest soapReq = this.client.createRequest(apTransId, 
-                                                            msisdn,
-                                                            new DTBS(dtbs, "BASE64", mimeType),
-                                                            dtbd,
-                                                            additionalServices,
-                                                            this.getSignatureProfile(), 
-                                                            null,
-                                                            MessagingModeType.SYNCH);
+            EtsiRequest soapReq = this.createRequest(msisdn, dtbd, dtbs, transid, attrs, MessagingModeType.SYNCH);
             return new Etsi204Response(this.client.send(soapReq));
         } catch (Exception e) {
             throw new Etsi204Exception(e);
         }
     }
     
+    /**
+     * Request a signature without blocking the caller.
+     * In asynchronous client-server mode, the signature is fetched with scheduled status polls.
+     * Otherwise the synchronous request runs on a thread of this client.
+     * @param req     External signature request
+     * @param transid Transaction ID
+     * @return future completed with the signature response, or exceptionally with {@link Etsi204Exception}
+     */
+    @Override
+    public CompletableFuture<ExternalSignatureResp> sign(final ExternalSignatureReq req, final String transid) {
+        if (!this.asynch) {
+            return super.sign(req, transid);
+        }
+        
+        final String msisdn = req.attributes.get("msisdn");
+        log.debug("Sending asynchronous signature request to clientid=" + this.clientid + ", msisdn=" + msisdn);
+        
+        final CompletableFuture<Etsi204Response> future = new CompletableFuture<>();
+        final EtsiRequest soapReq;
+        try {
+            soapReq = this.createRequest(msisdn, req.display, req.getDtbs(), transid, req.attributes, MessagingModeType.ASYNCH_CLIENT_SERVER);
+        } catch (Exception e) {
+            future.completeExceptionally(new Etsi204Exception(e));
+            return future.thenApply(resp -> this.toExternalSignatureResp(resp, req, transid));
+        }
+        
+        final long deadline = System.currentTimeMillis() + STATUS_TIMEOUT;
+        this.submit(() -> this.client.getMssClient().send(soapReq.sigReq)).whenComplete((sigResp, e) -> {
+            if (e != null) {
+                future.completeExceptionally(e);
+            } else {
+                this.schedulePoll(soapReq.sigReq, sigResp, deadline, INITIAL_WAIT, future);
+            }
+        });
+        return future.thenApply(resp -> this.toExternalSignatureResp(resp, req, transid));
+    }
+    
+    /**
+     * Schedule a status request. The status request itself runs on a thread of this client.
+     * @param sigReq   Signature request
+     * @param sigResp  Asynchronous signature response
+     * @param deadline Time when polling gives up
+     * @param delay    Delay before the status request
+     * @param future   Future to complete with the signature
+     */
+    private void schedulePoll(final MSSSignatureReq  sigReq,
+                              final MSSSignatureResp sigResp,
+                              final long deadline,
+                              final long delay,
+                              final CompletableFuture<Etsi204Response> future)
+    {
+        POLLER.schedule(() -> {
+            this.submit(() -> {
+                MssClient mss = this.client.getMssClient();
+                return mss.send(mss.createStatusRequest(sigResp, "A" + UUID.randomUUID().toString()));
+            }).whenComplete((statusResp, e) -> {
+                if (e != null) {
+                    future.completeExceptionally(e);
+                    return;
+                }
+                try {
+                    EtsiResponse etsiResp = new EtsiResponse(sigReq, sigResp, statusResp);
+                    long status = etsiResp.getStatusCode();
+                    if (status == SIGNATURE || status == VALID_SIGNATURE) {
+                        future.complete(new Etsi204Response(etsiResp));
+                    } else if (status != OUTSTANDING_TRANSACTION) {
+                        future.completeExceptionally(new Etsi204Exception(String.valueOf(status), etsiResp.getStatusMessage()));
+                    } else if (System.currentTimeMillis() + POLL_INTERVAL > deadline) {
+                        future.completeExceptionally(new Etsi204Exception("208", "EXPIRED_TRANSACTION"));
+                    } else {
+                        this.schedulePoll(sigReq, sigResp, deadline, POLL_INTERVAL, future);
+                    }
+                } catch (Exception ex) {
+                    future.completeExceptionally(new Etsi204Exception(ex));
+                }
+            });
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Create a Laverca signature request
+     * @param msisdn  MSISDN
+     * @param dtbd    DTBD
+     * @param dtbs    DTBS
+     * @param transid Transaction ID (may be used as EventID)
+     * @param attrs   Attributes
+     * @param mode    Messaging mode
+     * @return signature request
+     */
+    private EtsiRequest createRequest(final String msisdn,
+                                      final String dtbd,
+                                      final byte[] dtbs,
+                                      final String transid,
+                                      final Map<String, String> attrs,
+                                      final MessagingModeType mode)
+    {
+        List<AdditionalServiceType> additionalServices = new ArrayList<>();
+        if (this.enableEventId) {
+            String eventid = this.resolveEventId(transid, attrs);
+            additionalServices.add(FiComAdditionalServices.createEventIdService(eventid));
+        }
+        if (this.enableNoSpamCode) {
+            String  nospamcode = this.resolveNospamCode(attrs);
+            boolean validate   = nospamcode != null;
+            additionalServices.add(FiComAdditionalServices.createNoSpamService(nospamcode, validate));
+        }
+        if (this.enableUserLang) {
+            String userlang = this.resolveUserLang(attrs);
+            additionalServices.add(FiComAdditionalServices.createUserLangService(userlang));
+        }
+        String mimeType = attrs.get(ATTR_MIMETYPE);
+        if (mimeType == null) mimeType = DEFAULT_MIMETYPE;
+        
+        String apTransId = "A" + UUID.randomUUID().toString();
+        return this.client.createRequest(apTransId,
+                                         msisdn,
+                                         new DTBS(dtbs, "BASE64", mimeType),
+                                         dtbd,
+                                         additionalServices,
+                                         this.getSignatureProfile(),
+                                         null,
+                                         mode);
+    }
+
 }
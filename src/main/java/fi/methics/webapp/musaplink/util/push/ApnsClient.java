@@ -5,12 +5,14 @@ import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
 import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.eatthepath.pushy.apns.ApnsClientBuilder;
+import com.eatthepath.pushy.apns.DeliveryPriority;
 import com.eatthepath.pushy.apns.PushNotificationResponse;
 import com.eatthepath.pushy.apns.auth.ApnsSigningKey;
 import com.eatthepath.pushy.apns.util.SimpleApnsPushNotification;
@@ -24,6 +26,7 @@ public class ApnsClient {
     
     private final ApnsConfig config;
     private final com.eatthepath.pushy.apns.ApnsClient client;
+    private final ApnsMetrics metrics = new ApnsMetrics();
     
     /**
      * Initialize new APNS client with given 
@@ -67,13 +70,6 @@ public class ApnsClient {
             log.trace("Skipping NULL APNS message");
             return;
         }
-        log.info("Sending APNS notification: " + msg);
-        final String topic = this.resolveTopic(msg);
-        final SimpleApnsPushNotification pushNotification = new SimpleApnsPushNotification(msg.token, topic, msg.payload);
-
-        if (this.config.getOverridePayload() != null) {
-            msg.payload = this.config.getOverridePayload();
-        }
         
         if (msg.token == null) {
             log.warn("No APNS token available for user yet");
@@ -81,12 +77,56 @@ public class ApnsClient {
         }
         
         try {
-            this.sendNotification(msg, topic, pushNotification);
+            this.sendAsync(msg);
         } catch (Exception e) {
             log.error("Failed to send push notification.", e);
         }
     }
     
+    /**
+     * Send an APNS notification
+     * @param msg Notification request
+     * @return future completed with the APNS response. Completed exceptionally if the notification
+     *         could not be sent.
+     */
+    public CompletableFuture<PushNotificationResponse<SimpleApnsPushNotification>> sendAsync(final ApnsReq msg) {
+        if (!this.isEnabled()) {
+            CompletableFuture<PushNotificationResponse<SimpleApnsPushNotification>> future = new CompletableFuture<>();
+            future.completeExceptionally(new IOException("APNS is not enabled"));
+            return future;
+        }
+        log.info("Sending APNS notification: " + msg);
+        if (this.config.getOverridePayload() != null) {
+            msg.payload = this.config.getOverridePayload();
+        }
+        final String topic = this.resolveTopic(msg);
+        final SimpleApnsPushNotification pushNotification;
+        if (msg.collapseId != null) {
+            Instant expiration = Instant.now().plus(SimpleApnsPushNotification.DEFAULT_EXPIRATION_PERIOD);
+            pushNotification = new SimpleApnsPushNotification(msg.token, topic, msg.payload, expiration, DeliveryPriority.IMMEDIATE, msg.collapseId);
+        } else {
+            pushNotification = new SimpleApnsPushNotification(msg.token, topic, msg.payload);
+        }
+        return this.sendNotification(msg, topic, pushNotification);
+    }
+    
+    /**
+     * Get the APNs client metrics
+     * @return metrics
+     */
+    public ApnsMetrics getMetrics() {
+        return this.metrics;
+    }
+    
+    /**
+     * Get the topic used for a notification
+     * @param req Notification request
+     * @return topic
+     */
+    public String getTopic(final ApnsReq req) {
+        return this.resolveTopic(req);
+    }
+    
     /**
      * Shut down the client
      */
@@ -105,7 +145,10 @@ public class ApnsClient {
      */
     private com.eatthepath.pushy.apns.ApnsClient buildClient(boolean prod) throws InvalidKeyException, NoSuchAlgorithmException, IOException {
         final ApnsClientBuilder builder = new ApnsClientBuilder();
-        if (this.config.isProductionEnabled()) {
+        if (this.config.getHost() != null) {
+            log.warn("Using APNS server " + this.config.getHost() + ":" + this.config.getPort());
+            builder.setApnsServer(this.config.getHost(), this.config.getPort());
+        } else if (this.config.isProductionEnabled()) {
             builder.setApnsServer(ApnsClientBuilder.PRODUCTION_APNS_HOST);
         } else {
             builder.setApnsServer(ApnsClientBuilder.DEVELOPMENT_APNS_HOST);
@@ -118,11 +161,12 @@ public class ApnsClient {
         } else {
             builder.setSigningKey(signingKey);
         }
+        if (this.config.getTrustedCertificate() != null) {
+            builder.setTrustedServerCertificateChain(new File(this.config.getTrustedCertificate()));
+        }
         builder.setConcurrentConnections(this.config.getMaxConnections());
         
-        if (this.config.isDebugEnabled()) {
-            builder.setMetricsListener(new ApnsMetrics());
-        }
+        builder.setMetricsListener(this.metrics);
         
         return builder.build();
     }
@@ -221,13 +265,14 @@ public class ApnsClient {
      * @param msg              AFE message
      * @param topic            APNS topic
      * @param pushNotification APNS push notification request
+     * @return future completed with the APNS response
      */
-    private void sendNotification(final ApnsReq msg,
+    private CompletableFuture<PushNotificationResponse<SimpleApnsPushNotification>> sendNotification(final ApnsReq msg,
                                   final String topic,
                                   final SimpleApnsPushNotification pushNotification) 
     {
         final CompletableFuture<PushNotificationResponse<SimpleApnsPushNotification>> future = this.client.sendNotification(pushNotification);
-        future.whenComplete((response, e) -> this.completeCallback(msg, pushNotification, topic, false, response, e));
+        return future.whenComplete((response, e) -> this.completeCallback(msg, pushNotification, topic, false, response, e));
     }
     
 }
@@ -40,6 +40,11 @@ public class ApnsConfig {
     
     private int maxconnections = 5;
     
+    // APNs server override for stand-in servers
+    private String host;
+    private int    port;
+    private String trustedCert;
+    
     private ApnsClient client;
     
     /**
@@ -66,6 +71,10 @@ public class ApnsConfig {
         this.clientKeystorePass = p.getProperty(prefix + "apns.keystore.pwd");
         String keystoreType = p.getProperty(prefix + "apns.keystore.type");
         
+        this.host        = p.getProperty(prefix + "apns.host");
+        this.port        = parseInt(p.getProperty(prefix + "apns.port"), 443);
+        this.trustedCert = p.getProperty(prefix + "apns.trustedcert");
+        
         if (this.clientKeystoreFile != null) {
             try (InputStream kis = new FileInputStream(this.clientKeystoreFile)) {
                 this.clientKeystore = KeyStore.getInstance(keystoreType);
@@ -138,6 +147,31 @@ public class ApnsConfig {
         return this.maxconnections;
     }
     
+    /**
+     * Get the APNs server host override
+     * @return host or null to use the production or development server
+     */
+    public String getHost() {
+        return this.host;
+    }
+    
+    /**
+     * Get the APNs server port. Only used with {@link #getHost()}.
+     * @return port
+     */
+    public int getPort() {
+        return this.port;
+    }
+    
+    /**
+     * Get the PEM file of trusted APNs server certificates.
+     * Only needed for servers with a self-signed certificate, like stand-in servers.
+     * @return file name or null to use the default trust store
+     */
+    public String getTrustedCertificate() {
+        return this.trustedCert;
+    }
+    
     /**
      * Get the Key ID
      * @return Key ID
@@ -183,4 +217,14 @@ public class ApnsConfig {
         return this.prodEnable;
     }
     
+    private static int parseInt(final String value, final int defaultValue) {
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid number " + value + ". Using " + defaultValue);
+            return defaultValue;
+        }
+    }
+    
 }
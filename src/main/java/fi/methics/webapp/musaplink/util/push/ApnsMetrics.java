@@ -9,7 +9,8 @@ import com.eatthepath.pushy.apns.ApnsClient;
 import com.eatthepath.pushy.apns.ApnsClientMetricsListener;
 
 /**
- * Simple metrics class that just prints to log
+ * Simple APNs client metrics. Counts events and prints them to debug log.
+ * Connection counts are reported by {@link PushMetrics}.
  */
 public class ApnsMetrics implements ApnsClientMetricsListener {
 
@@ -21,6 +22,7 @@ public class ApnsMetrics implements ApnsClientMetricsListener {
     private AtomicInteger notificationsRejected = new AtomicInteger();
     private AtomicInteger connectionsAdded      = new AtomicInteger();
     private AtomicInteger connectionsRemoved    = new AtomicInteger();
+    private AtomicInteger connectionsFailed     = new AtomicInteger();
     
     @Override
     public void handleWriteFailure(ApnsClient apnsClient, long notificationId) {
@@ -54,7 +56,28 @@ public class ApnsMetrics implements ApnsClientMetricsListener {
 
     @Override
     public void handleConnectionCreationFailed(ApnsClient apnsClient) {
-        log.debug("APNS connection creation failed.");
+        log.debug("APNS connection creation failed. Total Count=" + this.connectionsFailed.incrementAndGet());
+    }
+
+    /**
+     * @return number of open connections to APNs
+     */
+    public int getOpenConnections() {
+        return this.connectionsAdded.get() - this.connectionsRemoved.get();
+    }
+
+    /**
+     * @return number of failed connection attempts
+     */
+    public int getFailedConnections() {
+        return this.connectionsFailed.get();
+    }
+
+    /**
+     * @return number of notifications that could not be written to a connection
+     */
+    public int getWriteFailures() {
+        return this.writeFailures.get();
     }
 
 }
@@ -4,15 +4,24 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.ParseException;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.util.EntityUtils;
 
 import com.google.auth.oauth2.GoogleCredentials;
@@ -23,6 +32,10 @@ import fi.methics.webapp.musaplink.util.push.datatype.FcmResp;
 
 /**
  * FCM client using the HTTPv1 API
+ * <p>Requests are sent asynchronously: {@link #sendAsync(FcmReq)} only queues the request.
+ * A bounded pool of sender threads, one per pooled HTTP connection, sends the queued requests
+ * and completes the returned future. Connect, read and pool wait times are bounded by
+ * {@link FcmConfig#getTimeout()}.
  *
  * @see https://firebase.google.com/codelabs/use-the-fcm-http-v1-api-with-oauth-2-access-tokens
  */
@@ -32,15 +45,21 @@ public class FcmClient {
 
     private static final String PROJECT_NAME = "[PROJECT_NAME]";
     private static final String FCM_URL      = "https://fcm.googleapis.com/v1/projects/[PROJECT_NAME]/messages:send";
-    
+
+    // Max time a send waits for an access token when no valid token is cached
+    private static final long TOKEN_TIMEOUT = 10_000;
+
     private CloseableHttpClient client;
-    
+    private ThreadPoolExecutor  executor;
+    private PoolingHttpClientConnectionManager pool;
+
     private boolean   debug;
     private String    url;
     private FcmConfig config;
-    
-    private String accessToken;
-    
+
+    private FcmTokenManager tokens;
+    private String          accessToken;
+
     /**
      * Create a new FCM HTTP client
      * @param config FCM configuration
@@ -48,20 +67,28 @@ public class FcmClient {
     public FcmClient(final FcmConfig config) {
         this.config = config;
         if (config.isEnabled()) {
-            this.client = config.getHttpClient();
-            this.debug  = config.isFcmDebugEnabled();
-            this.url    = FCM_URL.replace(PROJECT_NAME, config.getFcmProjectName());
-    
-            try (InputStream is = config.getGoogleServicesJson()) {
-                this.accessToken = getAccessToken(is);
-            } catch (Exception e) {
-                log.error("Failed to get access token", e);
+            this.pool     = config.createConnectionPool();
+            this.client   = config.getHttpClient(this.pool);
+            this.executor = createExecutor(config);
+            this.debug    = config.isFcmDebugEnabled();
+            String url    = config.getFcmUrl() != null ? config.getFcmUrl() : FCM_URL;
+            this.url      = url.replace(PROJECT_NAME, config.getFcmProjectName());
+
+            if (config.getAccessToken() != null) {
+                log.warn("Using a static FCM access token. FCM URL is " + this.url);
+                this.accessToken = config.getAccessToken();
+            } else {
+                try (InputStream is = config.getGoogleServicesJson()) {
+                    this.tokens = new FcmTokenManager(getCredentials(is));
+                } catch (Exception e) {
+                    log.error("Failed to load FCM credentials", e);
+                }
             }
-            
+
             log.debug("FcmHttpClient initialized");
         }
     }
-    
+
     /**
      * Check if this client is enabled?
      * @return true if enabled
@@ -69,61 +96,171 @@ public class FcmClient {
     public boolean isEnabled() {
         return this.config.isEnabled();
     }
-    
+
+    /**
+     * Get the FCM project name
+     * @return project name
+     */
+    public String getProjectName() {
+        return this.config.getFcmProjectName();
+    }
+
+    /**
+     * Get the number of requests waiting for a sender thread
+     * @return queue length
+     */
+    public int getQueueLength() {
+        return this.executor != null ? this.executor.getQueue().size() : 0;
+    }
+
     /**
-     * Send an FCM notification
+     * Get HTTP connection pool statistics
+     * @return pool statistics or null if not enabled
+     */
+    public PoolStats getConnectionStats() {
+        return this.pool != null ? this.pool.getTotalStats() : null;
+    }
+
+    /**
+     * Send an FCM notification without waiting for the result
      * @param fcm notification request
      */
     public void send(FcmReq fcm) {
-        
+
         if (!this.isEnabled()) {
             return;
         }
-        
+
         if (fcm.getToken() == null) {
             log.warn("No FCM token available for user yet");
             return;
         }
-        
-        this.sendMessage(fcm);
+
+        this.sendAsync(fcm);
     }
 
     /**
-     * Send an FCM notification request
+     * Queue an FCM notification request
+     * @param fcm notification request
+     * @return future completed with the FCM response. Completed exceptionally if the request
+     *         could not be sent, or if the send queue is full.
+     */
+    public CompletableFuture<FcmResp> sendAsync(final FcmReq fcm) {
+        final CompletableFuture<FcmResp> future = new CompletableFuture<>();
+        if (!this.isEnabled()) {
+            future.completeExceptionally(new IOException("FCM is not enabled"));
+            return future;
+        }
+        try {
+            this.executor.execute(() -> {
+                try {
+                    future.complete(this.sendMessage(fcm));
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("FCM send queue is full");
+            future.completeExceptionally(new IOException("FCM send queue is full", e));
+        }
+        return future.whenComplete((resp, e) -> this.logResult(resp, e));
+    }
+
+    /**
+     * Shut down the client
+     */
+    public void shutdown() {
+        if (this.executor != null) this.executor.shutdown();
+        if (this.tokens   != null) this.tokens.shutdown();
+        try {
+            if (this.client != null) this.client.close();
+        } catch (IOException e) {
+            log.warn("Failed to close FCM client", e);
+        }
+    }
+
+    /**
+     * Send an FCM notification request on the calling thread
      * @param fcm request
+     * @return FCM response
+     * @throws IOException if the request could not be sent
+     */
+    private FcmResp sendMessage(final FcmReq fcm) throws IOException {
+
+        final String reqBody = fcm.toJson();
+        if (this.debug) {
+            log.debug("Sending FCM request: " + reqBody);
+        }
+
+        if (this.accessToken != null) {
+            try (CloseableHttpResponse resp = this.client.execute(this.createPost(reqBody, this.accessToken))) {
+                return this.parseResponse(resp);
+            }
+        }
+        if (this.tokens == null) {
+            throw new IOException("No FCM credentials available");
+        }
+
+        String token = this.tokens.getToken(TOKEN_TIMEOUT);
+        try (CloseableHttpResponse resp = this.client.execute(this.createPost(reqBody, token))) {
+            if (resp.getStatusLine().getStatusCode() != HttpStatus.SC_UNAUTHORIZED) {
+                return this.parseResponse(resp);
+            }
+            EntityUtils.consumeQuietly(resp.getEntity());
+        }
+        // Retry once with a new token
+        token = this.tokens.getTokenAfterReject(token, TOKEN_TIMEOUT);
+        try (CloseableHttpResponse resp = this.client.execute(this.createPost(reqBody, token))) {
+            return this.parseResponse(resp);
+        }
+    }
+
+    /**
+     * Create an FCM HTTP request
+     * @param reqBody Request body
+     * @param token   Access token
+     * @return HTTP POST
      */
-    private void sendMessage(final FcmReq fcm) {
-        
+    private HttpPost createPost(final String reqBody, final String token) {
         HttpPost post = new HttpPost(this.url);
-        post.addHeader("Authorization", "Bearer " + this.accessToken);
+        post.addHeader("Authorization", "Bearer " + token);
         post.addHeader("X-GFE-SSL", "yes");
         post.addHeader("Content-Type", "application/json");
-        
-        final String reqBody = fcm.toJson();
         if (!reqBody.isEmpty()) {
             post.setEntity(new StringEntity(reqBody, "UTF-8"));
         }
-        
+        return post;
+    }
+
+    /**
+     * Parse an FCM HTTP response
+     * @param resp HTTP response
+     * @return FCM response
+     * @throws IOException
+     */
+    private FcmResp parseResponse(final CloseableHttpResponse resp) throws IOException {
+        String bodyStr = getResponseBody(resp);
         if (this.debug) {
-            log.debug("Sending FCM request: " + reqBody);
+            log.debug("Got FCM response: " + bodyStr);
         }
-        
-        try (CloseableHttpResponse resp = this.client.execute(post)) {
-            String bodyStr = getResponseBody(resp);
-            if (this.debug) {
-                log.debug("Got FCM response: " + bodyStr);
-            }
-            FcmResp jResp = FcmResp.from(bodyStr);
-            if (jResp.isSuccessful()) {
-                log.info("FCM notification request succeeded");
-            } else {
-                log.info("FCM notification request failed: " + jResp.getError());
-            }
-        } catch (Exception e) {
+        return FcmResp.from(resp.getStatusLine().getStatusCode(), bodyStr);
+    }
+
+    /**
+     * Log the result of an FCM request
+     * @param resp FCM response (null on failure)
+     * @param e    Failure (null on success)
+     */
+    private void logResult(final FcmResp resp, final Throwable e) {
+        if (e != null) {
             log.info("FCM notification request failed", e);
+        } else if (resp.isSuccessful()) {
+            log.info("FCM notification request succeeded");
+        } else {
+            log.info("FCM notification request failed: " + resp.getError());
         }
     }
-    
+
     /**
      * Get response body as UTF-8 String
      * @param resp HTTP response
@@ -134,17 +271,35 @@ public class FcmClient {
     private static String getResponseBody(final HttpResponse resp) throws ParseException, IOException {
         return resp.getEntity() != null ? EntityUtils.toString(resp.getEntity(), StandardCharsets.UTF_8) : "";
     }
-    
+
     /**
-     * Get the FCM access token
+     * Load the FCM credentials
      * @param is InputStream of the google-services.json
-     * @return access token
+     * @return credentials scoped for FCM
      * @throws IOException
      */
-    private static String getAccessToken(InputStream is) throws IOException {
-        GoogleCredentials googleCredentials = GoogleCredentials.fromStream(is).createScoped(Arrays.asList("https://www.googleapis.com/auth/firebase.messaging"));
-        googleCredentials.refresh();
-        return googleCredentials.getAccessToken().getTokenValue();
+    private static GoogleCredentials getCredentials(InputStream is) throws IOException {
+        return GoogleCredentials.fromStream(is).createScoped(Arrays.asList("https://www.googleapis.com/auth/firebase.messaging"));
     }
-    
+
+    /**
+     * Create the sender thread pool. There is one thread per pooled connection,
+     * and requests wait in a bounded queue.
+     * @param config FCM configuration
+     * @return executor
+     */
+    private static ThreadPoolExecutor createExecutor(final FcmConfig config) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(config.getMaxConnections(), config.getMaxConnections(),
+                                                             60, TimeUnit.SECONDS,
+                                                             new ArrayBlockingQueue<>(config.getQueueSize()),
+                                                             r -> {
+                                                                 Thread t = new Thread(r, "fcm-sender-" + count.incrementAndGet());
+                                                                 t.setDaemon(true);
+                                                                 return t;
+                                                             });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
 }
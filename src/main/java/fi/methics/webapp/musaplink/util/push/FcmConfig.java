@@ -4,11 +4,14 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 
 
 /**
@@ -19,6 +22,15 @@ import org.apache.http.impl.client.HttpClients;
  * webapp.musaplink.fcm.projectname = test-app
  * webapp.musaplink.fcm.debug       = true
  * webapp.musaplink.google.services.file = ...
+ * webapp.musaplink.fcm.maxconnections = 20
+ * webapp.musaplink.fcm.timeout        = 10000
+ * webapp.musaplink.fcm.queue.size     = 1000
+ * </pre>
+ * For load testing against a local stand-in server (see the push stand-ins in the test sources),
+ * the send URL and access token can be overridden:
+ * <pre>
+ * webapp.musaplink.fcm.url         = http://localhost:9080/v1/projects/[PROJECT_NAME]/messages:send
+ * webapp.musaplink.fcm.accesstoken = standin
  * </pre>
  */
 public class FcmConfig  {
@@ -33,6 +45,12 @@ public class FcmConfig  {
     private final String  fcmProjectName;
     
     private final String  googleServicesJsonFile;
+    private final String  fcmUrl;
+    private final String  accessToken;
+    
+    private final int maxConnections;
+    private final int timeout;
+    private final int queueSize;
     
     private final Properties properties;
     
@@ -46,6 +64,11 @@ public class FcmConfig  {
         this.fcmProjectID   = p.getProperty(prefix + "fcm.projectid");
         this.fcmProjectName = p.getProperty(prefix + "fcm.projectname", this.fcmProjectID);
         this.googleServicesJsonFile = p.getProperty(prefix + "google.services.file", "conf/google-services.json");
+        this.fcmUrl         = p.getProperty(prefix + "fcm.url");
+        this.accessToken    = p.getProperty(prefix + "fcm.accesstoken");
+        this.maxConnections = parseInt(p.getProperty(prefix + "fcm.maxconnections"), 20);
+        this.timeout        = parseInt(p.getProperty(prefix + "fcm.timeout"),        10000);
+        this.queueSize      = parseInt(p.getProperty(prefix + "fcm.queue.size"),     1000);
         
         if (this.isEnabled()) {
             log.info("FCM Push Notifications are enabled");
@@ -73,6 +96,23 @@ public class FcmConfig  {
         return this.fcmProjectName;
     }
     
+    /**
+     * Get the FCM send URL override. [PROJECT_NAME] is replaced with the project name.
+     * @return URL or null to use the FCM default
+     */
+    public String getFcmUrl() {
+        return this.fcmUrl;
+    }
+
+    /**
+     * Get a static FCM access token used instead of the Google service account credentials.
+     * Only meant for stand-in servers.
+     * @return access token or null
+     */
+    public String getAccessToken() {
+        return this.accessToken;
+    }
+
     public boolean isFcmDebugEnabled() {
         return this.fcmDebugEnable;
     }
@@ -86,15 +126,80 @@ public class FcmConfig  {
     }
     
     /**
-     * Get a HTTP client for FCM HTTP
+     * Get the max number of concurrent FCM connections (and sending threads)
+     * @return max connections
+     */
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+    
+    /**
+     * Get the FCM connect, read and connection pool wait timeout
+     * @return timeout in milliseconds
+     */
+    public int getTimeout() {
+        return this.timeout;
+    }
+    
+    /**
+     * Get the max number of FCM requests waiting for a connection
+     * @return queue size
+     */
+    public int getQueueSize() {
+        return this.queueSize;
+    }
+    
+    /**
+     * Get a HTTP client for FCM HTTP.
+     * <p>All connections go to the same host, so the per-route limit is the same as the total limit.
      * @return HTTP client
      */
     public CloseableHttpClient getHttpClient() {
-        return HttpClients.createDefault();
+        return this.getHttpClient(this.createConnectionPool());
+    }
+
+    /**
+     * Create the FCM HTTP connection pool
+     * @return connection pool
+     */
+    public PoolingHttpClientConnectionManager createConnectionPool() {
+        PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+        pool.setMaxTotal(this.maxConnections);
+        pool.setDefaultMaxPerRoute(this.maxConnections);
+        pool.setValidateAfterInactivity(10000);
+        return pool;
+    }
+
+    /**
+     * Create an FCM HTTP client using the given connection pool
+     * @param pool Connection pool
+     * @return HTTP client
+     */
+    public CloseableHttpClient getHttpClient(PoolingHttpClientConnectionManager pool) {
+        RequestConfig requestConfig = RequestConfig.custom()
+                                                   .setConnectTimeout(this.timeout)
+                                                   .setSocketTimeout(this.timeout)
+                                                   .setConnectionRequestTimeout(this.timeout)
+                                                   .build();
+        return HttpClients.custom()
+                          .setConnectionManager(pool)
+                          .setDefaultRequestConfig(requestConfig)
+                          .evictIdleConnections(60, TimeUnit.SECONDS)
+                          .build();
     }
 
     public InputStream getGoogleServicesJson() throws FileNotFoundException {
         return new FileInputStream(this.googleServicesJsonFile);
     }
+    
+    private static int parseInt(final String value, final int defaultValue) {
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid number " + value + ". Using " + defaultValue);
+            return defaultValue;
+        }
+    }
 
 }
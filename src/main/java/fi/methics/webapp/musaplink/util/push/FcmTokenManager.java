@@ -0,0 +1,173 @@
+package fi.methics.webapp.musaplink.util.push;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+
+/**
+ * Keeps a valid FCM OAuth2 access token available.
+ *
+ * <p>The token is refreshed in the background before it expires, so senders normally get
+ * a cached token without waiting. Only one refresh runs at a time; concurrent callers share it.
+ * A token is never handed out after its expiry time. If the cached token has expired (e.g. the
+ * background refresh keeps failing), callers wait for a refresh for at most the given timeout.
+ */
+public class FcmTokenManager {
+
+    private static final Log log = LogFactory.getLog(FcmTokenManager.class);
+
+    // Refresh this long before the token expires
+    private static final long REFRESH_MARGIN = TimeUnit.MINUTES.toMillis(5);
+
+    // Delay before retrying a failed background refresh
+    private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    // Tokens closer than this to expiry are not handed out
+    private static final long EXPIRY_MARGIN = TimeUnit.SECONDS.toMillis(30);
+
+    private final GoogleCredentials credentials;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "fcm-token-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile AccessToken token;
+    private ScheduledFuture<?> next;
+    private final AtomicReference<CompletableFuture<AccessToken>> inflight = new AtomicReference<>();
+
+    /**
+     * Create a new token manager and start fetching the first token in the background
+     * @param credentials Scoped Google credentials
+     */
+    public FcmTokenManager(final GoogleCredentials credentials) {
+        this.credentials = credentials;
+        this.refresh();
+    }
+
+    /**
+     * Get a valid access token
+     * @param timeout Max time to wait if no valid token is cached (milliseconds)
+     * @return access token value
+     * @throws IOException if no valid token could be fetched in time
+     */
+    public String getToken(final long timeout) throws IOException {
+        AccessToken current = this.token;
+        if (isValid(current)) {
+            return current.getTokenValue();
+        }
+        log.debug("No valid FCM access token cached. Waiting for refresh.");
+        return this.await(this.refresh(), timeout);
+    }
+
+    /**
+     * Get a new access token after FCM rejected the given token (HTTP 401).
+     * If another thread has already replaced the rejected token, the newer token is returned.
+     * @param rejected Rejected token value
+     * @param timeout  Max time to wait for a new token (milliseconds)
+     * @return access token value
+     * @throws IOException if no new token could be fetched in time
+     */
+    public String getTokenAfterReject(final String rejected, final long timeout) throws IOException {
+        AccessToken current = this.token;
+        if (isValid(current) && !Objects.equals(current.getTokenValue(), rejected)) {
+            return current.getTokenValue();
+        }
+        log.info("FCM rejected the access token. Refreshing it.");
+        this.token = null;
+        return this.await(this.refresh(), timeout);
+    }
+
+    /**
+     * Stop background refreshes
+     */
+    public void shutdown() {
+        this.scheduler.shutdownNow();
+    }
+
+    /**
+     * Start a token refresh, unless one is already running
+     * @return future of the refreshed token
+     */
+    private CompletableFuture<AccessToken> refresh() {
+        CompletableFuture<AccessToken> future = new CompletableFuture<>();
+        if (!this.inflight.compareAndSet(null, future)) {
+            CompletableFuture<AccessToken> running = this.inflight.get();
+            if (running != null) return running;
+            return this.refresh();
+        }
+        try {
+            this.scheduler.execute(() -> this.doRefresh(future));
+        } catch (RuntimeException e) {
+            this.inflight.set(null);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Fetch a new token and schedule the next refresh
+     * @param future Future to complete
+     */
+    private void doRefresh(final CompletableFuture<AccessToken> future) {
+        long nextRefresh;
+        try {
+            AccessToken fresh = this.credentials.refreshAccessToken();
+            this.token = fresh;
+            log.debug("Refreshed FCM access token. Expires at " + fresh.getExpirationTime());
+            nextRefresh = getRefreshDelay(fresh);
+            this.inflight.set(null);
+            future.complete(fresh);
+        } catch (Exception e) {
+            log.error("Failed to refresh FCM access token", e);
+            nextRefresh = RETRY_DELAY;
+            this.inflight.set(null);
+            future.completeExceptionally(e);
+        }
+        // Only run on the scheduler thread, so there is one pending background refresh at a time
+        if (this.next != null) this.next.cancel(false);
+        this.next = this.scheduler.schedule(() -> { this.refresh(); }, nextRefresh, TimeUnit.MILLISECONDS);
+    }
+
+    private String await(final CompletableFuture<AccessToken> future, final long timeout) throws IOException {
+        try {
+            AccessToken fresh = future.get(timeout, TimeUnit.MILLISECONDS);
+            if (!isValid(fresh)) throw new IOException("FCM access token expired");
+            return fresh.getTokenValue();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for FCM access token", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to get FCM access token", e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out waiting for FCM access token");
+        }
+    }
+
+    private static boolean isValid(final AccessToken token) {
+        if (token == null) return false;
+        Date expires = token.getExpirationTime();
+        return expires == null || expires.getTime() - EXPIRY_MARGIN > System.currentTimeMillis();
+    }
+
+    private static long getRefreshDelay(final AccessToken token) {
+        Date expires = token.getExpirationTime();
+        if (expires == null) return TimeUnit.MINUTES.toMillis(30);
+        return Math.max(RETRY_DELAY, expires.getTime() - REFRESH_MARGIN - System.currentTimeMillis());
+    }
+
+}
@@ -0,0 +1,71 @@
+package fi.methics.webapp.musaplink.util.push;
+
+import com.google.gson.JsonObject;
+
+import fi.methics.webapp.musaplink.util.ConcurrentExpirableMap;
+import fi.methics.webapp.musaplink.util.MusapLinkConf;
+
+/**
+ * Tracks which devices are actively polling for requests.
+ * <p>A device is active if it has called getdata within the presence window.
+ * An active device is likely to find a new request without a push notification.
+ * Presence is tracked per node.
+ */
+public class PresenceTracker {
+
+    // Max number of tracked devices
+    private static final int MAX_SIZE = 100_000;
+
+    private static volatile ConcurrentExpirableMap<String, Boolean> active;
+
+    /**
+     * Record that a device polled for requests
+     * @param musapid MUSAP ID
+     */
+    public static void markActive(String musapid) {
+        ConcurrentExpirableMap<String, Boolean> map = getMap();
+        if (map == null || musapid == null) return;
+        map.put(musapid, Boolean.TRUE);
+    }
+
+    /**
+     * Check if a device has polled for requests within the presence window
+     * @param musapid MUSAP ID
+     * @return true if active
+     */
+    public static boolean isActive(String musapid) {
+        ConcurrentExpirableMap<String, Boolean> map = getMap();
+        if (map == null || musapid == null) return false;
+        return map.containsKey(musapid);
+    }
+
+    /**
+     * Get presence map metrics
+     * @return metrics JSON or null if presence tracking is disabled
+     */
+    public static JsonObject toJson() {
+        ConcurrentExpirableMap<String, Boolean> map = getMap();
+        return map == null ? null : map.toJson();
+    }
+
+    /**
+     * Get the map of active devices. Created on first call.
+     * @return map or null if presence tracking is disabled
+     */
+    private static ConcurrentExpirableMap<String, Boolean> getMap() {
+        ConcurrentExpirableMap<String, Boolean> result = active;
+        if (result == null) {
+            int window = MusapLinkConf.getInstance().getPushPresenceWindow();
+            if (window <= 0) return null;
+            synchronized (PresenceTracker.class) {
+                result = active;
+                if (result == null) {
+                    result = new ConcurrentExpirableMap<>(window, MAX_SIZE);
+                    active = result;
+                }
+            }
+        }
+        return result;
+    }
+
+}
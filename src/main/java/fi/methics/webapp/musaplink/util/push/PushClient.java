@@ -1,48 +1,258 @@
 package fi.methics.webapp.musaplink.util.push;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.eatthepath.pushy.apns.PushNotificationResponse;
+import com.eatthepath.pushy.apns.util.SimpleApnsPayloadBuilder;
+import com.eatthepath.pushy.apns.util.SimpleApnsPushNotification;
+
 import fi.methics.webapp.musaplink.MusapLinkAccount;
+import fi.methics.webapp.musaplink.coupling.json.CouplingApiMessage;
+import fi.methics.webapp.musaplink.coupling.json.SignatureReq;
 import fi.methics.webapp.musaplink.util.MusapLinkConf;
+import fi.methics.webapp.musaplink.util.MusapTransportEncryption;
+import fi.methics.webapp.musaplink.util.MusapTransportEncryption.TransportKeys;
 import fi.methics.webapp.musaplink.util.push.datatype.ApnsReq;
 import fi.methics.webapp.musaplink.util.push.datatype.FcmReq;
+import fi.methics.webapp.musaplink.util.push.datatype.FcmResp;
 
 /**
  * Simple class for FCM and APNs push notification sending
  */
 public class PushClient {
-    
+
     private static final Log log = LogFactory.getLog(PushClient.class);
 
+    // Collapse key of request notifications. A newer notification replaces an older one on the device.
+    public static final String COLLAPSE_KEY = "musaplink-request";
+
+    // Max APNs payload size
+    private static final int APNS_MAX_PAYLOAD = 4096;
+
     /**
-     * Send a push notification to the user 
+     * Send a push notification to the user
      * @param account User account
      * @param message Notification message to send
      */
     public static void sendPushNotification(MusapLinkAccount account, String message) {
-        
+        sendPushNotification(account, message, null);
+    }
+
+    /**
+     * Queue a push notification to the user.
+     * The outcome is reported to the given transaction.
+     * @param account User account
+     * @param message Notification message to send
+     * @param transid Transaction ID (may be null)
+     */
+    public static void sendPushNotification(MusapLinkAccount account, String message, String transid) {
+        sendPushNotification(account, message, transid, null);
+    }
+
+    /**
+     * Queue a push notification to the user.
+     * If data push is enabled, the sign request is sent inside the push, transport encrypted
+     * with the keys of the account, so that the app does not need to call getdata.
+     * @param account User account
+     * @param message Notification message to send
+     * @param transid Transaction ID (may be null)
+     * @param req     Sign request of the transaction (may be null)
+     */
+    public static void sendPushNotification(MusapLinkAccount account, String message, String transid, SignatureReq req) {
         if (account == null) {
             log.debug("No account. Skipping push notification.");
             return;
         }
-        
+        if (account.isPushTokenInvalid()) {
+            log.debug("Push token of " + account.musapid + " is invalid. Skipping push notification.");
+            return;
+        }
+        PushJob job = new PushJob(account, message, transid);
+        if (req != null && transid != null && MusapLinkConf.getInstance().isPushDataEnabled()) {
+            job.setData(createData(account, transid, req));
+        }
+        PushDispatcher.dispatch(job);
+    }
+
+    /**
+     * Create the transport encrypted Coupling API message for a data push.
+     * This is the same message the app would get with getdata.
+     * @param account User account
+     * @param transid Transaction ID
+     * @param req     Sign request
+     * @return message JSON, or null if the account has no transport keys or the message is too large
+     */
+    private static String createData(MusapLinkAccount account, String transid, SignatureReq req) {
+        TransportKeys keys = account.getTransportKeys();
+        if (keys == null) {
+            log.debug("No transport keys for " + account.musapid + ". Not sending the request in the push.");
+            return null;
+        }
+        try {
+            req.transid = transid;
+            CouplingApiMessage msg = CouplingApiMessage.createRequest("sign", transid, req);
+            new MusapTransportEncryption(MusapLinkConf.getInstance()).encrypt(msg, keys);
+            String json = msg.toJson();
+            if (json.getBytes(StandardCharsets.UTF_8).length > MusapLinkConf.getInstance().getPushDataMaxSize()) {
+                log.debug("Request is too large to send in the push");
+                return null;
+            }
+            return json;
+        } catch (IOException e) {
+            log.warn("Failed to encrypt the request for the push", e);
+            return null;
+        }
+    }
+
+    /**
+     * Make one attempt to send a push notification
+     * @param job Push notification job
+     * @return future completed with the result of the attempt
+     */
+    public static CompletableFuture<PushResult> send(PushJob job) {
+
         // First check if we should send FCM notification
         FcmClient fcmClient = MusapLinkConf.getInstance().getFcmConfig().getClient();
-        if (fcmClient.isEnabled() && account.fcmToken != null) {
-            FcmReq fcmReq = FcmReq.makeNotificationMessage(account.fcmToken, message);
-            fcmClient.send(fcmReq);
-            return;
+        if (fcmClient.isEnabled() && job.fcmToken != null) {
+            FcmReq fcmReq = FcmReq.makeNotificationMessage(job.fcmToken, job.getMessage(), COLLAPSE_KEY, job.getCount());
+            if (job.getData() != null) {
+                fcmReq.setRequest(job.getData());
+            }
+            final String topic = fcmClient.getProjectName();
+            final long   start = System.nanoTime();
+            return fcmClient.sendAsync(fcmReq).handle((resp, e) -> {
+                if (e != null) {
+                    PushMetrics.record(PushMetrics.FCM, topic, start, getErrorName(e));
+                    return PushResult.retry(String.valueOf(e));
+                }
+                PushMetrics.record(PushMetrics.FCM, topic, start, resp.isSuccessful() ? null : String.valueOf(resp.getError()));
+                return toResult(resp, job.fcmToken);
+            });
         }
-        
+
         // Then check APNs
         ApnsClient apnsClient = MusapLinkConf.getInstance().getApnsConfig().getClient();
-        if (apnsClient.isEnabled() && account.apnsToken != null) {
+        if (apnsClient.isEnabled() && job.apnsToken != null) {
             ApnsReq apnsReq = new ApnsReq();
-            apnsClient.sendMessage(apnsReq);
-            return;
+            apnsReq.token      = job.apnsToken;
+            apnsReq.collapseId = COLLAPSE_KEY;
+            apnsReq.payload    = createApnsPayload(job, job.getData());
+            if (job.getData() != null && apnsReq.payload.getBytes(StandardCharsets.UTF_8).length > APNS_MAX_PAYLOAD) {
+                log.debug("APNs payload is too large. Sending the push without the request.");
+                apnsReq.payload = createApnsPayload(job, null);
+            }
+            final String topic = apnsClient.getTopic(apnsReq);
+            final long   start = System.nanoTime();
+            return apnsClient.sendAsync(apnsReq).handle((resp, e) -> {
+                if (e != null) {
+                    PushMetrics.record(PushMetrics.APNS, topic, start, getErrorName(e));
+                    return PushResult.retry(String.valueOf(e));
+                }
+                PushMetrics.record(PushMetrics.APNS, topic, start, resp.isAccepted() ? null : String.valueOf(resp.getRejectionReason()));
+                return toResult(resp, job.apnsToken);
+            });
         }
         log.debug("Skipping push notification");
+        return CompletableFuture.completedFuture(PushResult.skipped("No push token"));
+    }
+
+    /**
+     * Get a low cardinality name for a send failure, used as the metrics rejection reason
+     * @param e Failure
+     * @return exception class name
+     */
+    private static String getErrorName(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause.getClass().getSimpleName();
+    }
+
+    /**
+     * Create an APNs alert payload
+     * @param job  Push notification job
+     * @param data Transport encrypted request (may be null)
+     * @return payload JSON
+     */
+    private static String createApnsPayload(PushJob job, String data) {
+        SimpleApnsPayloadBuilder builder = new SimpleApnsPayloadBuilder();
+        builder.setAlertBody(job.getMessage());
+        builder.setBadgeNumber(job.getCount());
+        builder.addCustomProperty("pending", job.getCount());
+        if (data != null) {
+            // Lets a notification service extension handle the request
+            builder.setMutableContent(true);
+            builder.addCustomProperty("request", data);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Classify an FCM response.
+     * Throttling and server errors are temporary. Other errors are permanent.
+     * An unregistered token, or a token of another sender, is invalid.
+     * <p>The FCM error code of the error details is used if present, and the canonical status otherwise.
+     * A bare NOT_FOUND status does not invalidate the token, as it is also returned for an unknown project.
+     * @param resp  FCM response
+     * @param token FCM token the push was sent to
+     * @return result
+     */
+    private static PushResult toResult(FcmResp resp, String token) {
+        if (resp.isSuccessful()) return PushResult.delivered();
+
+        String error = resp.getError();
+        if (error != null) {
+            switch (error) {
+                case "UNAVAILABLE":
+                case "INTERNAL":
+                case "QUOTA_EXCEEDED":
+                case "RESOURCE_EXHAUSTED":
+                    return PushResult.retry("FCM " + error);
+                case "UNREGISTERED":
+                case "SENDER_ID_MISMATCH":
+                    return PushResult.invalidToken("FCM " + error, token, new Date());
+                default:
+            }
+        }
+        int code = resp.error.code;
+        if (code == 429 || code >= 500) {
+            return PushResult.retry("FCM " + error);
+        }
+        return PushResult.failed("FCM " + error);
+    }
+
+    /**
+     * Classify an APNs response.
+     * Throttling and server errors are temporary. Other rejections are permanent.
+     * A bad, unregistered or wrong topic device token is invalid.
+     * @param resp  APNs response
+     * @param token APNs device token the push was sent to
+     * @return result
+     */
+    private static PushResult toResult(PushNotificationResponse<SimpleApnsPushNotification> resp, String token) {
+        if (resp.isAccepted()) return PushResult.delivered();
+
+        String reason = resp.getRejectionReason();
+        if (reason == null) return PushResult.retry("APNs rejected");
+        switch (reason) {
+            case "TooManyRequests":
+            case "InternalServerError":
+            case "ServiceUnavailable":
+            case "Shutdown":
+                return PushResult.retry("APNs " + reason);
+            case "BadDeviceToken":
+            case "Unregistered":
+            case "DeviceTokenNotForTopic":
+                Date since = resp.getTokenInvalidationTimestamp().map(Date::from).orElseGet(Date::new);
+                return PushResult.invalidToken("APNs " + reason, token, since);
+            default:
+                return PushResult.failed("APNs " + reason);
+        }
     }
 
 }
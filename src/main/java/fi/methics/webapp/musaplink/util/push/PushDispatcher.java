@@ -0,0 +1,447 @@
+package fi.methics.webapp.musaplink.util.push;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import fi.methics.webapp.musaplink.util.MusapLinkConf;
+import fi.methics.webapp.musaplink.util.db.AccountStorage;
+import fi.methics.webapp.musaplink.util.db.TxnStorage;
+
+/**
+ * Sends push notifications in the background.
+ * <p>Jobs wait in a bounded queue that is drained by a pool of worker threads. Workers only start the send.
+ * The result is handled when FCM or APNs answers, so the number of pushes in flight is not limited by the workers.
+ * A job that fails
+ * temporarily (throttling, provider errors, network errors) is retried with exponential backoff.
+ * A job that fails permanently, or runs out of retries, is moved to a bounded dead letter queue.
+ * <p>The final outcome of a job is reported to its transaction with {@link TxnStorage#storePushResult(String, PushResult)},
+ * so that a Link API request waiting for an unreachable device fails without waiting for the full timeout.
+ * <p>Pushes to the same device are coalesced. The first push of a burst is sent right away. Later pushes
+ * within the coalescing window are merged into one push that is sent when the window ends and carries
+ * the number of pending requests. All pushes use the same collapse key, so the device shows only the latest.
+ * <p>Pushes to a device that is actively polling for requests ({@link PresenceTracker}) are deferred by a grace
+ * period, and skipped if the device picks up the requests before it ends.
+ */
+public class PushDispatcher {
+
+    private static final Log log = LogFactory.getLog(PushDispatcher.class);
+
+    // Max time to wait for FCM or APNs to answer before giving up on the last attempt
+    private static final long SEND_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    // Max delay between retries
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toMillis(30);
+
+    // Max number of kept dead letters. The oldest are dropped first.
+    private static final int DEAD_LETTERS = 1000;
+
+    private static volatile PushDispatcher instance;
+
+    private final ThreadPoolExecutor       workers;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "push-scheduler");
+        t.setDaemon(true);
+        return t;
+    });
+    private final LinkedBlockingDeque<PushJob> deadLetters = new LinkedBlockingDeque<>(DEAD_LETTERS);
+
+    // Open coalescing windows by device
+    private final ConcurrentHashMap<String, Burst> bursts = new ConcurrentHashMap<>();
+
+    private final int  maxRetries;
+    private final long backoff;
+    private final long coalesceWindow;
+    private final long presenceGrace;
+
+    // Starts a send to FCM or APNs
+    private final Function<PushJob, CompletableFuture<PushResult>> sender;
+
+    private PushDispatcher(int threads, int queueSize, int maxRetries, long backoff, long coalesceWindow, long presenceGrace) {
+        this(threads, queueSize, maxRetries, backoff, coalesceWindow, presenceGrace, PushClient::send);
+    }
+
+    /**
+     * Create a dispatcher with a custom sender. Used in tests.
+     * @param threads        Number of worker threads
+     * @param queueSize      Max number of jobs waiting for a worker
+     * @param maxRetries     Max number of retries of a job
+     * @param backoff        Delay before the first retry (milliseconds)
+     * @param coalesceWindow Coalescing window (milliseconds). 0 disables coalescing.
+     * @param presenceGrace  Presence grace period (milliseconds). 0 disables deferring.
+     * @param sender         Starts a send and completes with its result
+     */
+    PushDispatcher(int threads, int queueSize, int maxRetries, long backoff, long coalesceWindow, long presenceGrace,
+                   Function<PushJob, CompletableFuture<PushResult>> sender)
+    {
+        final AtomicInteger count = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                              new ArrayBlockingQueue<>(queueSize),
+                                              r -> {
+                                                  Thread t = new Thread(r, "push-worker-" + count.incrementAndGet());
+                                                  t.setDaemon(true);
+                                                  return t;
+                                              });
+        this.workers.allowCoreThreadTimeOut(true);
+        this.maxRetries = maxRetries;
+        this.backoff    = backoff;
+        this.coalesceWindow = coalesceWindow;
+        this.presenceGrace  = presenceGrace;
+        this.sender         = sender;
+    }
+
+    /**
+     * Start the dispatcher
+     * @param conf MUSAP Link configuration
+     */
+    public static synchronized void init(MusapLinkConf conf) {
+        if (instance != null) return;
+        int threads = Math.max(1, conf.getPushThreads());
+        int size    = Math.max(1, conf.getPushQueueSize());
+        log.info("Starting push dispatcher (threads=" + threads + ", queue=" + size + ")");
+        instance = new PushDispatcher(threads, size,
+                                      Math.max(0, conf.getPushRetries()),
+                                      Math.max(1, conf.getPushBackoff()),
+                                      Math.max(0, conf.getPushCoalesceWindow()),
+                                      Math.max(0, conf.getPushPresenceGrace()));
+    }
+
+    /**
+     * Get the dispatcher. Started with the current configuration on first call.
+     * @return dispatcher
+     */
+    public static PushDispatcher getInstance() {
+        PushDispatcher result = instance;
+        if (result == null) {
+            init(MusapLinkConf.getInstance());
+            result = instance;
+        }
+        return result;
+    }
+
+    /**
+     * Queue a push notification job.
+     * If the device is actively polling, the job is deferred by the presence grace period.
+     * If a push was sent to the same device within the coalescing window, the job is merged
+     * into a push sent when the window ends.
+     * @param job Push notification job
+     * @return true if the job was queued, deferred or coalesced. false if the queue is full.
+     */
+    public static boolean dispatch(PushJob job) {
+        PushDispatcher dispatcher = getInstance();
+        if (dispatcher.presenceGrace > 0 && !job.transids.isEmpty() && PresenceTracker.isActive(job.musapid)) {
+            return dispatcher.defer(job);
+        }
+        return dispatcher.coalesce(job);
+    }
+
+    /**
+     * Get the jobs that could not be delivered, oldest first
+     * @return dead letters
+     */
+    public List<PushJob> getDeadLetters() {
+        return new ArrayList<>(this.deadLetters);
+    }
+
+    /**
+     * Get the number of jobs waiting for a worker
+     * @return queue length
+     */
+    public int getQueueLength() {
+        return this.workers.getQueue().size();
+    }
+
+    /**
+     * Stop the dispatcher. Queued jobs are dropped.
+     */
+    public static synchronized void shutdown() {
+        if (instance == null) return;
+        instance.stop();
+        instance = null;
+    }
+
+    /**
+     * Stop the worker threads and the scheduler. Queued jobs are dropped.
+     */
+    void stop() {
+        this.workers.shutdownNow();
+        this.scheduler.shutdownNow();
+    }
+
+    /**
+     * Send the job after the presence grace period, unless the device has picked up its requests by then
+     * @param job Push notification job
+     * @return true if the job was deferred or queued
+     */
+    private boolean defer(PushJob job) {
+        log.debug("Device is active. Deferring " + job);
+        try {
+            this.scheduler.schedule(() -> {
+                try {
+                    job.transids.removeIf(transid -> !TxnStorage.isPending(transid));
+                } catch (Exception e) {
+                    log.warn("Failed to check pending requests", e);
+                }
+                if (job.transids.isEmpty()) {
+                    log.debug("Requests picked up by the device. Skipping " + job);
+                    return;
+                }
+                this.coalesce(job);
+            }, this.presenceGrace, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return this.coalesce(job);
+        }
+    }
+
+    /**
+     * Send the job now if it opens a new burst for its device. Otherwise merge it into the
+     * trailing push of the open burst.
+     * @param job Push notification job
+     * @return true if the job was queued or coalesced
+     */
+    boolean coalesce(PushJob job) {
+        final String key = job.getDeviceKey();
+        if (this.coalesceWindow <= 0 || key == null) {
+            return this.enqueue(job);
+        }
+        final long now = System.currentTimeMillis();
+        final Burst[] opened = new Burst[1];
+        this.bursts.compute(key, (k, burst) -> {
+            // A burst with a trailing push stays open until it is flushed
+            if (burst == null || burst.trailing == null && now - burst.opened >= this.coalesceWindow) {
+                opened[0] = new Burst(now);
+                return opened[0];
+            }
+            burst.count++;
+            if (burst.trailing == null) {
+                burst.trailing = job;
+            } else {
+                burst.trailing.merge(job);
+            }
+            return burst;
+        });
+        if (opened[0] == null) {
+            log.debug("Coalesced push notification " + job);
+            return true;
+        }
+        this.scheduleFlush(key, opened[0]);
+        return this.enqueue(job);
+    }
+
+    /**
+     * Flush a burst when its window ends
+     * @param key   Device key
+     * @param burst Burst
+     */
+    private void scheduleFlush(String key, Burst burst) {
+        try {
+            this.scheduler.schedule(() -> this.flush(key, burst), this.coalesceWindow, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            this.bursts.remove(key, burst);
+        }
+    }
+
+    /**
+     * Close a burst and send its trailing push, if any. Sending the trailing push opens
+     * a new burst, so a steady stream of requests results in one push per window.
+     * @param key   Device key
+     * @param burst Burst
+     */
+    private void flush(String key, Burst burst) {
+        final long now = System.currentTimeMillis();
+        final Burst[] opened = new Burst[1];
+        final PushJob[] trailing = new PushJob[1];
+        this.bursts.computeIfPresent(key, (k, current) -> {
+            if (current != burst) return current;
+            if (burst.trailing == null) return null;
+            trailing[0] = burst.trailing;
+            trailing[0].count = burst.count;
+            opened[0] = new Burst(now);
+            return opened[0];
+        });
+        if (trailing[0] != null) {
+            log.debug("Sending coalesced push notification " + trailing[0]);
+            this.scheduleFlush(key, opened[0]);
+            this.enqueue(trailing[0]);
+        }
+    }
+
+    private boolean enqueue(PushJob job) {
+        try {
+            this.workers.execute(() -> this.attempt(job));
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.warn("Push queue is full. Dropping " + job);
+            this.complete(job, PushResult.failed("Push queue is full"));
+            return false;
+        }
+    }
+
+    /**
+     * Start one send attempt. The result is handled when the send completes.
+     * <p>If FCM or APNs does not answer within {@link #SEND_TIMEOUT}, a job without retries left is failed right away.
+     * Otherwise the retry waits until the original send completes, so that a slow push is not delivered twice.
+     * @param job Push notification job
+     */
+    private void attempt(PushJob job) {
+        job.attempts++;
+        final CompletableFuture<PushResult> send;
+        try {
+            send = this.sender.apply(job);
+        } catch (RuntimeException e) {
+            log.error("Failed to send " + job, e);
+            this.complete(job, PushResult.failed(e.getMessage()));
+            return;
+        }
+
+        final AtomicBoolean handled = new AtomicBoolean();
+        final ScheduledFuture<?> timeout = send.isDone() ? null : this.scheduleTimeout(job, send, handled);
+        send.whenComplete((result, e) -> {
+            if (timeout != null) timeout.cancel(false);
+            if (!handled.compareAndSet(false, true)) {
+                log.debug("Ignoring late answer " + (e != null ? e : result) + " for " + job);
+                return;
+            }
+            final PushResult r = e != null ? PushResult.retry(String.valueOf(e)) : result;
+            this.handle(() -> this.onResult(job, r));
+        });
+    }
+
+    /**
+     * Fail the job if the send is not answered in time and the job has no retries left
+     * @param job     Push notification job
+     * @param send    Pending send
+     * @param handled Set when the result of the attempt has been handled
+     * @return timeout task, or null if the scheduler is stopped
+     */
+    private ScheduledFuture<?> scheduleTimeout(PushJob job, CompletableFuture<PushResult> send, AtomicBoolean handled) {
+        try {
+            return this.scheduler.schedule(() -> {
+                if (send.isDone()) return;
+                if (job.attempts <= this.maxRetries) {
+                    log.info("No answer in " + SEND_TIMEOUT + "ms. Waiting for the send to complete before retrying " + job);
+                } else if (handled.compareAndSet(false, true)) {
+                    this.handle(() -> this.complete(job, PushResult.dead("Timed out")));
+                }
+            }, SEND_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Run result handling on a worker, as sends complete on FCM and APNs I/O threads.
+     * Runs on the calling thread if the worker queue is full.
+     * @param task Result handling
+     */
+    private void handle(Runnable task) {
+        try {
+            this.workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * Handle the result of a send attempt
+     * @param job    Push notification job
+     * @param result Result of the attempt
+     */
+    private void onResult(PushJob job, PushResult result) {
+        if (result.status != PushResult.Status.RETRY) {
+            this.complete(job, result);
+        } else if (job.attempts > this.maxRetries) {
+            this.complete(job, PushResult.dead(result.reason));
+        } else {
+            this.retry(job, result);
+        }
+    }
+
+    /**
+     * Schedule a new attempt after a backoff delay
+     * @param job    Push notification job
+     * @param result Result of the failed attempt
+     */
+    private void retry(PushJob job, PushResult result) {
+        long delay = this.getBackoff(job.attempts);
+        log.info("Push notification failed: " + result + ". Retrying " + job + " in " + delay + "ms");
+        try {
+            this.scheduler.schedule(() -> {
+                if (!this.enqueue(job)) log.warn("Could not requeue " + job);
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            this.complete(job, PushResult.dead(result.reason));
+        }
+    }
+
+    /**
+     * Handle the final result of a job
+     * @param job    Push notification job
+     * @param result Final result
+     */
+    private void complete(PushJob job, PushResult result) {
+        if (result.isTokenInvalid()) {
+            try {
+                AccountStorage.invalidatePushToken(job.musapid, result.invalidToken, result.invalidSince);
+            } catch (Exception e) {
+                log.warn("Failed to mark push token invalid", e);
+            }
+        }
+        if (result.isFailure()) {
+            log.warn("Push notification failed: " + result + ". " + job);
+            while (!this.deadLetters.offerLast(job)) {
+                this.deadLetters.pollFirst();
+            }
+        } else {
+            log.debug("Push notification done: " + result + ". " + job);
+        }
+        for (String transid : job.transids) {
+            TxnStorage.storePushResult(transid, result);
+        }
+    }
+
+    /**
+     * Get the delay before the next attempt. The delay doubles on each attempt, with jitter,
+     * so that jobs failing at the same time do not retry at the same time.
+     * @param attempts Attempts made so far
+     * @return delay in milliseconds
+     */
+    private long getBackoff(int attempts) {
+        long delay = Math.min(MAX_BACKOFF, this.backoff << Math.min(attempts - 1, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Pushes to one device within a coalescing window
+     */
+    private static class Burst {
+
+        private final long opened;
+
+        // Number of requests in this burst, and the push that is sent when the window ends
+        private int     count = 1;
+        private PushJob trailing;
+
+        Burst(long opened) {
+            this.opened = opened;
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package fi.methics.webapp.musaplink.util.push;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fi.methics.webapp.musaplink.MusapLinkAccount;
+
+/**
+ * A push notification waiting to be sent by {@link PushDispatcher}
+ */
+public class PushJob {
+
+    public final String musapid;
+    public final String fcmToken;
+    public final String apnsToken;
+
+    // Latest message and the transactions of all requests coalesced into this job
+    String message;
+    final List<String> transids = new ArrayList<>();
+
+    // Number of requests pending for the device when this job was sent
+    int count = 1;
+
+    // Transport encrypted sign request sent inside the push (may be null)
+    String data;
+
+    // Number of send attempts made so far
+    int attempts;
+
+    /**
+     * Create a push notification job for an account
+     * @param account User account
+     * @param message Notification message
+     * @param transid Transaction the notification belongs to (may be null)
+     */
+    public PushJob(MusapLinkAccount account, String message, String transid) {
+        this.musapid   = account.musapid;
+        this.fcmToken  = account.fcmToken;
+        this.apnsToken = account.apnsToken;
+        this.message   = message;
+        if (transid != null) this.transids.add(transid);
+    }
+
+    /**
+     * Get the key used to coalesce jobs sent to the same device
+     * @return push token with its provider, or null if there is no token
+     */
+    public String getDeviceKey() {
+        if (this.fcmToken  != null) return "fcm:"  + this.fcmToken;
+        if (this.apnsToken != null) return "apns:" + this.apnsToken;
+        return null;
+    }
+
+    /**
+     * Get the notification message
+     * @return message
+     */
+    public String getMessage() {
+        return this.message;
+    }
+
+    /**
+     * Get the transport encrypted Coupling API message sent inside the push
+     * @return message JSON or null
+     */
+    public String getData() {
+        return this.data;
+    }
+
+    /**
+     * Set the transport encrypted Coupling API message sent inside the push
+     * @param data message JSON or null
+     */
+    public void setData(String data) {
+        this.data = data;
+    }
+
+    /**
+     * Get the number of requests pending for the device
+     * @return pending count
+     */
+    public int getCount() {
+        return this.count;
+    }
+
+    /**
+     * Was this job coalesced from several requests?
+     * @return true if coalesced
+     */
+    public boolean isCoalesced() {
+        return this.count > 1;
+    }
+
+    /**
+     * Merge a later job for the same device into this one
+     * @param other Later job
+     */
+    void merge(PushJob other) {
+        // The device fetches several pending requests with getdata
+        this.data    = null;
+        this.message = other.message;
+        this.transids.addAll(other.transids);
+    }
+
+    /**
+     * Get the number of send attempts made so far
+     * @return attempts
+     */
+    public int getAttempts() {
+        return this.attempts;
+    }
+
+    @Override
+    public String toString() {
+        return "PushJob [musapid=" + this.musapid + ", transids=" + this.transids + ", count=" + this.count + ", attempts=" + this.attempts + "]";
+    }
+
+}
@@ -0,0 +1,156 @@
+package fi.methics.webapp.musaplink.util.push;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.pool.PoolStats;
+
+import com.google.gson.JsonObject;
+
+import fi.methics.webapp.musaplink.util.MusapLinkConf;
+
+/**
+ * Push notification metrics by provider (FCM or APNs) and topic.
+ * <p>For each provider and topic this counts accepted pushes, rejected pushes by reason, and
+ * send latency in a fixed bucket histogram. Latency is measured from handing the push to the
+ * FCM or APNs client until the response, so it includes time spent in the client's send queue.
+ * <p>{@link #toJson()} adds queue depths and connection counts read at call time.
+ */
+public class PushMetrics {
+
+    public static final String FCM  = "fcm";
+    public static final String APNS = "apns";
+
+    // Upper bounds of the latency buckets in milliseconds. The last bucket is unbounded.
+    private static final long[] BUCKETS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+    private static final Map<String, Stats> STATS = new ConcurrentHashMap<>();
+
+    /**
+     * Record the result of a push
+     * @param provider    {@link #FCM} or {@link #APNS}
+     * @param topic       APNs topic or FCM project (may be null)
+     * @param startNanos  {@link System#nanoTime()} when the push was handed to the client
+     * @param rejection   Rejection reason, or null if the push was accepted
+     */
+    public static void record(String provider, String topic, long startNanos, String rejection) {
+        String key = topic != null ? provider + "/" + topic : provider;
+        Stats stats = STATS.computeIfAbsent(key, k -> new Stats());
+        stats.latency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        if (rejection == null) {
+            stats.accepted.increment();
+        } else {
+            stats.rejected.computeIfAbsent(rejection, r -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Get push metrics as JSON
+     * @return metrics
+     */
+    public static JsonObject toJson() {
+        JsonObject json = new JsonObject();
+
+        JsonObject queues = new JsonObject();
+        queues.addProperty("dispatcher", PushDispatcher.getInstance().getQueueLength());
+        queues.addProperty("deadletters", PushDispatcher.getInstance().getDeadLetters().size());
+
+        JsonObject connections = new JsonObject();
+        FcmClient fcm = MusapLinkConf.getInstance().getFcmConfig().getClient();
+        if (fcm.isEnabled()) {
+            queues.addProperty(FCM, fcm.getQueueLength());
+            PoolStats pool = fcm.getConnectionStats();
+            if (pool != null) {
+                JsonObject fcmConnections = new JsonObject();
+                fcmConnections.addProperty("leased",    pool.getLeased());
+                fcmConnections.addProperty("available", pool.getAvailable());
+                fcmConnections.addProperty("pending",   pool.getPending());
+                fcmConnections.addProperty("max",       pool.getMax());
+                connections.add(FCM, fcmConnections);
+            }
+        }
+        ApnsClient apns = MusapLinkConf.getInstance().getApnsConfig().getClient();
+        if (apns.isEnabled()) {
+            ApnsMetrics metrics = apns.getMetrics();
+            JsonObject apnsConnections = new JsonObject();
+            apnsConnections.addProperty("open",          metrics.getOpenConnections());
+            apnsConnections.addProperty("failed",        metrics.getFailedConnections());
+            apnsConnections.addProperty("writefailures", metrics.getWriteFailures());
+            connections.add(APNS, apnsConnections);
+        }
+        json.add("queues", queues);
+        json.add("connections", connections);
+
+        JsonObject providers = new JsonObject();
+        for (Map.Entry<String, Stats> entry : STATS.entrySet()) {
+            providers.add(entry.getKey(), entry.getValue().toJson());
+        }
+        json.add("providers", providers);
+        return json;
+    }
+
+    /**
+     * Counters of one provider and topic
+     */
+    private static class Stats {
+
+        private final LongAdder accepted = new LongAdder();
+        private final Map<String, LongAdder> rejected = new ConcurrentHashMap<>();
+        private final Histogram latency = new Histogram();
+
+        JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("accepted", this.accepted.sum());
+            JsonObject reasons = new JsonObject();
+            for (Map.Entry<String, LongAdder> entry : this.rejected.entrySet()) {
+                reasons.addProperty(entry.getKey(), entry.getValue().sum());
+            }
+            json.add("rejected", reasons);
+            json.add("latency", this.latency.toJson());
+            return json;
+        }
+    }
+
+    /**
+     * Latency histogram with fixed buckets
+     */
+    private static class Histogram {
+
+        private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder   sum    = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < this.counts.length; i++) {
+                this.counts[i] = new LongAdder();
+            }
+        }
+
+        void record(long millis) {
+            int i = 0;
+            while (i < BUCKETS.length && millis > BUCKETS[i]) i++;
+            this.counts[i].increment();
+            this.sum.add(millis);
+        }
+
+        /**
+         * @return count, sum and cumulative bucket counts keyed by bucket upper bound.
+         *         "le_5" is the number of pushes that took at most 5 ms, "le_inf" equals the count.
+         */
+        JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            JsonObject buckets = new JsonObject();
+            long count = 0;
+            for (int i = 0; i < this.counts.length; i++) {
+                count += this.counts[i].sum();
+                buckets.addProperty(i < BUCKETS.length ? "le_" + BUCKETS[i] : "le_inf", count);
+            }
+            json.addProperty("count", count);
+            json.addProperty("sum_ms", this.sum.sum());
+            json.add("buckets", buckets);
+            return json;
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package fi.methics.webapp.musaplink.util.push;
+
+import java.util.Date;
+
+/**
+ * Outcome of a push notification send attempt
+ */
+public class PushResult {
+
+    public enum Status {
+        /** Accepted by FCM or APNs */
+        DELIVERED,
+        /** Temporary failure. The send can be retried. */
+        RETRY,
+        /** Permanent failure, e.g. an invalid token */
+        FAILED,
+        /** Temporary failures until retries ran out */
+        DEAD,
+        /** Not sent. No push token or push provider available. */
+        SKIPPED
+    }
+
+    public final Status status;
+    public final String reason;
+
+    // Push token rejected as invalid, and the time it became invalid
+    public String invalidToken;
+    public Date   invalidSince;
+
+    private PushResult(Status status, String reason) {
+        this.status = status;
+        this.reason = reason;
+    }
+
+    public static PushResult delivered() {
+        return new PushResult(Status.DELIVERED, null);
+    }
+
+    public static PushResult retry(String reason) {
+        return new PushResult(Status.RETRY, reason);
+    }
+
+    public static PushResult failed(String reason) {
+        return new PushResult(Status.FAILED, reason);
+    }
+
+    /**
+     * Create a result for a push rejected because the token is no longer valid
+     * @param reason Rejection reason
+     * @param token  Rejected token
+     * @param since  Time the token became invalid
+     * @return failed result
+     */
+    public static PushResult invalidToken(String reason, String token, Date since) {
+        PushResult result = new PushResult(Status.FAILED, reason);
+        result.invalidToken = token;
+        result.invalidSince = since;
+        return result;
+    }
+
+    public static PushResult dead(String reason) {
+        return new PushResult(Status.DEAD, reason);
+    }
+
+    public static PushResult skipped(String reason) {
+        return new PushResult(Status.SKIPPED, reason);
+    }
+
+    /**
+     * Did the notification fail for good?
+     * @return true if the device cannot be reached with this notification
+     */
+    public boolean isFailure() {
+        return this.status == Status.FAILED || this.status == Status.DEAD;
+    }
+
+    /**
+     * Was the push rejected because the token is no longer valid?
+     * @return true if the token is invalid
+     */
+    public boolean isTokenInvalid() {
+        return this.invalidToken != null;
+    }
+
+    @Override
+    public String toString() {
+        return this.reason != null ? this.status + " (" + this.reason + ")" : this.status.toString();
+    }
+
+}
@@ -1,5 +1,6 @@
 package fi.methics.webapp.musaplink.util.push.datatype;
 
+import java.util.HashMap;
 import java.util.Map;
 
 import com.google.gson.annotations.SerializedName;
@@ -33,6 +34,35 @@ public class FcmReq extends GsonMessage {
         return msg;
     }
     
+    /**
+     * Create an FCM Push Notification request that replaces earlier notifications with the same collapse key
+     * @param token       FCM token
+     * @param title       Notification title
+     * @param collapseKey Collapse key
+     * @param pending     Number of pending requests for the device
+     * @return
+     */
+    public static FcmReq makeNotificationMessage(String token, String title, String collapseKey, int pending) {
+        FcmReq msg = makeNotificationMessage(token, title);
+        msg.message.android = new AndroidConfig();
+        msg.message.android.collapseKey = collapseKey;
+        msg.message.apns = new ApnsConfig();
+        msg.message.apns.headers = new HashMap<>();
+        msg.message.apns.headers.put("apns-collapse-id", collapseKey);
+        msg.message.data = new HashMap<>();
+        msg.message.data.put("pending", String.valueOf(pending));
+        return msg;
+    }
+    
+    /**
+     * Add a transport encrypted Coupling API message to the data payload
+     * @param request Coupling API message JSON
+     */
+    public void setRequest(String request) {
+        if (this.message.data == null) this.message.data = new HashMap<>();
+        this.message.data.put("request", request);
+    }
+    
     
     public static class Message {
         
@@ -44,6 +74,24 @@ public class FcmReq extends GsonMessage {
         
         public Map<String, String> data;
         
+        @SerializedName("android")
+        public AndroidConfig android;
+        
+        @SerializedName("apns")
+        public ApnsConfig apns;
+        
+    }
+    
+    public static class AndroidConfig {
+        
+        @SerializedName("collapse_key")
+        public String collapseKey;
+    }
+    
+    public static class ApnsConfig {
+        
+        @SerializedName("headers")
+        public Map<String, String> headers;
     }
     
     public static class Notification {
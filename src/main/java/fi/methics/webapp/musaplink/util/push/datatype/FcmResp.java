@@ -1,5 +1,7 @@
 package fi.methics.webapp.musaplink.util.push.datatype;
 
+import java.util.List;
+
 import com.google.gson.annotations.SerializedName;
 
 import fi.methics.webapp.musaplink.util.GsonMessage;
@@ -12,6 +14,9 @@ public class FcmResp extends GsonMessage {
     @SerializedName("error")
     public FcmError error;
     
+    // HTTP status of the response
+    public transient int httpStatus;
+    
     public boolean isError() {
         return this.error != null;
     }
@@ -24,13 +29,45 @@ public class FcmResp extends GsonMessage {
         return GsonMessage.fromJson(json, FcmResp.class);
     }
 
+    /**
+     * Parse an FCM HTTP response.
+     * If the body is not an FCM JSON response, an error with the HTTP status is returned.
+     * @param status HTTP status
+     * @param json   Response body
+     * @return FCM response
+     */
+    public static FcmResp from(int status, String json) {
+        FcmResp resp = null;
+        try {
+            resp = from(json);
+        } catch (RuntimeException e) {
+            // Not JSON (e.g. a proxy error page)
+        }
+        if (resp == null) resp = new FcmResp();
+        if (resp.error == null && status / 100 != 2) {
+            resp.error = new FcmError();
+            resp.error.code   = status;
+            resp.error.status = "HTTP_" + status;
+        }
+        resp.httpStatus = status;
+        return resp;
+    }
+
+    /**
+     * Get the FCM error code (e.g. UNREGISTERED) if present, otherwise the
+     * canonical error status (e.g. NOT_FOUND)
+     * @return error or null if the request was successful
+     */
     public String getError() {
         if (this.error == null) return null;
-        return this.error.status;
+        String errorCode = this.error.getErrorCode();
+        return errorCode != null ? errorCode : this.error.status;
     }
     
     public static class FcmError {
         
+        public static final String FCM_ERROR_TYPE = "type.googleapis.com/google.firebase.fcm.v1.FcmError";
+        
         @SerializedName("code")
         public int code;
         
@@ -40,6 +77,33 @@ public class FcmResp extends GsonMessage {
         @SerializedName("status")
         public String status;
 
+        @SerializedName("details")
+        public List<FcmErrorDetail> details;
+
+        /**
+         * Get the FCM specific error code from the error details
+         * @return error code or null if there is none
+         */
+        public String getErrorCode() {
+            if (this.details == null) return null;
+            for (FcmErrorDetail detail : this.details) {
+                if (detail != null && FCM_ERROR_TYPE.equals(detail.type) && detail.errorCode != null) {
+                    return detail.errorCode;
+                }
+            }
+            return null;
+        }
+
+    }
+    
+    public static class FcmErrorDetail {
+        
+        @SerializedName("@type")
+        public String type;
+        
+        @SerializedName("errorCode")
+        public String errorCode;
+        
     }
     
 }
@@ -0,0 +1,119 @@
+package fi.methics.webapp.musaplink.coupling.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.junit.Test;
+
+import fi.methics.webapp.musaplink.util.MusapTransportEncryption;
+import fi.methics.webapp.musaplink.util.MusapTransportEncryption.TransportKeys;
+import fi.methics.webapp.musaplink.util.TransportCrypto;
+
+/**
+ * Wire format tests of AES-GCM transport encryption
+ */
+public class CouplingApiMessageTest {
+
+    private static final byte[] AES_KEY = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+    private static final byte[] MAC_KEY = new byte[32];
+
+    private final MusapTransportEncryption enc = new MusapTransportEncryption(null);
+
+    @Test
+    public void testGcmRoundTrip() throws Exception {
+        TransportKeys keys = this.gcmKeys();
+        CouplingApiMessage msg = this.createMessage(CouplingApiMessage.TYPE_SIGNATURE_REQ, "transid-1");
+        String plain = msg.getPayloadJson();
+
+        this.enc.encrypt(msg, keys);
+        assertNull("GCM messages have no MAC", msg.mac);
+        assertEquals(TransportCrypto.GCM_IV_LENGTH, Base64.getDecoder().decode(msg.iv).length);
+        assertNotEquals(plain, new String(msg.getPayload(), StandardCharsets.UTF_8));
+
+        CouplingApiMessage received = CouplingApiMessage.fromJson(msg.toJson());
+        this.enc.decrypt(received, keys);
+        assertEquals(plain, received.payload);
+    }
+
+    @Test
+    public void testGcmTagFailure() throws Exception {
+        TransportKeys keys = this.gcmKeys();
+        CouplingApiMessage msg = this.createMessage(CouplingApiMessage.TYPE_SIGNATURE_REQ, "transid-2");
+        this.enc.encrypt(msg, keys);
+
+        byte[] tampered = Base64.getDecoder().decode(msg.payload);
+        tampered[tampered.length - 1] ^= 1;
+        CouplingApiMessage received = CouplingApiMessage.fromJson(msg.toJson());
+        received.payload = Base64.getEncoder().encodeToString(tampered);
+        this.assertDecryptFails(received, keys);
+    }
+
+    @Test
+    public void testGcmAadBindsTransId() throws Exception {
+        TransportKeys keys = this.gcmKeys();
+        CouplingApiMessage msg = this.createMessage(CouplingApiMessage.TYPE_SIGNATURE_REQ, "transid-3");
+        this.enc.encrypt(msg, keys);
+
+        CouplingApiMessage received = CouplingApiMessage.fromJson(msg.toJson());
+        received.transid = "transid-4";
+        this.assertDecryptFails(received, keys);
+    }
+
+    @Test
+    public void testGcmAadBindsType() throws Exception {
+        TransportKeys keys = this.gcmKeys();
+        CouplingApiMessage msg = this.createMessage(CouplingApiMessage.TYPE_SIGNATURE_REQ, "transid-5");
+        this.enc.encrypt(msg, keys);
+
+        CouplingApiMessage received = CouplingApiMessage.fromJson(msg.toJson());
+        received.type = CouplingApiMessage.TYPE_GETDATA;
+        this.assertDecryptFails(received, keys);
+    }
+
+    /**
+     * The enrolldata response tells the selected mode outside of the encrypted payload
+     */
+    @Test
+    public void testEnrollDataTransportMode() throws Exception {
+        TransportKeys keys = this.gcmKeys();
+        EnrollDataResp payload = new EnrollDataResp();
+        payload.musapid = keys.musapid;
+
+        CouplingApiMessage msg = CouplingApiMessage.createRequest(CouplingApiMessage.TYPE_ENROLLDATA, "transid-6", payload);
+        msg.musapid       = keys.musapid;
+        msg.transportmode = keys.mode;
+        this.enc.encrypt(msg, keys);
+
+        // App side: read the mode from the top-level field, then decrypt
+        CouplingApiMessage received = CouplingApiMessage.fromJson(msg.toJson());
+        assertEquals(TransportCrypto.MODE_GCM, received.transportmode);
+        received.decrypt(new TransportCrypto(keys.enc, keys.mac, received.transportmode));
+        assertEquals(keys.musapid, EnrollDataResp.fromJson(received.payload).musapid);
+    }
+
+    private void assertDecryptFails(CouplingApiMessage msg, TransportKeys keys) throws Exception {
+        try {
+            this.enc.decrypt(msg, keys);
+            fail("Decryption should fail");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private CouplingApiMessage createMessage(String type, String transid) {
+        EnrollDataResp payload = new EnrollDataResp();
+        payload.musapid = "musapid";
+        return CouplingApiMessage.createRequest(type, transid, payload);
+    }
+
+    private TransportKeys gcmKeys() {
+        return new TransportKeys("musapid", AES_KEY, MAC_KEY, TransportCrypto.MODE_GCM);
+    }
+
+}
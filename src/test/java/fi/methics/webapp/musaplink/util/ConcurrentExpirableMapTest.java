@@ -0,0 +1,157 @@
+package fi.methics.webapp.musaplink.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests of the timing wheel map
+ */
+public class ConcurrentExpirableMapTest {
+
+    private final List<ConcurrentExpirableMap<?,?>> maps = new ArrayList<>();
+
+    @After
+    public void close() {
+        for (ConcurrentExpirableMap<?,?> map : this.maps) {
+            map.close();
+        }
+    }
+
+    @Test
+    public void testSweepExpires() throws Exception {
+        ConcurrentExpirableMap<String, String> map = this.create(50, Integer.MAX_VALUE, 10);
+        map.put("a", "1");
+        map.put("b", "2");
+        assertEquals(2, map.size());
+
+        // Only the background sweep removes the entries, nothing reads them
+        this.await(() -> map.getExpiredCount() == 2);
+        assertEquals(0, map.size());
+        assertEquals(0, map.getHitCount() + map.getMissCount());
+    }
+
+    @Test
+    public void testReadAfterLifetime() throws Exception {
+        // Sweep does not run during the test
+        ConcurrentExpirableMap<String, String> map = this.create(20, Integer.MAX_VALUE, 60_000);
+        map.put("a", "1");
+        Thread.sleep(50);
+
+        assertEquals("Not swept yet", 1, map.size());
+        assertNull(map.get("a"));
+        assertEquals(0, map.size());
+        assertEquals(1, map.getExpiredCount());
+        assertEquals(1, map.getMissCount());
+    }
+
+    @Test
+    public void testPerEntryLifetime() throws Exception {
+        ConcurrentExpirableMap<String, String> map = this.create(60_000, Integer.MAX_VALUE, 10);
+        map.put("long",  "1");
+        map.put("short", "2", 30);
+
+        this.await(() -> map.getExpiredCount() == 1);
+        assertEquals(1, map.size());
+        assertFalse(map.containsKey("short"));
+        assertEquals("1", map.get("long"));
+    }
+
+    @Test
+    public void testReplacedNode() throws Exception {
+        ConcurrentExpirableMap<String, String> map = this.create(60_000, Integer.MAX_VALUE, 10);
+        map.put("a", "old", 30);
+        assertEquals("old", map.put("a", "new"));
+
+        // The sweep passes the slot of the replaced node, which must not remove the new one
+        Thread.sleep(100);
+        assertEquals("new", map.get("a"));
+        assertEquals(0, map.getExpiredCount());
+
+        // Removed nodes left in the wheel are skipped as well
+        map.put("b", "1", 30);
+        assertEquals("1", map.remove("b"));
+        map.put("b", "2");
+        Thread.sleep(100);
+        assertEquals("2", map.get("b"));
+        assertEquals(0, map.getExpiredCount());
+    }
+
+    @Test
+    public void testEvictClosestToExpiry() {
+        // One wheel rotation is 512 * 100 ms, so all lifetimes below fit in it
+        ConcurrentExpirableMap<String, String> map = this.create(60_000, 3, 100);
+        map.put("a", "1", 20_000);
+        map.put("b", "2", 5_000);
+        map.put("c", "3", 40_000);
+
+        map.put("d", "4", 30_000);
+        assertEquals(3, map.size());
+        assertFalse(map.containsKey("b"));
+
+        map.put("e", "5", 30_000);
+        assertEquals(3, map.size());
+        assertFalse(map.containsKey("a"));
+        assertTrue(map.containsKey("c"));
+        assertTrue(map.containsKey("d"));
+        assertTrue(map.containsKey("e"));
+        assertEquals(2, map.getEvictionCount());
+        assertEquals(0, map.getExpiredCount());
+    }
+
+    @Test
+    public void testEvictSkipsReplacedNode() {
+        ConcurrentExpirableMap<String, String> map = this.create(60_000, 2, 100);
+        map.put("a", "old", 5_000);
+        map.put("a", "new", 40_000);
+        map.put("b", "1", 20_000);
+        map.put("c", "2", 30_000);
+
+        // The replaced node of a is closest to expiry, but is not a live entry
+        assertEquals(2, map.size());
+        assertFalse(map.containsKey("b"));
+        assertEquals("new", map.get("a"));
+        assertEquals(1, map.getEvictionCount());
+    }
+
+    @Test
+    public void testCounters() {
+        ConcurrentExpirableMap<String, String> map = this.create(60_000, Integer.MAX_VALUE, 100);
+        map.put("a", "1");
+
+        map.get("a");
+        map.containsKey("a");
+        map.get("b");
+        map.containsKey("b");
+        map.get(null);
+
+        assertEquals(2, map.getHitCount());
+        assertEquals(3, map.getMissCount());
+        assertEquals(2, map.toJson().get("hits").getAsLong());
+        assertEquals(3, map.toJson().get("misses").getAsLong());
+        assertEquals(1, map.toJson().get("size").getAsInt());
+    }
+
+    private <K,V> ConcurrentExpirableMap<K,V> create(final long lifetime, final int maxSize, final long tick) {
+        ConcurrentExpirableMap<K,V> map = new ConcurrentExpirableMap<>(lifetime, maxSize, tick);
+        this.maps.add(map);
+        return map;
+    }
+
+    private void await(final BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+}
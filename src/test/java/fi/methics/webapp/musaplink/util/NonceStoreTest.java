@@ -0,0 +1,162 @@
+package fi.methics.webapp.musaplink.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import fi.methics.webapp.musaplink.util.NonceStore.Result;
+
+/**
+ * Tests of the bucketed nonce store
+ */
+public class NonceStoreTest {
+
+    private static final long WINDOW = 60_000;
+    private static final long SKEW   = 60_000;
+    private static final int  BUCKETS = 6;
+    private static final long WIDTH  = WINDOW / BUCKETS;
+
+    // Start of a bucket
+    private static final long NOW = 1_700_000_000_000L;
+
+    @Test
+    public void testDuplicateInBucket() {
+        NonceStore store = new NonceStore(WINDOW, SKEW, BUCKETS, 10);
+
+        assertEquals(Result.ADDED, store.add("a", NOW, NOW));
+        assertEquals(Result.USED,  store.add("a", NOW, NOW));
+        assertEquals("Same bucket, different timestamp", Result.USED, store.add("a", NOW + WIDTH - 1, NOW));
+        assertEquals(Result.ADDED, store.add("b", NOW, NOW));
+
+        assertTrue(store.contains("a", NOW));
+        assertFalse(store.contains("c", NOW));
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void testOutsideWindow() {
+        NonceStore store = new NonceStore(WINDOW, SKEW, BUCKETS, 10);
+
+        assertEquals(Result.EXPIRED, store.add("a", NOW - WINDOW - 1, NOW));
+        assertEquals(Result.EXPIRED, store.add("b", NOW + SKEW + 1, NOW));
+        assertEquals(Result.ADDED,   store.add("c", NOW - WINDOW, NOW));
+        assertEquals(Result.ADDED,   store.add("d", NOW + SKEW, NOW));
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void testExpiryReleasesCapacity() {
+        NonceStore store = new NonceStore(WINDOW, SKEW, BUCKETS, 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Result.ADDED, store.add("old-" + i, NOW, NOW));
+        }
+        assertEquals("No older bucket to drop", Result.FULL, store.add("new", NOW, NOW));
+        assertEquals(1, store.getFullCount());
+
+        // Opening a bucket once the first one is out of the window expires it
+        final long later = NOW + WINDOW + WIDTH;
+        assertEquals(Result.ADDED, store.add("new", later, later));
+        assertEquals(1, store.size());
+        assertFalse(store.contains("old-0", NOW));
+        assertEquals("Expiry is not counted as a drop", 0, store.getDroppedCount());
+    }
+
+    @Test
+    public void testDropOldestWhenFull() {
+        NonceStore store = new NonceStore(WINDOW, SKEW, BUCKETS, 4);
+        final long old = NOW - 3 * WIDTH;
+        assertEquals(Result.ADDED, store.add("old-0", old, NOW));
+        assertEquals(Result.ADDED, store.add("old-1", old, NOW));
+        assertEquals(Result.ADDED, store.add("new-0", NOW, NOW));
+        assertEquals(Result.ADDED, store.add("new-1", NOW, NOW));
+
+        assertEquals(Result.ADDED, store.add("new-2", NOW, NOW));
+        assertEquals(1, store.getDroppedCount());
+        assertEquals(0, store.getFullCount());
+        assertEquals(3, store.size());
+
+        // Nonces of the dropped bucket must not be accepted again
+        assertEquals(Result.EXPIRED, store.add("old-0", old, NOW));
+        assertEquals(Result.EXPIRED, store.add("old-2", old + WIDTH - 1, NOW));
+        assertEquals(Result.ADDED,   store.add("mid-0", old + WIDTH, NOW));
+    }
+
+    @Test
+    public void testConcurrentAddsBounded() throws Exception {
+        final int maxSize = 1000;
+        final int threads = 8;
+        final int perThread = 500;
+
+        NonceStore store = new NonceStore(WINDOW, SKEW, BUCKETS, maxSize);
+        AtomicInteger added = new AtomicInteger();
+        AtomicBoolean over  = new AtomicBoolean();
+
+        this.runConcurrently(threads, t -> {
+            for (int i = 0; i < perThread; i++) {
+                // Spread over the window so that buckets are also dropped under pressure
+                long timestamp = NOW - (i % BUCKETS) * WIDTH;
+                if (store.add(t + "-" + i, timestamp, NOW) == Result.ADDED) added.incrementAndGet();
+                if (store.size() > maxSize) over.set(true);
+            }
+        });
+
+        assertFalse("Size went over max size", over.get());
+        assertTrue(store.size() <= maxSize);
+        assertTrue(added.get() >= store.size());
+    }
+
+    @Test
+    public void testConcurrentDuplicates() throws Exception {
+        final int nonces = 1000;
+        NonceStore store = new NonceStore(WINDOW, SKEW, BUCKETS, nonces);
+        AtomicInteger added = new AtomicInteger();
+
+        this.runConcurrently(8, t -> {
+            for (int i = 0; i < nonces; i++) {
+                if (store.add("nonce-" + i, NOW, NOW) == Result.ADDED) added.incrementAndGet();
+            }
+        });
+
+        assertEquals("Each nonce is added exactly once", nonces, added.get());
+        assertEquals(nonces, store.size());
+    }
+
+    private void runConcurrently(final int threads, final Worker worker) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch  start    = new CountDownLatch(1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    worker.run(thread);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface Worker {
+        void run(int thread);
+    }
+
+}
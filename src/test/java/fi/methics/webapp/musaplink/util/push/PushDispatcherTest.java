@@ -0,0 +1,169 @@
+package fi.methics.webapp.musaplink.util.push;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import fi.methics.webapp.musaplink.MusapLinkAccount;
+
+/**
+ * Tests of push coalescing in {@link PushDispatcher}, against a stubbed send
+ */
+public class PushDispatcherTest {
+
+    private static final long WINDOW = 300;
+
+    private final BlockingQueue<PushJob> sent = new LinkedBlockingQueue<>();
+    private final PushDispatcher dispatcher   = new PushDispatcher(2, 100, 0, 10, WINDOW, 0, job -> {
+        this.sent.add(job);
+        return CompletableFuture.completedFuture(PushResult.delivered());
+    });
+
+    @After
+    public void stop() {
+        this.dispatcher.stop();
+    }
+
+    @Test
+    public void testFirstPushSentRightAway() throws Exception {
+        assertTrue(this.dispatcher.coalesce(this.createJob("token", "t1")));
+
+        PushJob job = this.sent.poll(WINDOW / 2, TimeUnit.MILLISECONDS);
+        assertNotNull("First push is not delayed", job);
+        assertEquals(Arrays.asList("t1"), job.transids);
+        assertEquals(1, job.getCount());
+        assertFalse(job.isCoalesced());
+    }
+
+    @Test
+    public void testLaterPushesMerged() throws Exception {
+        this.dispatcher.coalesce(this.createJob("token", "t1"));
+        assertNotNull(this.sent.poll(WINDOW / 2, TimeUnit.MILLISECONDS));
+
+        this.dispatcher.coalesce(this.createJob("token", "t2", "second"));
+        this.dispatcher.coalesce(this.createJob("token", "t3", "third"));
+        assertNull("Later pushes wait for the window to end", this.sent.poll(WINDOW / 3, TimeUnit.MILLISECONDS));
+
+        PushJob trailing = this.sent.poll(WINDOW * 3, TimeUnit.MILLISECONDS);
+        assertNotNull("Trailing push is sent when the window ends", trailing);
+        assertEquals(Arrays.asList("t2", "t3"), trailing.transids);
+        assertEquals("Count includes the first push", 3, trailing.getCount());
+        assertTrue(trailing.isCoalesced());
+        assertEquals("third", trailing.getMessage());
+
+        assertNull("Nothing is sent twice", this.sent.poll(WINDOW * 2, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testFlushOpensNewWindow() throws Exception {
+        this.dispatcher.coalesce(this.createJob("token", "t1"));
+        this.dispatcher.coalesce(this.createJob("token", "t2"));
+        assertNotNull(this.sent.poll(WINDOW / 2, TimeUnit.MILLISECONDS));
+        assertNotNull(this.sent.poll(WINDOW * 3, TimeUnit.MILLISECONDS));
+
+        // The trailing push opened a new window, so this one is coalesced as well
+        this.dispatcher.coalesce(this.createJob("token", "t3"));
+        assertNull(this.sent.poll(WINDOW / 3, TimeUnit.MILLISECONDS));
+
+        PushJob trailing = this.sent.poll(WINDOW * 3, TimeUnit.MILLISECONDS);
+        assertNotNull(trailing);
+        assertEquals(Arrays.asList("t3"), trailing.transids);
+        assertEquals("The flushed push is counted in the new window", 2, trailing.getCount());
+    }
+
+    @Test
+    public void testIdleWindowClosed() throws Exception {
+        this.dispatcher.coalesce(this.createJob("token", "t1"));
+        assertNotNull(this.sent.poll(WINDOW / 2, TimeUnit.MILLISECONDS));
+
+        // No trailing push, so the window closes without a send
+        assertNull(this.sent.poll(WINDOW * 2, TimeUnit.MILLISECONDS));
+
+        this.dispatcher.coalesce(this.createJob("token", "t2"));
+        PushJob job = this.sent.poll(WINDOW / 2, TimeUnit.MILLISECONDS);
+        assertNotNull("Push after an idle window is sent right away", job);
+        assertEquals(1, job.getCount());
+    }
+
+    @Test
+    public void testDevicesNotCoalesced() throws Exception {
+        this.dispatcher.coalesce(this.createJob("token-a", "t1"));
+        this.dispatcher.coalesce(this.createJob("token-b", "t2"));
+
+        assertNotNull(this.sent.poll(WINDOW / 2, TimeUnit.MILLISECONDS));
+        assertNotNull(this.sent.poll(WINDOW / 2, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testConcurrentPushesNotDroppedOrDuplicated() throws Exception {
+        final int threads   = 4;
+        final int perThread = 50;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch  start    = new CountDownLatch(1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) {
+                        assertTrue(this.dispatcher.coalesce(this.createJob("token", thread + "-" + i)));
+                        // Spread over a few windows
+                        Thread.sleep(WINDOW * 3 / perThread);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Set<String> transids = new HashSet<>();
+        int pushes = 0;
+        PushJob job;
+        while ((job = this.sent.poll(WINDOW * 3, TimeUnit.MILLISECONDS)) != null) {
+            pushes++;
+            for (String transid : job.transids) {
+                assertTrue("Duplicate push for " + transid, transids.add(transid));
+            }
+        }
+        assertEquals("Every request is pushed", threads * perThread, transids.size());
+        assertTrue("Pushes were coalesced", pushes < threads * perThread / 2);
+    }
+
+    private PushJob createJob(String token, String transid) {
+        return this.createJob(token, transid, "message");
+    }
+
+    private PushJob createJob(String token, String transid, String message) {
+        MusapLinkAccount account = new MusapLinkAccount();
+        account.musapid  = "musapid";
+        account.fcmToken = token;
+        return new PushJob(account, message, transid);
+    }
+
+}
@@ -0,0 +1,106 @@
+package fi.methics.webapp.musaplink.util.push.standin;
+
+import java.io.File;
+import java.time.Instant;
+import java.util.concurrent.ExecutionException;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.eatthepath.pushy.apns.server.MockApnsServer;
+import com.eatthepath.pushy.apns.server.MockApnsServerBuilder;
+import com.eatthepath.pushy.apns.server.PushNotificationHandler;
+import com.eatthepath.pushy.apns.server.RejectedNotificationException;
+import com.eatthepath.pushy.apns.server.RejectionReason;
+import com.eatthepath.pushy.apns.server.UnregisteredDeviceTokenException;
+
+import io.netty.channel.nio.NioEventLoopGroup;
+
+/**
+ * Local stand-in for the APNs HTTP/2 provider API, built on the pushy mock server.
+ * <p>Notifications are accepted or rejected (ServiceUnavailable, Unregistered or TooManyRequests)
+ * as picked by the {@link StandInProfile}. Authentication tokens and payloads are not validated.
+ * <p>The latency is applied on the connection's event loop thread, so notifications on one
+ * connection are answered one at a time. Use several client connections to measure concurrency.
+ * <p>Point {@link fi.methics.webapp.musaplink.util.push.ApnsClient} at this server with
+ * <code>apns.host</code>, <code>apns.port</code> and <code>apns.trustedcert</code>.
+ */
+public class ApnsStandInServer {
+
+    private static final Log log = LogFactory.getLog(ApnsStandInServer.class);
+
+    private final MockApnsServer    server;
+    private final NioEventLoopGroup group;
+    private final StandInProfile    profile;
+
+    /**
+     * Create a new APNs stand-in server
+     * @param certFile    PEM server certificate chain
+     * @param keyFile     PKCS#8 PEM server private key
+     * @param keyPassword Private key password (may be null)
+     * @param threads     Number of event loop threads
+     * @param profile     Server behaviour
+     * @throws SSLException if the server credentials cannot be loaded
+     */
+    public ApnsStandInServer(final File certFile, final File keyFile, final String keyPassword,
+                             final int threads, final StandInProfile profile) throws SSLException
+    {
+        this.profile = profile;
+        this.group   = new NioEventLoopGroup(threads);
+        this.server  = new MockApnsServerBuilder().setServerCredentials(certFile, keyFile, keyPassword)
+                                                  .setEventLoopGroup(this.group)
+                                                  .setHandlerFactory(session -> this.createHandler())
+                                                  .build();
+    }
+
+    /**
+     * Start serving requests
+     * @param port Port to listen on
+     * @throws InterruptedException
+     * @throws ExecutionException if the server could not be started
+     */
+    public void start(final int port) throws InterruptedException, ExecutionException {
+        this.server.start(port).get();
+        log.info("APNs stand-in listening on port " + port + " (" + this.profile + ")");
+    }
+
+    /**
+     * Stop the server
+     */
+    public void stop() {
+        try {
+            this.server.shutdown().get();
+        } catch (Exception e) {
+            log.warn("Failed to stop APNs stand-in", e);
+        }
+        this.group.shutdownGracefully();
+    }
+
+    /**
+     * Create a notification handler that answers as picked by the profile
+     * @return handler
+     */
+    private PushNotificationHandler createHandler() {
+        return (headers, payload) -> {
+            try {
+                this.profile.delay();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedNotificationException(RejectionReason.SHUTDOWN);
+            }
+            switch (this.profile.next()) {
+                case ERROR:
+                    throw new RejectedNotificationException(RejectionReason.SERVICE_UNAVAILABLE);
+                case INVALID_TOKEN:
+                    throw new UnregisteredDeviceTokenException(Instant.now());
+                case THROTTLED:
+                    throw new RejectedNotificationException(RejectionReason.TOO_MANY_REQUESTS);
+                default:
+                    // Accepted
+            }
+        };
+    }
+
+}
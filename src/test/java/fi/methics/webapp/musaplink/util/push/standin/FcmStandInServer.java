@@ -0,0 +1,191 @@
+package fi.methics.webapp.musaplink.util.push.standin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import fi.methics.webapp.musaplink.util.push.datatype.FcmResp.FcmError;
+
+/**
+ * Local stand-in for the FCM HTTPv1 send API.
+ * <p>Accepts <code>POST /v1/projects/{project}/messages:send</code> and answers like FCM:
+ * a message name on success, or an FCM error as picked by the {@link StandInProfile}.
+ * Errors have a canonical status (UNAVAILABLE, NOT_FOUND or RESOURCE_EXHAUSTED) and
+ * an FcmError detail with the FCM error code (UNAVAILABLE, UNREGISTERED or QUOTA_EXCEEDED). Requests without a bearer token are rejected.
+ * Message contents are not validated.
+ * <p>Point {@link fi.methics.webapp.musaplink.util.push.FcmClient} at this server with
+ * <code>fcm.url</code> and <code>fcm.accesstoken</code>.
+ */
+public class FcmStandInServer {
+
+    private static final Log log = LogFactory.getLog(FcmStandInServer.class);
+
+    private static final String SEND_SUFFIX = "/messages:send";
+
+    private final HttpServer      server;
+    private final ExecutorService executor;
+    private final StandInProfile  profile;
+    private final AtomicLong      messageId = new AtomicLong();
+
+    /**
+     * Create a new FCM stand-in server
+     * @param port    Port to listen on
+     * @param threads Number of request handler threads
+     * @param profile Server behaviour
+     * @throws IOException if the port cannot be bound
+     */
+    public FcmStandInServer(final int port, final int threads, final StandInProfile profile) throws IOException {
+        final AtomicInteger count = new AtomicInteger();
+        this.profile  = profile;
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "fcm-standin-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.createContext("/v1/projects/", this::handle);
+        this.server.setExecutor(this.executor);
+    }
+
+    /**
+     * Start serving requests
+     */
+    public void start() {
+        this.server.start();
+        log.info("FCM stand-in listening on port " + this.getPort() + " (" + this.profile + ")");
+    }
+
+    /**
+     * Stop the server
+     */
+    public void stop() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Get the port the server listens on
+     * @return port
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Handle one FCM send request
+     * @param exchange HTTP exchange
+     * @throws IOException
+     */
+    private void handle(final HttpExchange exchange) throws IOException {
+        try (InputStream is = exchange.getRequestBody()) {
+            byte[] buf = new byte[4096];
+            while (is.read(buf) != -1) {
+                // Discard the message
+            }
+        }
+
+        final String path = exchange.getRequestURI().getPath();
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            this.sendError(exchange, 405, "INVALID_ARGUMENT", "Method not allowed");
+            return;
+        }
+        if (!path.endsWith(SEND_SUFFIX)) {
+            this.sendError(exchange, 404, "NOT_FOUND", "Unknown path " + path);
+            return;
+        }
+        String auth = exchange.getRequestHeaders().getFirst("Authorization");
+        if (auth == null || !auth.startsWith("Bearer ")) {
+            this.sendError(exchange, 401, "UNAUTHENTICATED", "Missing access token");
+            return;
+        }
+
+        try {
+            this.profile.delay();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.sendError(exchange, 503, "UNAVAILABLE", "Shutting down");
+            return;
+        }
+
+        switch (this.profile.next()) {
+            case ERROR:
+                this.sendError(exchange, 503, "UNAVAILABLE", "UNAVAILABLE", "The service is currently unavailable");
+                break;
+            case INVALID_TOKEN:
+                this.sendError(exchange, 404, "NOT_FOUND", "UNREGISTERED", "Requested entity was not found.");
+                break;
+            case THROTTLED:
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                this.sendError(exchange, 429, "RESOURCE_EXHAUSTED", "QUOTA_EXCEEDED", "Quota exceeded");
+                break;
+            default:
+                String project = path.substring("/v1/".length(), path.length() - SEND_SUFFIX.length());
+                JsonObject json = new JsonObject();
+                json.addProperty("name", project + "/messages/" + this.messageId.incrementAndGet());
+                this.send(exchange, 200, json);
+        }
+    }
+
+    /**
+     * Send an error response without FCM error details
+     * @param exchange HTTP exchange
+     * @param code     HTTP status
+     * @param status   Canonical error status
+     * @param message  Error message
+     * @throws IOException
+     */
+    private void sendError(final HttpExchange exchange, final int code, final String status, final String message) throws IOException {
+        this.sendError(exchange, code, status, null, message);
+    }
+
+    /**
+     * Send an FCM error response
+     * @param exchange  HTTP exchange
+     * @param code      HTTP status
+     * @param status    Canonical error status
+     * @param errorCode FCM error code of the FcmError detail (may be null)
+     * @param message   Error message
+     * @throws IOException
+     */
+    private void sendError(final HttpExchange exchange, final int code, final String status, final String errorCode, final String message) throws IOException {
+        JsonObject error = new JsonObject();
+        error.addProperty("code",    code);
+        error.addProperty("message", message);
+        error.addProperty("status",  status);
+        if (errorCode != null) {
+            JsonObject detail = new JsonObject();
+            detail.addProperty("@type",     FcmError.FCM_ERROR_TYPE);
+            detail.addProperty("errorCode", errorCode);
+            JsonArray details = new JsonArray();
+            details.add(detail);
+            error.add("details", details);
+        }
+        JsonObject json = new JsonObject();
+        json.add("error", error);
+        this.send(exchange, code, json);
+    }
+
+    private void send(final HttpExchange exchange, final int code, final JsonObject json) throws IOException {
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package fi.methics.webapp.musaplink.util.push.standin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Runs local FCM and APNs stand-in servers for push load testing.
+ * <p>The stand-ins are test code and are not packaged in the WAR. Run them from the test classpath:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=fi.methics.webapp.musaplink.util.push.standin.PushStandIns -Dexec.args=standin.conf
+ * </pre>
+ * <p>Example configuration:
+ * <pre>
+ * standin.threads         = 16
+ *
+ * standin.fcm.port        = 9080
+ * standin.fcm.latency     = 50
+ * standin.fcm.error.rate  = 0.01
+ * standin.fcm.max.rate    = 500
+ *
+ * standin.apns.port       = 9443
+ * standin.apns.cert       = conf/standin-cert.pem
+ * standin.apns.key        = conf/standin-key.pem
+ * standin.apns.latency    = 50
+ * standin.apns.invalid.rate = 0.001
+ * </pre>
+ * The MUSAP Link server is then pointed at the stand-ins with:
+ * <pre>
+ * musaplink.fcm.url         = http://localhost:9080/v1/projects/[PROJECT_NAME]/messages:send
+ * musaplink.fcm.accesstoken = standin
+ * musaplink.apns.host       = localhost
+ * musaplink.apns.port       = 9443
+ * musaplink.apns.trustedcert = conf/standin-cert.pem
+ * </pre>
+ * A stand-in is started only if its port is configured.
+ * The profile options are described in {@link StandInProfile}.
+ */
+public class PushStandIns {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: PushStandIns <standin.conf>");
+            return;
+        }
+
+        Properties p = new Properties();
+        try (InputStream is = new FileInputStream(args[0])) {
+            p.load(is);
+        }
+        int threads = Integer.parseInt(p.getProperty("standin.threads", "16").trim());
+
+        if (p.getProperty("standin.fcm.port") != null) {
+            int port = Integer.parseInt(p.getProperty("standin.fcm.port").trim());
+            new FcmStandInServer(port, threads, new StandInProfile(p, "standin.fcm.")).start();
+        }
+        if (p.getProperty("standin.apns.port") != null) {
+            int port = Integer.parseInt(p.getProperty("standin.apns.port").trim());
+            ApnsStandInServer apns = new ApnsStandInServer(new File(p.getProperty("standin.apns.cert")),
+                                                           new File(p.getProperty("standin.apns.key")),
+                                                           p.getProperty("standin.apns.key.pwd"),
+                                                           threads,
+                                                           new StandInProfile(p, "standin.apns."));
+            apns.start(port);
+        }
+
+        // Server threads are daemons
+        Thread.currentThread().join();
+    }
+
+}
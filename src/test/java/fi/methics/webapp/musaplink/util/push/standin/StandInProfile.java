@@ -0,0 +1,131 @@
+package fi.methics.webapp.musaplink.util.push.standin;
+
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Behaviour of a push stand-in server: response latency, error rates and throttling.
+ * <p>Example:
+ * <pre>
+ * standin.fcm.latency      = 50
+ * standin.fcm.jitter       = 20
+ * standin.fcm.error.rate   = 0.01
+ * standin.fcm.invalid.rate = 0.001
+ * standin.fcm.max.rate     = 500
+ * </pre>
+ */
+public class StandInProfile {
+
+    private static final Log log = LogFactory.getLog(StandInProfile.class);
+
+    public enum Outcome {
+        /** Push accepted */
+        ACCEPT,
+        /** Temporary server error */
+        ERROR,
+        /** Device token is not registered */
+        INVALID_TOKEN,
+        /** Too many requests */
+        THROTTLED
+    }
+
+    private final int    latency;
+    private final int    jitter;
+    private final double errorRate;
+    private final double invalidRate;
+    private final int    maxRate;
+
+    // Requests in the current one second throttling window
+    private long windowStart;
+    private int  windowCount;
+
+    /**
+     * Parse a stand-in profile
+     * @param p      Properties
+     * @param prefix Property prefix, e.g. "standin.fcm."
+     */
+    public StandInProfile(final Properties p, final String prefix) {
+        this.latency     = parseInt(p.getProperty(prefix + "latency"), 0);
+        this.jitter      = parseInt(p.getProperty(prefix + "jitter"),  0);
+        this.errorRate   = parseDouble(p.getProperty(prefix + "error.rate"),   0);
+        this.invalidRate = parseDouble(p.getProperty(prefix + "invalid.rate"), 0);
+        this.maxRate     = parseInt(p.getProperty(prefix + "max.rate"), 0);
+    }
+
+    /**
+     * Wait for the configured latency plus a random jitter
+     * @throws InterruptedException
+     */
+    public void delay() throws InterruptedException {
+        int delay = this.latency;
+        if (this.jitter > 0) {
+            delay += ThreadLocalRandom.current().nextInt(this.jitter + 1);
+        }
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * Pick the outcome of the next request.
+     * Requests over the max rate are throttled. Other requests fail randomly with the configured rates.
+     * @return outcome
+     */
+    public Outcome next() {
+        if (this.isThrottled()) {
+            return Outcome.THROTTLED;
+        }
+        double r = ThreadLocalRandom.current().nextDouble();
+        if (r < this.errorRate) {
+            return Outcome.ERROR;
+        }
+        if (r < this.errorRate + this.invalidRate) {
+            return Outcome.INVALID_TOKEN;
+        }
+        return Outcome.ACCEPT;
+    }
+
+    @Override
+    public String toString() {
+        return "latency=" + this.latency + "ms, jitter=" + this.jitter + "ms, error.rate=" + this.errorRate
+             + ", invalid.rate=" + this.invalidRate + ", max.rate=" + this.maxRate + "/s";
+    }
+
+    /**
+     * Count a request in the current one second window
+     * @return true if the max rate is exceeded
+     */
+    private synchronized boolean isThrottled() {
+        if (this.maxRate <= 0) return false;
+        long now = System.currentTimeMillis();
+        if (now - this.windowStart >= 1000) {
+            this.windowStart = now;
+            this.windowCount = 0;
+        }
+        return ++this.windowCount > this.maxRate;
+    }
+
+    private static int parseInt(final String value, final int defaultValue) {
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid number " + value + ". Using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static double parseDouble(final String value, final double defaultValue) {
+        if (value == null) return defaultValue;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid number " + value + ". Using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+}